@@ -5,6 +5,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.UUID;
 
 import org.junit.After;
@@ -132,6 +133,30 @@ public class TestContentService
     }
 
 
+    @Test
+    public void testStoreFromStream() throws Exception
+    {
+        logger.info("testStoreFromStream: store({})", photoId);
+        service.store(photoId, TEST_IMAGE_MIMETYPE, Sizes.ORIGINAL, new ByteArrayInputStream(content), content.length);
+
+        logger.info("testStoreFromStream: comparing to S3");
+        S3Object object = s3Client.getObject(IMAGE_BUCKET_NAME, objectKey);
+        assertEquals("object size as reported by S3",
+                     (long)content.length,
+                     object.getObjectMetadata().getContentLength());
+        assertEquals("mimetype as reported by S3",
+                     TEST_IMAGE_MIMETYPE,
+                     object.getObjectMetadata().getContentType());
+
+        try (InputStream s3is = object.getObjectContent())
+        {
+            assertArrayEquals("object content from s3", content, load(s3is));
+        }
+
+        s3Client.deleteObject(IMAGE_BUCKET_NAME, objectKey);
+    }
+
+
     @Test
     public void testRetrieveNonexistentPhoto() throws Exception
     {
@@ -140,6 +165,25 @@ public class TestContentService
     }
 
 
+    @Test
+    public void testOpenStream() throws Exception
+    {
+        logger.info("testOpenStream: store({})", photoId);
+        service.store(photoId, TEST_IMAGE_MIMETYPE, Sizes.ORIGINAL, content);
+
+        logger.info("testOpenStream: openStream({})", photoId);
+        try (InputStream in = service.openStream(photoId, Sizes.ORIGINAL))
+        {
+            assertNotNull("returned stream", in);
+            assertArrayEquals("object content from openStream()", content, load(in));
+        }
+
+        assertNull("nonexistent photo", service.openStream(photoId, Sizes.THUMB));
+
+        s3Client.deleteObject(IMAGE_BUCKET_NAME, objectKey);
+    }
+
+
     @Test
     public void testCreateUploadURL() throws Exception
     {
@@ -185,4 +229,33 @@ public class TestContentService
             // otherwise success
         }
     }
+
+
+    @Test
+    public void testUploadAccess() throws Exception
+    {
+        logger.info("testUploadAccess: uploading file with key {}", photoId);
+        ObjectMetadata srcMeta = new ObjectMetadata();
+        srcMeta.setContentLength(content.length);
+        srcMeta.setContentType(TEST_IMAGE_MIMETYPE);
+        s3Client.putObject(UPLOAD_BUCKET_NAME, photoId, new ByteArrayInputStream(content), srcMeta);
+
+        byte[] range = service.retrieveUploadRange(photoId, 0, 16);
+        assertArrayEquals("range", Arrays.copyOfRange(content, 0, 16), range);
+        assertEquals("range past end", 0, service.retrieveUploadRange(photoId, content.length, 16).length);
+        assertNull("range of nonexistent upload", service.retrieveUploadRange(photoId + "-bogus", 0, 16));
+
+        try (InputStream in = service.openUploadStream(photoId))
+        {
+            byte[] streamed = new byte[content.length];
+            IOUtil.readFully(in, streamed);
+            assertArrayEquals("streamed content", content, streamed);
+            assertEquals("end of stream", -1, in.read());
+        }
+
+        logger.info("testUploadAccess: deleting upload");
+        service.deleteUpload(photoId);
+
+        assertNull("stream after delete", service.openUploadStream(photoId));
+    }
 }
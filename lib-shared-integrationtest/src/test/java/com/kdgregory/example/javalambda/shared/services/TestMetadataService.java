@@ -213,4 +213,96 @@ public class TestMetadataService
         service.delete(meta1.getId());
         service.delete(meta2.getId());
     }
+
+
+    @Test
+    public void testContentHash() throws Exception
+    {
+        logger.info("testContentHash");
+
+        String hash = UUID.randomUUID().toString().replace("-", "");
+        assertNull("lookup before store",               service.retrieveByContentHash(hash));
+
+        assertTrue("first store",                       service.storeContentHash(hash, testPhotoId));
+        assertFalse("second store",                     service.storeContentHash(hash, "somethingElse"));
+        assertEquals("lookup after store", testPhotoId, service.retrieveByContentHash(hash));
+
+        // the index entry is found via the same GSI as photos, but that index is eventually consistent
+        logger.debug("deleting index entry");
+        service.delete(hash);
+    }
+
+
+    @Test
+    public void testLease() throws Exception
+    {
+        logger.info("testLease");
+
+        PhotoMetadata metadata = new PhotoMetadata(testPhotoId, testUsername, testFilename, testMimetype, testDescription, now, Arrays.asList());
+        service.store(metadata);
+
+        long until = System.currentTimeMillis() + 60000;
+        PhotoMetadata first = service.acquireLease(metadata, "first", until);
+        assertNotNull("first owner acquires",                       first);
+        assertEquals("lease returned in metadata",      "first",    first.getLeaseOwner());
+        assertNotNull("first owner reacquires",                     service.acquireLease(metadata, "first", until));
+
+        PhotoMetadata other = service.retrieve(testPhotoId);
+        assertEquals("lease retrieved",                 "first",    other.getLeaseOwner());
+        assertNull("second owner blocked",                          service.acquireLease(other, "second", until));
+
+        first.getSizes().add(Sizes.ORIGINAL);
+        assertTrue("owner stores leased metadata",                  service.storeLeased(first, "first"));
+        assertFalse("other owner can't store leased metadata",      service.storeLeased(other, "second"));
+        service.releaseLease(first);
+        assertNull("lease cleared from metadata",                   first.getLeaseOwner());
+        assertNull("lease removed",                                 service.retrieve(testPhotoId).getLeaseOwner());
+
+        PhotoMetadata second = service.acquireLease(other, "second", until);
+        assertNotNull("second owner acquires after release",        second);
+        assertEquals("second owner sees update",        first.getSizes(), second.getSizes());
+
+        service.releaseLease(second);
+        assertNotNull("acquire with expiration in past",            service.acquireLease(other, "third", System.currentTimeMillis() - 1));
+        assertNotNull("expired lease taken over",                   service.acquireLease(other, "fourth", until));
+        assertFalse("previous owner can't store",                   service.storeLeased(other, "third"));
+
+        logger.debug("deleting metadata");
+        service.delete(testPhotoId);
+    }
+
+
+    @Test
+    public void testScan() throws Exception
+    {
+        logger.info("testScan");
+
+        PhotoMetadata metadata = new PhotoMetadata(testPhotoId, testUsername, testFilename, testMimetype, testDescription, now, Arrays.asList());
+        service.store(metadata);
+        service.storeContentHash(testPhotoId + "-hash", testPhotoId);
+
+        // the database may contain other photos, so scan all of it, using small pages
+        // so that the resume key is exercised
+        int found = 0;
+        for (int segment = 0 ; segment < 2 ; segment++)
+        {
+            String key = null;
+            do
+            {
+                MetadataService.ScanPage page = service.scan(segment, 2, key, 2);
+                for (PhotoMetadata photo : page.getPhotos())
+                {
+                    assertFalse("content index excluded",   photo.getUser().startsWith("#"));
+                    if (photo.getId().equals(testPhotoId))
+                        found++;
+                }
+                key = page.getNextKey();
+            }
+            while (key != null);
+        }
+        assertEquals("test photo found once",           1,          found);
+
+        logger.debug("deleting metadata");
+        service.delete(testPhotoId);
+    }
 }
@@ -3,6 +3,8 @@ package com.kdgregory.example.javalambda.shared.config;
 
 import net.sf.kdgcommons.lang.StringUtil;
 
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
 
 /**
  *  Defines the environment variables known to this application, along with a method
@@ -16,6 +18,38 @@ public class Environment
     public final static String  SNS_TOPIC_ARN       = "SNS_TOPIC_ARN";
     public final static String  S3_UPLOAD_BUCKET    = "S3_UPLOAD_BUCKET";
     public final static String  S3_IMAGE_BUCKET     = "S3_IMAGE_BUCKET";
+    public final static String  RENDER_FUNCTION     = "RENDER_FUNCTION";
+
+    // these are optional, and used to tune the resizer
+
+    public final static String  RESIZER_THREADS     = "RESIZER_THREADS";
+    public final static String  RESIZER_SCALING     = "RESIZER_SCALING";
+    public final static String  RESIZER_OVERSAMPLE  = "RESIZER_OVERSAMPLE";
+    public final static String  RESIZER_CASCADE     = "RESIZER_CASCADE";
+    public final static String  RESIZER_CASCADE_SCALING = "RESIZER_CASCADE_SCALING";
+    public final static String  RESIZER_RASTER_POOL = "RESIZER_RASTER_POOL";
+    public final static String  RESIZER_BUFFER_POOL = "RESIZER_BUFFER_POOL";
+    public final static String  RESIZER_QUALITY     = "RESIZER_QUALITY";
+    public final static String  RESIZER_TARGET_SIZE = "RESIZER_TARGET_SIZE";
+    public final static String  RESIZER_PROGRESSIVE = "RESIZER_PROGRESSIVE";
+    public final static String  RESIZER_PNG_LEVEL   = "RESIZER_PNG_LEVEL";
+    public final static String  RESIZER_PNG_FILTER  = "RESIZER_PNG_FILTER";
+    public final static String  RESIZER_PNG_COLORS  = "RESIZER_PNG_COLORS";
+    public final static String  RESIZER_MAX_MEMORY  = "RESIZER_MAX_MEMORY";
+    public final static String  RESIZER_RECORDS     = "RESIZER_RECORDS";
+    public final static String  RESIZER_UPLOADS     = "RESIZER_UPLOADS";
+    public final static String  RESIZER_INGEST      = "RESIZER_INGEST";
+    public final static String  RESIZER_DEDUP       = "RESIZER_DEDUP";
+    public final static String  RESIZER_LEASE       = "RESIZER_LEASE";
+    public final static String  RESIZER_EAGER       = "RESIZER_EAGER";
+    public final static String  RESIZER_PRIME       = "RESIZER_PRIME";
+
+    // these are optional, and used to configure the resizer's backfill driver
+
+    public final static String  BACKFILL_SEGMENTS   = "BACKFILL_SEGMENTS";
+    public final static String  BACKFILL_THREADS    = "BACKFILL_THREADS";
+    public final static String  BACKFILL_RATE       = "BACKFILL_RATE";
+    public final static String  BACKFILL_CHECKPOINT = "BACKFILL_CHECKPOINT";
 
 
     public static String getOrThrow(String varname)
@@ -25,4 +59,47 @@ public class Environment
             throw new IllegalArgumentException("unset environment variable: " + varname);
         return value;
     }
+
+
+    /**
+     *  Retrieves the named variable, returning the provided default if it isn't defined.
+     */
+    public static String getOrDefault(String varname, String defaultValue)
+    {
+        String value = System.getenv(varname);
+        return StringUtil.isBlank(value) ? defaultValue : value.trim();
+    }
+
+
+    /**
+     *  Retrieves the named variable as an integer, returning the provided default if it
+     *  isn't defined. Throws if the variable is defined but not numeric.
+     */
+    public static int getOrDefault(String varname, int defaultValue)
+    {
+        String value = getOrDefault(varname, null);
+        if (value == null)
+            return defaultValue;
+
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("invalid numeric environment variable: " + varname + " (" + value + ")");
+        }
+    }
+
+
+    /**
+     *  Retrieves a variable that may be overridden for a specific size: first looks
+     *  for <code>VARNAME_SIZE</code> (eg, <code>RESIZER_SCALING_THUMB</code>), then
+     *  for <code>VARNAME</code>, and returns the provided default if neither exists.
+     */
+    public static String getForSize(String varname, Sizes size, String defaultValue)
+    {
+        return getOrDefault(varname + "_" + size.name(),
+                            getOrDefault(varname, defaultValue));
+    }
 }
@@ -0,0 +1,28 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.shared.data;
+
+
+/**
+ *  Defines how an image is fit into the dimensions of a {@link Sizes} value. In
+ *  all cases, images are never enlarged.
+ */
+public enum FitMode
+{
+    /**
+     *  The image is scaled to the size's width, and its height is whatever the
+     *  aspect ratio dictates.
+     */
+    WIDTH,
+
+    /**
+     *  The image is scaled to fit entirely within the size's width and height,
+     *  preserving its aspect ratio; one dimension may be smaller than the size.
+     */
+    FIT,
+
+    /**
+     *  The image is scaled to cover the size's width and height, preserving its
+     *  aspect ratio, and then cropped (around the center) to those dimensions.
+     */
+    COVER
+}
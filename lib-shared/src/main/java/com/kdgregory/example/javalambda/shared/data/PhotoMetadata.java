@@ -4,6 +4,7 @@ package com.kdgregory.example.javalambda.shared.data;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
@@ -25,6 +26,27 @@ import com.amazonaws.services.dynamodbv2.document.Item;
  *  from Dynamo. Since the two maps erase to the same type, construction uses
  *  the factory methods {@link #fromClientMap} and {@link #fromDynamoMap}.
  *  <p>
+ *  Sizes that would be identical to another size (for example, any size that's
+ *  larger than the original image) aren't stored separately. Instead, they're
+ *  recorded as aliases of the size that is stored; use {@link #getStoredSize}
+ *  to find the object that holds a given size.
+ *  <p>
+ *  If the resizer refuses to process a photo (because it isn't an image, or is too
+ *  large), it records the reason with {@link #setRejected}. Such photos have only
+ *  their original size.
+ *  <p>
+ *  A photo whose content is identical to an earlier photo shares that photo's stored
+ *  objects: {@link #getContentId} identifies the photo that holds the objects (for
+ *  most photos, this is the photo itself).
+ *  <p>
+ *  While the resizer is processing a photo, it holds a "lease" on the photo, which
+ *  identifies the owner and the time that the lease expires. This is only stored in
+ *  Dynamo; it's not returned to the client.
+ *  <p>
+ *  Some sizes may not be rendered until they're requested. The client map lists
+ *  these as "missing" (only for a photo that has an original and hasn't been
+ *  rejected); this is not stored in Dynamo.
+ *  <p>
  *  By default, instances are ordered by newest upload date first.
  */
 public class PhotoMetadata
@@ -43,6 +65,12 @@ implements Comparable<PhotoMetadata>
         public final static String  MIMETYPE    = "mimetype";
         public final static String  UPLOADED_AT = "uploadedAt";
         public final static String  SIZES       = "sizes";
+        public final static String  ALIASES     = "aliases";
+        public final static String  REJECTED    = "rejected";
+        public final static String  CONTENT_ID  = "contentId";
+        public final static String  LEASE_OWNER = "leaseOwner";
+        public final static String  LEASE_UNTIL = "leaseUntil";
+        public final static String  MISSING     = "missingSizes";
     }
 
 //----------------------------------------------------------------------------
@@ -56,9 +84,20 @@ implements Comparable<PhotoMetadata>
     private String description;
     private Long uploadedAt;
     private EnumSet<Sizes> sizes;
+    private EnumMap<Sizes,Sizes> aliases;
+    private String rejected;
+    private String contentId;
+    private String leaseOwner;
+    private Long leaseUntil;
 
 
     public PhotoMetadata(String id, String user, String filename, String mimeType, String description, Long uploadedAt, Collection<String> sizes)
+    {
+        this(id, user, filename, mimeType, description, uploadedAt, sizes, Collections.emptyMap());
+    }
+
+
+    public PhotoMetadata(String id, String user, String filename, String mimeType, String description, Long uploadedAt, Collection<String> sizes, Map<String,String> aliases)
     {
         this.id = id;
         this.user = user;
@@ -73,6 +112,12 @@ implements Comparable<PhotoMetadata>
             // an incorrect value is a program error so let it throw
             this.sizes.add(Sizes.valueOf(sizeStr));
         }
+
+        this.aliases = new EnumMap<>(Sizes.class);
+        for (Map.Entry<String,String> alias : aliases.entrySet())
+        {
+            this.aliases.put(Sizes.valueOf(alias.getKey()), Sizes.valueOf(alias.getValue()));
+        }
     }
 
 
@@ -106,7 +151,12 @@ implements Comparable<PhotoMetadata>
             item.getString(Fields.MIMETYPE),
             item.getString(Fields.DESCRIPTION),
             item.getLong(Fields.UPLOADED_AT),
-            ObjectUtil.defaultValue(item.getStringSet(Fields.SIZES), Collections.emptySet()));
+            ObjectUtil.defaultValue(item.getStringSet(Fields.SIZES), Collections.emptySet()),
+            ObjectUtil.defaultValue(item.<String>getMap(Fields.ALIASES), Collections.emptyMap()))
+            .withRejected(item.getString(Fields.REJECTED))
+            .withContentId(item.getString(Fields.CONTENT_ID))
+            .withLease(item.getString(Fields.LEASE_OWNER),
+                       item.isPresent(Fields.LEASE_UNTIL) ? Long.valueOf(item.getLong(Fields.LEASE_UNTIL)) : null);
     }
 
 
@@ -156,13 +206,112 @@ implements Comparable<PhotoMetadata>
     }
 
 
+    /**
+     *  Returns the mapping from aliased sizes to the sizes that are actually stored.
+     *  As with {@link #getSizes}, this map may be modified.
+     */
+    public Map<Sizes,Sizes> getAliases()
+    {
+        return aliases;
+    }
+
+
+    /**
+     *  Returns the reason that the resizer rejected this photo, null if it was not
+     *  rejected.
+     */
+    public String getRejected()
+    {
+        return rejected;
+    }
+
+
+    /**
+     *  Marks this photo as rejected by the resizer, for the specified reason.
+     */
+    public void setRejected(String reason)
+    {
+        this.rejected = reason;
+    }
+
+
+    /**
+     *  Returns the ID of the photo whose stored objects hold this photo's content.
+     *  This is the photo's own ID unless it duplicates another photo.
+     */
+    public String getContentId()
+    {
+        return (contentId != null) ? contentId : id;
+    }
+
+
+    /**
+     *  Records that this photo's content is held by another photo's stored objects.
+     */
+    public void setContentId(String contentId)
+    {
+        this.contentId = contentId;
+    }
+
+
+    /**
+     *  Returns the owner of the processing lease, null if there is no lease.
+     */
+    public String getLeaseOwner()
+    {
+        return leaseOwner;
+    }
+
+
+    /**
+     *  Returns the time that the processing lease expires, in millis since epoch; null
+     *  if there is no lease.
+     */
+    public Long getLeaseUntil()
+    {
+        return leaseUntil;
+    }
+
+
+    /**
+     *  Records a processing lease. This does not acquire the lease; see
+     *  {@link com.kdgregory.example.javalambda.shared.services.MetadataService#acquireLease}.
+     */
+    public void setLease(String owner, Long until)
+    {
+        this.leaseOwner = owner;
+        this.leaseUntil = until;
+    }
+
+
+    /**
+     *  Removes the processing lease. When the metadata is next stored, the lease will
+     *  be released.
+     */
+    public void clearLease()
+    {
+        setLease(null, null);
+    }
+
+
 //----------------------------------------------------------------------------
 //  Other public methods
 //----------------------------------------------------------------------------
 
+    /**
+     *  Returns the size whose stored content should be used for the specified size:
+     *  either the size itself, or the size that it's aliased to.
+     */
+    public Sizes getStoredSize(Sizes size)
+    {
+        return ObjectUtil.defaultValue(aliases.get(size), size);
+    }
+
+
     /**
      *  Constructs a map suitable for returning to the client. In this form,
-     *  the array of sizes has been expanded out to include all details.
+     *  the array of sizes has been expanded out to include all details, along
+     *  with the name of the stored size (which is used to construct the URL).
      */
     public Map<String,Object> toClientMap()
     {
@@ -174,8 +323,21 @@ implements Comparable<PhotoMetadata>
         result.put(Fields.DESCRIPTION,  description);
         result.put(Fields.UPLOADED_AT,  uploadedAt);
         result.put(Fields.MIMETYPE,     mimetype);
-        result.put(Fields.SIZES,        sizes.stream().map(Sizes::toMap)
+        result.put(Fields.SIZES,        sizes.stream().map(this::toClientSizeMap)
                                              .collect(Collectors.toList()));
+        result.put(Fields.ALIASES,      aliasStrings());
+        result.put(Fields.CONTENT_ID,   getContentId());
+
+        if (rejected != null)
+        {
+            result.put(Fields.REJECTED, rejected);
+        }
+        else if (sizes.contains(Sizes.ORIGINAL))
+        {
+            result.put(Fields.MISSING,  EnumSet.complementOf(EnumSet.copyOf(sizes)).stream()
+                                             .map(Sizes::toMap)
+                                             .collect(Collectors.toList()));
+        }
 
         return result;
     }
@@ -204,6 +366,27 @@ implements Comparable<PhotoMetadata>
             item.withStringSet(Fields.SIZES, sizeStrings);
         }
 
+        if (! aliases.isEmpty())
+        {
+            item.withMap(Fields.ALIASES, aliasStrings());
+        }
+
+        if (! StringUtil.isBlank(rejected))
+        {
+            item.withString(Fields.REJECTED, rejected);
+        }
+
+        if (! StringUtil.isBlank(contentId))
+        {
+            item.withString(Fields.CONTENT_ID, contentId);
+        }
+
+        if (! StringUtil.isBlank(leaseOwner) && (leaseUntil != null))
+        {
+            item.withString(Fields.LEASE_OWNER, leaseOwner)
+                .withLong(Fields.LEASE_UNTIL, leaseUntil.longValue());
+        }
+
         return item;
     }
 
@@ -240,7 +423,54 @@ implements Comparable<PhotoMetadata>
              + "filename = " + filename + ", "
              + "mimetype = " + mimetype + ", "
              + "uploadedAt = " + uploadedAt + ", "
-             + "sizes = " + sizes
+             + "sizes = " + sizes + ", "
+             + "aliases = " + aliases
+             + ((rejected != null) ? ", rejected = " + rejected : "")
+             + ((contentId != null) ? ", contentId = " + contentId : "")
+             + ((leaseOwner != null) ? ", leaseOwner = " + leaseOwner + ", leaseUntil = " + leaseUntil : "")
              + "]";
     }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private PhotoMetadata withRejected(String reason)
+    {
+        setRejected(reason);
+        return this;
+    }
+
+
+    private PhotoMetadata withContentId(String value)
+    {
+        setContentId(value);
+        return this;
+    }
+
+
+    private PhotoMetadata withLease(String owner, Long until)
+    {
+        setLease(owner, until);
+        return this;
+    }
+
+
+    private Map<String,Object> toClientSizeMap(Sizes size)
+    {
+        Map<String,Object> map = size.toMap();
+        map.put("stored", getStoredSize(size).name());
+        return map;
+    }
+
+
+    private Map<String,String> aliasStrings()
+    {
+        Map<String,String> result = new HashMap<>();
+        for (Map.Entry<Sizes,Sizes> alias : aliases.entrySet())
+        {
+            result.put(alias.getKey().name(), alias.getValue().name());
+        }
+        return result;
+    }
 }
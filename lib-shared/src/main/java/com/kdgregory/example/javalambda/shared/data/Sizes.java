@@ -7,13 +7,16 @@ import java.util.Map;
 /**
  *  Defines all supported sizes, along with information about those sizes.
  *  The enum name is used in the S3 key for the image.
+ *  <p>
+ *  The width and height of each size define a bounding box; the {@link FitMode}
+ *  defines how an image is fit into that box.
  */
 public enum Sizes
 {
-    ORIGINAL    (  -1,  -1,     "original"),
-    THUMB       ( 180,  180,    "thumbnail"),
-    W1024H768   (1024,  768,    "1024 x 768"),
-    W640H480    ( 640,  480,    "640 x 480");
+    ORIGINAL    (  -1,  -1,     "original",     FitMode.WIDTH),
+    THUMB       ( 180,  180,    "thumbnail",    FitMode.COVER),
+    W1024H768   (1024,  768,    "1024 x 768",   FitMode.FIT),
+    W640H480    ( 640,  480,    "640 x 480",    FitMode.FIT);
 
 
 //----------------------------------------------------------------------------
@@ -23,12 +26,14 @@ public enum Sizes
     private int width;
     private int height;
     private String description;
+    private FitMode fitMode;
 
-    private Sizes(int width, int height, String description)
+    private Sizes(int width, int height, String description, FitMode fitMode)
     {
         this.width = width;
         this.height = height;
         this.description = description;
+        this.fitMode = fitMode;
     }
 
 
@@ -49,6 +54,12 @@ public enum Sizes
         return description;
     }
 
+
+    public FitMode getFitMode()
+    {
+        return fitMode;
+    }
+
 //----------------------------------------------------------------------------
 //  Useful methods
 //----------------------------------------------------------------------------
@@ -63,6 +74,7 @@ public enum Sizes
         map.put("description", description);
         map.put("width", width);
         map.put("height", height);
+        map.put("fit", fitMode.name());
         return map;
     }
 }
\ No newline at end of file
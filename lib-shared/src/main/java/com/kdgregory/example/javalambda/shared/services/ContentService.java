@@ -1,6 +1,8 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.example.javalambda.shared.services;
 
+import java.io.InputStream;
+
 import com.kdgregory.example.javalambda.shared.data.Sizes;
 
 
@@ -15,12 +17,40 @@ public interface ContentService
     public void store(String photoId, String mimeType, Sizes size, byte[] content);
 
 
+    /**
+     *  Stores the content for a photo at a given size, reading it from the passed
+     *  stream, which must provide exactly the specified number of bytes. This is an
+     *  alternative to {@link #store}, for callers that hold the content in a form other
+     *  than a single array; the content is sent as it's read, without being buffered.
+     *  The caller must close the stream.
+     */
+    public void store(String photoId, String mimeType, Sizes size, InputStream content, long length);
+
+
     /**
      *  Retrieves the content for a photo at a given size, null if unable to find the photo.
      */
     public byte[] retrieve(String photoId, Sizes size);
 
 
+    /**
+     *  Opens a stream to read the content for a photo at a given size, null if unable
+     *  to find the photo. Unlike {@link #retrieve}, this does not buffer the content;
+     *  the caller reads it directly from the source, and must close the stream.
+     */
+    public InputStream openStream(String photoId, Sizes size);
+
+
+    /**
+     *  Retrieves a portion of the content for a photo at a given size, starting at the
+     *  specified offset. The returned array will be shorter than the requested length
+     *  if the content ends before that point, and empty if the offset is at or beyond
+     *  the end of the content (including when the content is empty). Returns null if
+     *  unable to find the photo.
+     */
+    public byte[] retrieveRange(String photoId, Sizes size, long offset, int length);
+
+
     /**
      *  Generates a signed URL that can be used for upload of a specified file.
      */
@@ -32,4 +62,32 @@ public interface ContentService
      *  it as "ORIGINAL" size.
      */
     public void moveUploadToImageBucket(String photoId);
+
+
+    /**
+     *  Opens a stream to read an uploaded photo from the upload bucket, null if unable
+     *  to find it. The caller must close the stream. This is an alternative to {@link
+     *  #moveUploadToImageBucket}, for callers that store the original themselves.
+     */
+    public InputStream openUploadStream(String photoId);
+
+
+    /**
+     *  Retrieves a portion of an uploaded photo; see {@link #retrieveRange}.
+     */
+    public byte[] retrieveUploadRange(String photoId, long offset, int length);
+
+
+    /**
+     *  Deletes an uploaded photo from the upload bucket.
+     */
+    public void deleteUpload(String photoId);
+
+
+    /**
+     *  Makes a request that doesn't depend on any stored content, so that the cost of
+     *  establishing a connection isn't paid by the first real request. Failures are
+     *  logged and ignored.
+     */
+    public void connect();
 }
@@ -19,6 +19,17 @@ public interface MetadataService
     public boolean store(PhotoMetadata metadata);
 
 
+    /**
+     *  Stores the provided metadata, provided that the photo's processing lease is
+     *  still held by the specified owner. The passed metadata may retain the lease
+     *  or clear it; in the latter case, storing releases the lease.
+     *
+     *  @return flag indicating whether or not the metadata could be stored; false
+     *          if the lease is held by another owner (or has been released).
+     */
+    public boolean storeLeased(PhotoMetadata metadata, String owner);
+
+
     /**
      *  Retrieves a photo by its ID. Returns null if unable to find the photo.
      */
@@ -31,9 +42,106 @@ public interface MetadataService
     public List<PhotoMetadata> retrieveByUser(String username);
 
 
+    /**
+     *  Retrieves one page of photos from a segment of a parallel scan over all photos.
+     *  The scan is resumed by passing the key from the previous page; pass null to start
+     *  at the beginning of the segment. A page may be empty even if the segment isn't
+     *  complete.
+     *
+     *  @param  segment         The segment to scan, from 0 to <code>totalSegments - 1</code>.
+     *  @param  totalSegments   The total number of segments in the scan.
+     *  @param  startKey        The value of {@link ScanPage#getNextKey} from the previous
+     *                          page of this segment, null to start the segment.
+     *  @param  pageSize        The maximum number of items to examine.
+     */
+    public ScanPage scan(int segment, int totalSegments, String startKey, int pageSize);
+
+
     /**
      *  Deletes the metadata for the specified photo, if it exists. This is intended
      *  primarily to support the integration tests.
      */
     public void delete(String photoId);
+
+
+    /**
+     *  Returns the ID of the photo recorded as having content with the specified hash,
+     *  null if there's no such photo.
+     */
+    public String retrieveByContentHash(String hash);
+
+
+    /**
+     *  Records that a photo has content with the specified hash, unless a photo has
+     *  already been recorded for that hash.
+     *
+     *  @return flag indicating whether or not the photo was recorded.
+     */
+    public boolean storeContentHash(String hash, String photoId);
+
+
+    /**
+     *  Attempts to acquire the processing lease for a photo: succeeds if there's no
+     *  lease, if the existing lease has expired, or if it's already held by the same
+     *  owner.
+     *
+     *  @return the photo's current metadata, including the lease, or null if the lease
+     *          couldn't be acquired. Callers should use this rather than the passed
+     *          metadata, since the photo may have been updated by the previous owner.
+     */
+    public PhotoMetadata acquireLease(PhotoMetadata metadata, String owner, long until);
+
+
+    /**
+     *  Releases the processing lease recorded in the passed metadata, if it's still
+     *  held by the same owner, and clears it from the metadata. Storing the metadata
+     *  without a lease also releases it.
+     */
+    public void releaseLease(PhotoMetadata metadata);
+
+
+    /**
+     *  Makes a request that doesn't depend on any stored metadata, so that the cost of
+     *  establishing a connection isn't paid by the first real request. Failures are
+     *  logged and ignored.
+     */
+    public void connect();
+
+
+//----------------------------------------------------------------------------
+//  Supporting classes
+//----------------------------------------------------------------------------
+
+    /**
+     *  The result of {@link #scan}.
+     */
+    public static class ScanPage
+    {
+        private List<PhotoMetadata> photos;
+        private String nextKey;
+
+        public ScanPage(List<PhotoMetadata> photos, String nextKey)
+        {
+            this.photos = photos;
+            this.nextKey = nextKey;
+        }
+
+        /**
+         *  Returns the photos on this page.
+         */
+        public List<PhotoMetadata> getPhotos()
+        {
+            return photos;
+        }
+
+        /**
+         *  Returns an opaque key that resumes the scan after this page, null if this
+         *  is the last page of the segment. The key is a string so that it can be
+         *  saved as a checkpoint.
+         */
+        public String getNextKey()
+        {
+            return nextKey;
+        }
+    }
 }
@@ -2,6 +2,7 @@
 package com.kdgregory.example.javalambda.shared.services.impl;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Date;
 
@@ -26,6 +27,9 @@ public class ContentServiceImpl implements ContentService
 {
     private final static long PRESIGNED_URL_EXPIRATION = 3600 * 1000;
 
+    // an object that doesn't exist, requested by connect()
+    private final static String CONNECT_KEY = "#connect";
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     private AmazonS3 s3Client;
@@ -57,10 +61,8 @@ public class ContentServiceImpl implements ContentService
         logger.debug("uploading: photo {}, size = {}, content-length = {}",
                      photoId, size.name(), content.length);
 
-        ObjectMetadata s3Meta = new ObjectMetadata();
+        ObjectMetadata s3Meta = objectMetadata(mimeType);
         s3Meta.setContentLength(content.length);
-        s3Meta.setContentType(mimeType);
-        s3Meta.setCacheControl("public,max-age=86400,immutable");
         PutObjectResult s3Response = s3Client.putObject(
                                         imageBucket,
                                         s3Key(photoId, size),
@@ -71,6 +73,25 @@ public class ContentServiceImpl implements ContentService
     }
 
 
+    /**
+     *  Stores content with a single PUT, reading it directly from the passed stream.
+     *  If the stream supports mark/reset, the SDK can retry a failed request without
+     *  buffering the content.
+     */
+    @Override
+    public void store(String photoId, String mimeType, Sizes size, InputStream content, long length)
+    {
+        logger.debug("uploading: photo {}, size = {}, content-length = {}",
+                     photoId, size.name(), length);
+
+        ObjectMetadata s3Meta = objectMetadata(mimeType);
+        s3Meta.setContentLength(length);
+        PutObjectResult s3Response = s3Client.putObject(imageBucket, s3Key(photoId, size), content, s3Meta);
+
+        logger.debug("upload successful: photo {}, etag {}", photoId, s3Response.getETag());
+    }
+
+
     @Override
     public byte[] retrieve(String photoId, Sizes size)
     {
@@ -114,6 +135,22 @@ public class ContentServiceImpl implements ContentService
     }
 
 
+    @Override
+    public InputStream openStream(String photoId, Sizes size)
+    {
+        logger.debug("opening stream for photo {}, size {}", photoId, size);
+        return openStream(imageBucket, s3Key(photoId, size), "photo " + photoId + " size " + size.name());
+    }
+
+
+    @Override
+    public byte[] retrieveRange(String photoId, Sizes size, long offset, int length)
+    {
+        logger.debug("retrieving {} bytes at offset {} for photo {}, size {}", length, offset, photoId, size);
+        return retrieveRange(imageBucket, s3Key(photoId, size), offset, length, "photo " + photoId + " size " + size.name());
+    }
+
+
     @Override
     public String createUploadURL(String filename)
     {
@@ -136,10 +173,149 @@ public class ContentServiceImpl implements ContentService
     }
 
 
+    @Override
+    public InputStream openUploadStream(String photoId)
+    {
+        logger.debug("opening stream for upload {}", photoId);
+        return openStream(uploadBucket, photoId, "upload " + photoId);
+    }
+
+
+    @Override
+    public byte[] retrieveUploadRange(String photoId, long offset, int length)
+    {
+        logger.debug("retrieving {} bytes at offset {} for upload {}", length, offset, photoId);
+        return retrieveRange(uploadBucket, photoId, offset, length, "upload " + photoId);
+    }
+
+
+    @Override
+    public void deleteUpload(String photoId)
+    {
+        logger.debug("deleting object s3://{}/{}", uploadBucket, photoId);
+        s3Client.deleteObject(uploadBucket, photoId);
+    }
+
+
+    @Override
+    public void connect()
+    {
+        logger.debug("connecting to s3://{}", imageBucket);
+        try
+        {
+            s3Client.getObjectMetadata(imageBucket, CONNECT_KEY);
+        }
+        catch (AmazonS3Exception ex)
+        {
+            // without permission to list the bucket, S3 reports a missing object as 403
+            if ((ex.getStatusCode() != 403) && (ex.getStatusCode() != 404))
+            {
+                logger.warn("unexpected exception connecting to S3", ex);
+            }
+        }
+        catch (Exception ex)
+        {
+            logger.warn("unexpected exception connecting to S3", ex);
+        }
+    }
+
+
 //----------------------------------------------------------------------------
 //  Internals
 //----------------------------------------------------------------------------
 
+    /**
+     *  Opens a stream for the specified object, null if it doesn't exist or can't be read.
+     */
+    private InputStream openStream(String bucket, String key, String description)
+    {
+        try
+        {
+            S3Object s3Obj = s3Client.getObject(bucket, key);
+            logger.debug("opened stream for {}, content-length = {}",
+                         description, s3Obj.getObjectMetadata().getContentLength());
+            return s3Obj.getObjectContent();
+        }
+        catch (AmazonS3Exception ex)
+        {
+            if (ex.getStatusCode() == 404)
+            {
+                logger.warn("{} does not exist", description);
+                return null;
+            }
+
+            logger.error("unexpected exception retrieving {}", description, ex);
+            return null;
+        }
+        catch (Exception ex)
+        {
+            logger.error("unexpected exception retrieving {}", description, ex);
+            return null;
+        }
+    }
+
+
+    /**
+     *  Retrieves a range of bytes from the specified object, null if it doesn't exist,
+     *  can't be read, or is shorter than the offset.
+     */
+    private byte[] retrieveRange(String bucket, String key, long offset, int length, String description)
+    {
+        S3Object s3Obj = null;
+        try
+        {
+            GetObjectRequest request = new GetObjectRequest(bucket, key)
+                                       .withRange(offset, offset + length - 1);
+            s3Obj = s3Client.getObject(request);
+
+            // the response is truncated if the object is shorter than the requested range
+            byte[] content = new byte[(int)s3Obj.getObjectMetadata().getContentLength()];
+            IOUtil.readFully(s3Obj.getObjectContent(), content);
+            return content;
+        }
+        catch (AmazonS3Exception ex)
+        {
+            if (ex.getStatusCode() == 404)
+            {
+                logger.warn("{} does not exist", description);
+                return null;
+            }
+
+            // 416 indicates that the offset is at or past the end of the object (which
+            // is always the case for an empty object)
+            if (ex.getStatusCode() == 416)
+            {
+                logger.debug("{} is not longer than {} bytes", description, offset);
+                return new byte[0];
+            }
+
+            logger.error("unexpected exception retrieving {}", description, ex);
+            return null;
+        }
+        catch (Exception ex)
+        {
+            logger.error("unexpected exception retrieving {}", description, ex);
+            return null;
+        }
+        finally
+        {
+            if (s3Obj != null)  IOUtil.closeQuietly(s3Obj.getObjectContent());
+        }
+    }
+
+
+    /**
+     *  Creates the S3 metadata for a stored image.
+     */
+    private ObjectMetadata objectMetadata(String mimeType)
+    {
+        ObjectMetadata s3Meta = new ObjectMetadata();
+        s3Meta.setContentType(mimeType);
+        s3Meta.setCacheControl("public,max-age=86400,immutable");
+        return s3Meta;
+    }
+
+
     /**
      *  Returns the storage path for an object.
      */
@@ -3,8 +3,10 @@ package com.kdgregory.example.javalambda.shared.services.impl;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,7 +16,16 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 
 import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
 import com.kdgregory.example.javalambda.shared.data.PhotoMetadata.Fields;
@@ -23,9 +34,19 @@ import com.kdgregory.example.javalambda.shared.services.MetadataService;
 
 /**
  *  This service supports retrieval and update of photo metadata.
+ *  <p>
+ *  The content hash index is stored in the same table as the metadata, using a
+ *  reserved partition key that can't be a valid username. Each item's sort key is
+ *  a hash, and it holds the ID of the photo with that content.
+ *  <p>
+ *  Scans exclude the content hash index. A scan's resume key combines the photo ID
+ *  and username from Dynamo's last evaluated key, separated by a slash (which can't
+ *  appear in a photo ID).
  */
 public class MetadataServiceImpl implements MetadataService
 {
+    private final static String CONTENT_INDEX_PARTITION = "#content-index";
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     private DynamoDB ddbClient;
@@ -65,6 +86,37 @@ public class MetadataServiceImpl implements MetadataService
     }
 
 
+    /**
+     *  Stores the provided metadata, using a conditional put that succeeds only if the
+     *  stored item's lease is held by the specified owner.
+     */
+    @Override
+    public boolean storeLeased(PhotoMetadata metadata, String owner)
+    {
+        logger.debug("store leased: user {}, photo {}, owner {}", metadata.getUser(), metadata.getId(), owner);
+        if (!metadata.isValid())
+        {
+            logger.warn("store called with invalid metadata: {}", metadata);
+            return false;
+        }
+
+        try
+        {
+            metadataTable.putItem(new PutItemSpec()
+                                  .withItem(metadata.toDynamoItem())
+                                  .withConditionExpression("#owner = :owner")
+                                  .withNameMap(Collections.singletonMap("#owner", Fields.LEASE_OWNER))
+                                  .withValueMap(Collections.singletonMap(":owner", owner)));
+            return true;
+        }
+        catch (ConditionalCheckFailedException ex)
+        {
+            logger.warn("lease for photo {} is no longer held by {}; metadata not stored", metadata.getId(), owner);
+            return false;
+        }
+    }
+
+
     /**
      *  Retrieves a photo by its ID. Returns null if unable to find the photo.
      */
@@ -102,6 +154,43 @@ public class MetadataServiceImpl implements MetadataService
     }
 
 
+    /**
+     *  Retrieves one page of photos from a segment of a parallel scan over all photos.
+     */
+    @Override
+    public ScanPage scan(int segment, int totalSegments, String startKey, int pageSize)
+    {
+        logger.debug("scan: segment {} of {}, starting after {}", segment, totalSegments, startKey);
+
+        ScanSpec spec = new ScanSpec()
+                        .withSegment(segment)
+                        .withTotalSegments(totalSegments)
+                        .withMaxPageSize(pageSize)
+                        .withFilterExpression("#username <> :contentIndex")
+                        .withNameMap(Collections.singletonMap("#username", Fields.USERNAME))
+                        .withValueMap(Collections.singletonMap(":contentIndex", CONTENT_INDEX_PARTITION));
+        if (startKey != null)
+        {
+            int split = startKey.indexOf('/');
+            spec.withExclusiveStartKey(Fields.USERNAME, startKey.substring(split + 1), Fields.ID, startKey.substring(0, split));
+        }
+
+        Page<Item,ScanOutcome> page = metadataTable.scan(spec).firstPage();
+
+        List<PhotoMetadata> photos = new ArrayList<>();
+        for (Item item : page)
+        {
+            photos.add(PhotoMetadata.fromDynamoItem(item));
+        }
+
+        Map<String,AttributeValue> lastKey = page.getLowLevelResult().getScanResult().getLastEvaluatedKey();
+        String nextKey = ((lastKey != null) && ! lastKey.isEmpty())
+                       ? lastKey.get(Fields.ID).getS() + "/" + lastKey.get(Fields.USERNAME).getS()
+                       : null;
+        return new ScanPage(photos, nextKey);
+    }
+
+
     /**
      *  Deletes the metadata for the specified photo, if it exists. This is intended
      *  primarily to support the integration tests.
@@ -121,6 +210,143 @@ public class MetadataServiceImpl implements MetadataService
         }
     }
 
+    /**
+     *  Returns the ID of the photo recorded as having content with the specified hash,
+     *  null if there's no such photo.
+     */
+    @Override
+    public String retrieveByContentHash(String hash)
+    {
+        logger.debug("retrieve by content hash: {}", hash);
+
+        Item item = metadataTable.getItem(Fields.USERNAME, CONTENT_INDEX_PARTITION, Fields.ID, hash);
+        return (item != null)
+             ? item.getString(Fields.CONTENT_ID)
+             : null;
+    }
+
+
+    /**
+     *  Records that a photo has content with the specified hash, unless a photo has
+     *  already been recorded for that hash (in which case the existing entry is kept).
+     *
+     *  @return flag indicating whether or not the photo was recorded.
+     */
+    @Override
+    public boolean storeContentHash(String hash, String photoId)
+    {
+        logger.debug("store content hash: {} for photo {}", hash, photoId);
+
+        Item item = new Item()
+                    .withString(Fields.USERNAME,    CONTENT_INDEX_PARTITION)
+                    .withString(Fields.ID,          hash)
+                    .withString(Fields.CONTENT_ID,  photoId);
+        try
+        {
+            metadataTable.putItem(new PutItemSpec()
+                                  .withItem(item)
+                                  .withConditionExpression("attribute_not_exists(#id)")
+                                  .withNameMap(Collections.singletonMap("#id", Fields.ID)));
+            return true;
+        }
+        catch (ConditionalCheckFailedException ex)
+        {
+            logger.debug("content hash {} already recorded", hash);
+            return false;
+        }
+    }
+
+    /**
+     *  Attempts to acquire the processing lease for a photo, using a conditional update
+     *  that succeeds only if there's no lease, the lease has expired, or the lease is
+     *  already held by the same owner. Also fails if the photo doesn't exist. Returns
+     *  the item as updated, so that the caller sees any changes made while the lease
+     *  was held by someone else.
+     */
+    @Override
+    public PhotoMetadata acquireLease(PhotoMetadata metadata, String owner, long until)
+    {
+        logger.debug("acquire lease: photo {}, owner {}", metadata.getId(), owner);
+
+        Map<String,String> names = new HashMap<>();
+        names.put("#id",    Fields.ID);
+        names.put("#owner", Fields.LEASE_OWNER);
+        names.put("#until", Fields.LEASE_UNTIL);
+
+        Map<String,Object> values = new HashMap<>();
+        values.put(":owner",    owner);
+        values.put(":until",    Long.valueOf(until));
+        values.put(":now",      Long.valueOf(System.currentTimeMillis()));
+
+        try
+        {
+            UpdateItemOutcome outcome = metadataTable.updateItem(new UpdateItemSpec()
+                                     .withPrimaryKey(Fields.USERNAME, metadata.getUser(), Fields.ID, metadata.getId())
+                                     .withUpdateExpression("SET #owner = :owner, #until = :until")
+                                     .withConditionExpression("attribute_exists(#id) AND "
+                                                              + "(attribute_not_exists(#until) OR #until < :now OR #owner = :owner)")
+                                     .withNameMap(names)
+                                     .withValueMap(values)
+                                     .withReturnValues(ReturnValue.ALL_NEW));
+            return PhotoMetadata.fromDynamoItem(outcome.getItem());
+        }
+        catch (ConditionalCheckFailedException ex)
+        {
+            logger.debug("lease for photo {} is held by another owner", metadata.getId());
+            return null;
+        }
+    }
+
+
+    /**
+     *  Releases the processing lease, using a conditional update so that a lease that
+     *  has been taken over by another owner isn't affected.
+     */
+    @Override
+    public void releaseLease(PhotoMetadata metadata)
+    {
+        String owner = metadata.getLeaseOwner();
+        if (owner == null)
+            return;
+
+        logger.debug("release lease: photo {}, owner {}", metadata.getId(), owner);
+
+        Map<String,String> names = new HashMap<>();
+        names.put("#owner", Fields.LEASE_OWNER);
+        names.put("#until", Fields.LEASE_UNTIL);
+
+        try
+        {
+            metadataTable.updateItem(new UpdateItemSpec()
+                                     .withPrimaryKey(Fields.USERNAME, metadata.getUser(), Fields.ID, metadata.getId())
+                                     .withUpdateExpression("REMOVE #owner, #until")
+                                     .withConditionExpression("#owner = :owner")
+                                     .withNameMap(names)
+                                     .withValueMap(Collections.singletonMap(":owner", owner)));
+        }
+        catch (ConditionalCheckFailedException ex)
+        {
+            logger.warn("lease for photo {} was no longer held by {}", metadata.getId(), owner);
+        }
+        metadata.clearLease();
+    }
+
+
+    @Override
+    public void connect()
+    {
+        logger.debug("connecting to table {}", metadataTable.getTableName());
+        try
+        {
+            // this isn't a valid hash, so won't find anything
+            metadataTable.getItem(Fields.USERNAME, CONTENT_INDEX_PARTITION, Fields.ID, "#connect");
+        }
+        catch (Exception ex)
+        {
+            logger.warn("unexpected exception connecting to DynamoDB", ex);
+        }
+    }
+
 //----------------------------------------------------------------------------
 //  Internals
 //----------------------------------------------------------------------------
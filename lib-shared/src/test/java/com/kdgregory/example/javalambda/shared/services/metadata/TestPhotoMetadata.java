@@ -123,6 +123,103 @@ public class TestPhotoMetadata
     }
 
 
+    @Test
+    public void testAliases() throws Exception
+    {
+        Map<String,String> aliases = new HashMap<>();
+        aliases.put(Sizes.W1024H768.name(), Sizes.ORIGINAL.name());
+
+        PhotoMetadata meta = new PhotoMetadata(TEST_ID, TEST_USER, TEST_FILE, TEST_MIME, TEST_DESC, TEST_TIMESTAMP, TEST_SIZES_STR, aliases);
+
+        assertEquals("stored size for alias",           Sizes.ORIGINAL,     meta.getStoredSize(Sizes.W1024H768));
+        assertEquals("stored size for non-alias",       Sizes.ORIGINAL,     meta.getStoredSize(Sizes.ORIGINAL));
+
+        Map<String,Object> clientMap = meta.toClientMap();
+        List<Map<String,Object>> sizes = (List<Map<String,Object>>)clientMap.get(Fields.SIZES);
+        assertEquals("client aliases",                  aliases,            clientMap.get(Fields.ALIASES));
+        assertEquals("client stored size for alias",    "ORIGINAL",         sizes.get(1).get("stored"));
+
+        Item item = meta.toDynamoItem();
+        assertEquals("Dynamo aliases",                  aliases,            item.getMap(Fields.ALIASES));
+
+        PhotoMetadata meta2 = PhotoMetadata.fromDynamoItem(item);
+        assertEquals("round-trip aliases",              meta.getAliases(),  meta2.getAliases());
+
+        PhotoMetadata meta3 = PhotoMetadata.fromDynamoItem(new PhotoMetadata(TEST_ID, TEST_USER, TEST_FILE, TEST_MIME, TEST_DESC, TEST_TIMESTAMP, TEST_SIZES_STR).toDynamoItem());
+        assertEquals("no aliases",                      Collections.emptyMap(), meta3.getAliases());
+    }
+
+
+    @Test
+    public void testRejected() throws Exception
+    {
+        PhotoMetadata meta = new PhotoMetadata(TEST_ID, TEST_USER, TEST_FILE, TEST_MIME, TEST_DESC, TEST_TIMESTAMP, TEST_SIZES_STR);
+        assertNull("not rejected by default",           meta.getRejected());
+        assertNull("not in client map",                 meta.toClientMap().get(Fields.REJECTED));
+        assertNull("not in Dynamo item",                meta.toDynamoItem().getString(Fields.REJECTED));
+
+        meta.setRejected("too large");
+        assertEquals("client map",                      "too large",        meta.toClientMap().get(Fields.REJECTED));
+
+        PhotoMetadata meta2 = PhotoMetadata.fromDynamoItem(meta.toDynamoItem());
+        assertEquals("round-trip",                      "too large",        meta2.getRejected());
+    }
+
+
+    @Test
+    public void testContentId() throws Exception
+    {
+        PhotoMetadata meta = new PhotoMetadata(TEST_ID, TEST_USER, TEST_FILE, TEST_MIME, TEST_DESC, TEST_TIMESTAMP, TEST_SIZES_STR);
+        assertEquals("defaults to own ID",              TEST_ID,            meta.getContentId());
+        assertEquals("client map, default",             TEST_ID,            meta.toClientMap().get(Fields.CONTENT_ID));
+        assertNull("not in Dynamo item by default",                         meta.toDynamoItem().getString(Fields.CONTENT_ID));
+
+        meta.setContentId("efgh");
+        assertEquals("client map, explicit",            "efgh",             meta.toClientMap().get(Fields.CONTENT_ID));
+
+        PhotoMetadata meta2 = PhotoMetadata.fromDynamoItem(meta.toDynamoItem());
+        assertEquals("round-trip",                      "efgh",             meta2.getContentId());
+    }
+
+
+    @Test
+    public void testLease() throws Exception
+    {
+        PhotoMetadata meta = new PhotoMetadata(TEST_ID, TEST_USER, TEST_FILE, TEST_MIME, TEST_DESC, TEST_TIMESTAMP, TEST_SIZES_STR);
+        assertNull("no lease by default",               meta.getLeaseOwner());
+        assertFalse("not in Dynamo item by default",    meta.toDynamoItem().isPresent(Fields.LEASE_OWNER));
+
+        meta.setLease("me", Long.valueOf(12345L));
+        assertNull("not in client map",                 meta.toClientMap().get(Fields.LEASE_OWNER));
+
+        PhotoMetadata meta2 = PhotoMetadata.fromDynamoItem(meta.toDynamoItem());
+        assertEquals("round-trip owner",                "me",               meta2.getLeaseOwner());
+        assertEquals("round-trip expiration",           Long.valueOf(12345L), meta2.getLeaseUntil());
+
+        meta2.clearLease();
+        assertFalse("cleared",                          meta2.toDynamoItem().isPresent(Fields.LEASE_UNTIL));
+    }
+
+
+    @Test
+    public void testMissingSizes() throws Exception
+    {
+        PhotoMetadata uploaded = new PhotoMetadata(TEST_ID, TEST_USER, TEST_FILE, TEST_MIME, TEST_DESC, TEST_TIMESTAMP, Collections.emptyList());
+        assertNull("not reported before processing",    uploaded.toClientMap().get(Fields.MISSING));
+
+        PhotoMetadata meta = new PhotoMetadata(TEST_ID, TEST_USER, TEST_FILE, TEST_MIME, TEST_DESC, TEST_TIMESTAMP, TEST_SIZES_STR);
+        List<Map<String,Object>> missing = (List<Map<String,Object>>)meta.toClientMap().get(Fields.MISSING);
+        Set<Object> missingNames = missing.stream().map(m -> m.get("name")).collect(Collectors.toSet());
+        assertEquals("missing sizes",                   Sizes.values().length - TEST_SIZES.size(),  missing.size());
+        assertFalse("present size not missing",         missingNames.contains(Sizes.W1024H768.name()));
+        assertTrue("absent size missing",               missingNames.contains(Sizes.THUMB.name()));
+        assertNull("not stored in Dynamo",              meta.toDynamoItem().get(Fields.MISSING));
+
+        meta.setRejected("too large");
+        assertNull("not reported for rejected photo",   meta.toClientMap().get(Fields.MISSING));
+    }
+
+
     @Test
     public void testCompartor() throws Exception
     {
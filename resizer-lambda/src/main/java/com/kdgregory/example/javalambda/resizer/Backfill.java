@@ -0,0 +1,289 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.kdgregory.example.javalambda.shared.config.Environment;
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+import com.kdgregory.example.javalambda.shared.services.ContentService;
+import com.kdgregory.example.javalambda.shared.services.MetadataService;
+import com.kdgregory.example.javalambda.shared.services.MetadataService.ScanPage;
+import com.kdgregory.example.javalambda.shared.services.impl.ContentServiceImpl;
+import com.kdgregory.example.javalambda.shared.services.impl.MetadataServiceImpl;
+
+
+/**
+ *  Produces missing sizes for existing photos, typically after a size has been
+ *  added to {@link Sizes}. This is run from the command line (see {@link #main}),
+ *  not as a Lambda.
+ *  <p>
+ *  The metadata table is scanned in parallel segments, on a pool of worker threads;
+ *  each worker scans one segment at a time. Photos that have an original but are
+ *  missing any of the eagerly rendered sizes (see {@link Resizer#getEagerSizes}),
+ *  and haven't been rejected, are passed to {@link Resizer#backfill} at a limited
+ *  rate. That method takes the same lease as notification processing, so the
+ *  backfill may run while the Resizer Lambda is active. Since the sizes being
+ *  produced are normally much smaller than the original, the Resizer decodes it at
+ *  reduced resolution (see {@link com.kdgregory.example.javalambda.resizer.decode.DecodePlanner}).
+ *  <p>
+ *  A photo that shares another photo's content (see {@link PhotoMetadata#getContentId})
+ *  takes its sizes from that photo, so that photo is backfilled first.
+ *  <p>
+ *  Progress is saved in a {@link BackfillCheckpoint} after each page of each segment
+ *  has been processed; when restarted, the backfill resumes from there. Photos that
+ *  fail are logged, but don't stop the backfill; running it again with a new
+ *  checkpoint will retry them (photos that already have all sizes are skipped).
+ */
+public class Backfill
+{
+    private final static int PAGE_SIZE = 100;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private MetadataService metadataService;
+    private Resizer resizer;
+    private BackfillCheckpoint checkpoint;
+    private int threads;
+    private RateLimiter rateLimiter;
+
+    private LongAdder scanned = new LongAdder();
+    private LongAdder processed = new LongAdder();
+    private LongAdder failed = new LongAdder();
+
+
+    /**
+     *  @param  metadataService The service used to scan photos.
+     *  @param  resizer         The Resizer that processes photos; it should use the
+     *                          same metadata service.
+     *  @param  checkpoint      Holds the progress of the backfill, and determines the
+     *                          number of scan segments.
+     *  @param  threads         The number of segments processed concurrently.
+     *  @param  photosPerSecond The maximum rate at which photos are processed; 0 for
+     *                          no limit.
+     */
+    public Backfill(MetadataService metadataService, Resizer resizer, BackfillCheckpoint checkpoint, int threads, int photosPerSecond)
+    {
+        this.metadataService = metadataService;
+        this.resizer = resizer;
+        this.checkpoint = checkpoint;
+        this.threads = Math.max(1, threads);
+        this.rateLimiter = new RateLimiter(photosPerSecond);
+    }
+
+
+    /**
+     *  Runs a backfill using the deployed services. In addition to the variables used
+     *  by the Resizer Lambda, this is configured by <code>BACKFILL_SEGMENTS</code>
+     *  (default 8), <code>BACKFILL_THREADS</code> (default 4), <code>BACKFILL_RATE</code>
+     *  (photos per second, default 10), and <code>BACKFILL_CHECKPOINT</code> (the
+     *  checkpoint file, default <code>backfill.properties</code>).
+     *  <p>
+     *  Exits with status 1 if the backfill was interrupted or any photos failed.
+     */
+    public static void main(String[] argv)
+    throws Exception
+    {
+        String uploadBucket = Environment.getOrThrow(Environment.S3_UPLOAD_BUCKET);
+        MetadataService metadataService = new MetadataServiceImpl(
+                    Environment.getOrThrow(Environment.DYNAMO_TABLE));
+        ContentService contentService = new ContentServiceImpl(
+                    uploadBucket,
+                    Environment.getOrThrow(Environment.S3_IMAGE_BUCKET));
+
+        BackfillCheckpoint checkpoint = new BackfillCheckpoint(
+                    new File(Environment.getOrDefault(Environment.BACKFILL_CHECKPOINT, "backfill.properties")),
+                    Environment.getOrDefault(Environment.BACKFILL_SEGMENTS, 8));
+
+        Backfill backfill = new Backfill(metadataService,
+                                         new Resizer(uploadBucket, metadataService, contentService),
+                                         checkpoint,
+                                         Environment.getOrDefault(Environment.BACKFILL_THREADS, 4),
+                                         Environment.getOrDefault(Environment.BACKFILL_RATE, 10));
+
+        boolean complete = backfill.run();
+        System.exit((complete && (backfill.getFailed() == 0)) ? 0 : 1);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Processes all segments that aren't already complete. Returns true if all
+     *  segments were completed, false if any stopped because of an exception (the
+     *  checkpoint allows them to be resumed).
+     */
+    public boolean run()
+    throws InterruptedException
+    {
+        int totalSegments = checkpoint.getTotalSegments();
+        logger.info("starting backfill: {} segments, {} threads", totalSegments, threads);
+
+        // threads are daemons so that a failed backfill doesn't prevent exit
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "resizer-backfill");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int segment = 0 ; segment < totalSegments ; segment++)
+        {
+            if (checkpoint.isComplete(segment))
+            {
+                logger.debug("segment {} already complete", segment);
+                continue;
+            }
+
+            int currentSegment = segment;
+            futures.add(pool.submit(() -> {
+                MDC.put("segment", String.valueOf(currentSegment));
+                try
+                {
+                    processSegment(currentSegment);
+                    return null;
+                }
+                finally
+                {
+                    MDC.clear();
+                }
+            }));
+        }
+
+        boolean complete = true;
+        try
+        {
+            for (Future<?> future : futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException ex)
+                {
+                    logger.error("backfill segment failed", ex.getCause());
+                    complete = false;
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        logger.info("backfill {}: scanned {} photos, processed {}, {} failed",
+                    complete ? "complete" : "incomplete", getScanned(), getProcessed(), getFailed());
+        return complete;
+    }
+
+
+    /**
+     *  Returns the number of photos examined by the scan.
+     */
+    public long getScanned()
+    {
+        return scanned.sum();
+    }
+
+
+    /**
+     *  Returns the number of photos that were passed to the Resizer and succeeded.
+     */
+    public long getProcessed()
+    {
+        return processed.sum();
+    }
+
+
+    /**
+     *  Returns the number of photos that were passed to the Resizer and failed.
+     */
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Scans a segment from its last checkpoint, processing each page before saving
+     *  the checkpoint for the next.
+     */
+    private void processSegment(int segment)
+    throws Exception
+    {
+        String key = checkpoint.getResumeKey(segment);
+        logger.info("processing segment {}{}", segment, (key != null) ? ", resuming after " + key : "");
+        do
+        {
+            ScanPage page = metadataService.scan(segment, checkpoint.getTotalSegments(), key, PAGE_SIZE);
+            for (PhotoMetadata metadata : page.getPhotos())
+            {
+                scanned.increment();
+                if (isMissingSizes(metadata))
+                {
+                    process(metadata);
+                }
+            }
+
+            key = page.getNextKey();
+            checkpoint.update(segment, key);
+        }
+        while (key != null);
+        logger.info("segment {} complete", segment);
+    }
+
+
+    /**
+     *  Determines whether a photo should be backfilled: whether it's missing any of the
+     *  sizes that the Resizer renders eagerly (others are rendered on request). Photos
+     *  without an original are still waiting to be processed after upload, and are left
+     *  to the Lambda.
+     */
+    private boolean isMissingSizes(PhotoMetadata metadata)
+    {
+        return (metadata.getRejected() == null)
+            && metadata.getSizes().contains(Sizes.ORIGINAL)
+            && ! metadata.getSizes().containsAll(resizer.getEagerSizes());
+    }
+
+
+    private void process(PhotoMetadata metadata)
+    throws InterruptedException
+    {
+        String photoId = metadata.getId();
+        String contentId = metadata.getContentId();
+        if (! photoId.equals(contentId))
+        {
+            // if this fails, so will the photo that shares its content
+            rateLimiter.acquire();
+            resizer.backfill(contentId);
+        }
+
+        rateLimiter.acquire();
+        if (resizer.backfill(photoId))
+        {
+            processed.increment();
+        }
+        else
+        {
+            logger.warn("failed to backfill photo {}", photoId);
+            failed.increment();
+        }
+    }
+}
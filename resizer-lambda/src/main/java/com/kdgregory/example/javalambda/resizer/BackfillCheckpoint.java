@@ -0,0 +1,120 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+
+/**
+ *  Records the progress of a {@link Backfill}, so that it can be resumed after
+ *  being interrupted. For each segment of the scan, this holds the key to resume
+ *  after the last page that was completely processed, or a marker indicating that
+ *  the segment is complete.
+ *  <p>
+ *  The checkpoint is kept in a properties file, which is rewritten (via a temporary
+ *  file and rename) on each update. It also records the number of segments, since
+ *  a scan can't be resumed with a different number.
+ */
+public class BackfillCheckpoint
+{
+    private final static String SEGMENTS        = "segments";
+    private final static String SEGMENT_PREFIX  = "segment.";
+    private final static String COMPLETE        = "#complete";
+
+    private File file;
+    private Properties props = new Properties();
+    private int totalSegments;
+
+
+    /**
+     *  Opens a checkpoint file, creating it if it doesn't already exist. Throws if
+     *  the file exists but was written for a different number of segments.
+     */
+    public BackfillCheckpoint(File file, int totalSegments)
+    throws IOException
+    {
+        this.file = file;
+        this.totalSegments = totalSegments;
+
+        if (file.exists())
+        {
+            try (InputStream in = new FileInputStream(file))
+            {
+                props.load(in);
+            }
+
+            String saved = props.getProperty(SEGMENTS);
+            if (! String.valueOf(totalSegments).equals(saved))
+                throw new IllegalStateException("checkpoint " + file + " was written for " + saved + " segments, not " + totalSegments);
+        }
+        else
+        {
+            props.setProperty(SEGMENTS, String.valueOf(totalSegments));
+            save();
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    public int getTotalSegments()
+    {
+        return totalSegments;
+    }
+
+
+    /**
+     *  Returns true if the specified segment has been completely processed.
+     */
+    public synchronized boolean isComplete(int segment)
+    {
+        return COMPLETE.equals(props.getProperty(SEGMENT_PREFIX + segment));
+    }
+
+
+    /**
+     *  Returns the key to resume the specified segment, null if it hasn't been
+     *  started (or has been completed).
+     */
+    public synchronized String getResumeKey(int segment)
+    {
+        String value = props.getProperty(SEGMENT_PREFIX + segment);
+        return COMPLETE.equals(value) ? null : value;
+    }
+
+
+    /**
+     *  Records the key to resume the specified segment, and saves the checkpoint.
+     *  A null key means that the segment is complete.
+     */
+    public synchronized void update(int segment, String resumeKey)
+    throws IOException
+    {
+        props.setProperty(SEGMENT_PREFIX + segment, (resumeKey != null) ? resumeKey : COMPLETE);
+        save();
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void save()
+    throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile))
+        {
+            props.store(out, "backfill checkpoint");
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,196 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.awt.Rectangle;
+import java.util.Collection;
+
+import com.kdgregory.example.javalambda.resizer.decode.DecodePlanner;
+import com.kdgregory.example.javalambda.resizer.decode.RenditionGeometry;
+
+
+/**
+ *  Decides whether an image can be processed within the Resizer's memory budget,
+ *  based on the dimensions read from its header. This happens before the image is
+ *  downloaded, so that a huge image (or a decompression bomb) doesn't exhaust the
+ *  heap or the Lambda's timeout.
+ *  <p>
+ *  The projection counts the decoded source (at the subsampling that the decode
+ *  planner will choose) and the renditions, at four bytes per pixel. The estimate
+ *  used for a reservation also counts encoded content: the buffered original (and
+ *  its copy, when ingesting), and the encoded renditions waiting to be uploaded, at
+ *  one byte per pixel, which is generous for JPEG. It ignores smaller allocations,
+ *  so the budget should leave headroom. In tiled mode, only a strip of the source
+ *  is decoded at one time, so the projection counts the strip size rather than the
+ *  decoded source.
+ *  <p>
+ *  Pooled images and buffers are not part of any reservation, so the Resizer gives
+ *  its {@link MemoryGate} the budget less the maximum size of those pools.
+ */
+public class MemoryBudget
+{
+    /**
+     *  The possible outcomes of {@link #check}.
+     */
+    public enum Decision
+    {
+        /** The image can be processed normally. */
+        PROCESS,
+
+        /**
+         *  The image can be processed if the Resizer minimizes its memory use: no
+         *  oversampling, no pooled images, and renditions produced sequentially.
+         */
+        LOW_MEMORY,
+
+        /**
+         *  The image can be processed if it's decoded and scaled in horizontal strips,
+         *  rather than as a whole.
+         */
+        TILED,
+
+        /** The image can't be processed within the budget. */
+        REJECT
+    }
+
+
+    private final static int BYTES_PER_PIXEL = 4;
+
+    // the original is buffered for decoding, and again for storage when ingesting
+    private final static int ENCODED_BYTES_PER_PIXEL = 1;
+    private final static int ENCODED_ORIGINAL_COPIES = 2;
+
+    private long maxBytes;
+    private DecodePlanner normalPlanner;
+    private DecodePlanner lowMemoryPlanner;
+    private long stripBytes;
+
+
+    /**
+     *  @param  maxBytes            The memory available for image processing.
+     *  @param  normalPlanner       The decode planner used for normal processing.
+     *  @param  lowMemoryPlanner    The decode planner used for low-memory processing.
+     *  @param  stripBytes          The maximum size of a decoded strip in tiled mode.
+     */
+    public MemoryBudget(long maxBytes, DecodePlanner normalPlanner, DecodePlanner lowMemoryPlanner, long stripBytes)
+    {
+        this.maxBytes = maxBytes;
+        this.normalPlanner = normalPlanner;
+        this.lowMemoryPlanner = lowMemoryPlanner;
+        this.stripBytes = stripBytes;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the budget, in bytes.
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+
+    /**
+     *  Decides how to process an image, given the geometries of the renditions that
+     *  will be produced from it.
+     *
+     *  @param  geometries  The renditions to be produced.
+     *  @param  inUse       Memory already committed to pooled images; this must fit
+     *                      along with the normal projection, but will be released for
+     *                      low-memory processing.
+     */
+    public Decision check(Collection<RenditionGeometry> geometries, long inUse)
+    {
+        if (inUse + estimate(Decision.PROCESS, geometries) <= maxBytes)
+            return Decision.PROCESS;
+
+        if (estimate(Decision.LOW_MEMORY, geometries) <= maxBytes)
+            return Decision.LOW_MEMORY;
+
+        if (estimate(Decision.TILED, geometries) <= maxBytes)
+            return Decision.TILED;
+
+        return Decision.REJECT;
+    }
+
+
+    /**
+     *  Returns the projected memory needed to produce the passed geometries in the
+     *  specified mode, including encoded content (0 for <code>REJECT</code>).
+     */
+    public long estimate(Decision decision, Collection<RenditionGeometry> geometries)
+    {
+        switch (decision)
+        {
+            case PROCESS :
+                return projectedBytes(geometries, normalPlanner, true) + encodedBytes(geometries);
+            case LOW_MEMORY :
+                return projectedBytes(geometries, lowMemoryPlanner, false) + encodedBytes(geometries);
+            case TILED :
+                return geometries.isEmpty() ? 0 : stripBytes + renditionBytes(geometries, true)
+                                                  + encodedRenditionBytes(geometries);
+            default :
+                return 0;
+        }
+    }
+
+
+    /**
+     *  Returns the projected memory needed to produce the passed geometries, using the
+     *  passed planner. If <code>concurrent</code> is true, all renditions are assumed
+     *  to exist at the same time; otherwise, only the largest is counted.
+     */
+    public static long projectedBytes(Collection<RenditionGeometry> geometries, DecodePlanner planner, boolean concurrent)
+    {
+        Rectangle region = planner.region(geometries);
+        if (region == null)
+            return 0;
+
+        long subsampling = planner.subsampling(geometries);
+        long decoded = ((region.width + subsampling - 1) / subsampling)
+                     * ((region.height + subsampling - 1) / subsampling);
+
+        return decoded * BYTES_PER_PIXEL + renditionBytes(geometries, concurrent);
+    }
+
+
+    /**
+     *  Returns the memory needed for encoded content: the original (approximated by
+     *  the region that's decoded), and the renditions, which may all be waiting for
+     *  upload.
+     */
+    private long encodedBytes(Collection<RenditionGeometry> geometries)
+    {
+        Rectangle region = normalPlanner.region(geometries);
+        if (region == null)
+            return 0;
+
+        long original = (long)region.width * region.height * ENCODED_BYTES_PER_PIXEL * ENCODED_ORIGINAL_COPIES;
+        return original + encodedRenditionBytes(geometries);
+    }
+
+
+    private static long encodedRenditionBytes(Collection<RenditionGeometry> geometries)
+    {
+        return renditionBytes(geometries, true) / BYTES_PER_PIXEL * ENCODED_BYTES_PER_PIXEL;
+    }
+
+
+    /**
+     *  Returns the memory needed for the renditions: either all of them, or (if not
+     *  concurrent) the largest.
+     */
+    private static long renditionBytes(Collection<RenditionGeometry> geometries, boolean concurrent)
+    {
+        long renditions = 0;
+        for (RenditionGeometry geometry : geometries)
+        {
+            long pixels = (long)geometry.getWidth() * geometry.getHeight();
+            renditions = concurrent ? renditions + pixels : Math.max(renditions, pixels);
+        }
+        return renditions * BYTES_PER_PIXEL;
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.concurrent.Semaphore;
+
+
+/**
+ *  Limits the total projected memory of images that are being processed at the
+ *  same time. Each image reserves its projection (from {@link MemoryBudget})
+ *  before it's downloaded, blocking until enough of the budget is available, and
+ *  releases its reservation when done.
+ *  <p>
+ *  Reservations are granted in the order requested, so that a large image isn't
+ *  starved by a stream of small ones. A reservation larger than the budget is
+ *  reduced to the full budget: it must wait for all other images to finish, and
+ *  then runs alone.
+ *  <p>
+ *  The budget is tracked in kilobytes, since a semaphore can't count bytes of a
+ *  large heap.
+ */
+public class MemoryGate
+{
+    private final static long UNIT = 1024;
+
+    private int totalUnits;
+    private Semaphore semaphore;
+
+
+    public MemoryGate(long maxBytes)
+    {
+        totalUnits = (int)Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / UNIT));
+        semaphore = new Semaphore(totalUnits, true);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Blocks until the requested amount of memory is available, and returns the
+     *  reservation, which must be passed to {@link #release}.
+     */
+    public int acquire(long bytes)
+    throws InterruptedException
+    {
+        int units = (int)Math.min(totalUnits, (bytes + UNIT - 1) / UNIT);
+        semaphore.acquire(units);
+        return units;
+    }
+
+
+    /**
+     *  Releases a reservation returned by {@link #acquire}.
+     */
+    public void release(int reservation)
+    {
+        semaphore.release(reservation);
+    }
+
+
+    /**
+     *  Returns the amount of memory that's not currently reserved, in bytes.
+     */
+    public long getAvailableBytes()
+    {
+        return semaphore.availablePermits() * UNIT;
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.services.MetadataService;
+
+
+/**
+ *  The lease that an invocation holds on a photo's metadata while processing it, so
+ *  that duplicate notifications don't cause the photo to be processed twice. See
+ *  {@link MetadataService#acquireLease}.
+ *  <p>
+ *  The lease is normally released by {@link #storeFinal}, which writes the photo's
+ *  final metadata. If processing doesn't get that far, {@link #close} releases it
+ *  explicitly; if the invocation dies, it expires and may be taken over by a retry.
+ *  <p>
+ *  All stores are conditional on the lease still being held by this owner: if it
+ *  has expired and been taken over, the store fails, and the caller must treat the
+ *  photo as not processed. To avoid that, the lease duration must be longer than
+ *  an invocation can run.
+ */
+public class ProcessingLease
+implements AutoCloseable
+{
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private MetadataService metadataService;
+    private PhotoMetadata metadata;
+    private String owner;
+
+
+    private ProcessingLease(MetadataService metadataService, PhotoMetadata metadata, String owner)
+    {
+        this.metadataService = metadataService;
+        this.metadata = metadata;
+        this.owner = owner;
+    }
+
+
+    /**
+     *  Attempts to acquire the lease for a photo, returning null if another invocation
+     *  holds it.
+     *
+     *  @param  metadataService The service that holds the photo's metadata.
+     *  @param  metadata        The photo's metadata, as last retrieved.
+     *  @param  durationMillis  The duration of the lease.
+     */
+    public static ProcessingLease acquire(MetadataService metadataService, PhotoMetadata metadata, long durationMillis)
+    {
+        String owner = UUID.randomUUID().toString();
+        PhotoMetadata leased = metadataService.acquireLease(metadata, owner, System.currentTimeMillis() + durationMillis);
+        return (leased != null)
+             ? new ProcessingLease(metadataService, leased, owner)
+             : null;
+    }
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the photo's metadata as of acquiring the lease, which may reflect work
+     *  done by a previous lease holder. Processing updates this object, and it's saved
+     *  by {@link #store} or {@link #storeFinal}.
+     */
+    public PhotoMetadata getMetadata()
+    {
+        return metadata;
+    }
+
+
+    /**
+     *  Stores the metadata without releasing the lease. Returns false if unable to
+     *  store, which includes losing the lease.
+     */
+    public boolean store()
+    {
+        return metadataService.storeLeased(metadata, owner);
+    }
+
+
+    /**
+     *  Stores the metadata at the end of processing, releasing the lease. If unable to
+     *  store (including having lost the lease), the lease is retained in the metadata,
+     *  so that it will be released by {@link #close}.
+     */
+    public boolean storeFinal()
+    {
+        String leaseOwner = metadata.getLeaseOwner();
+        Long leaseUntil = metadata.getLeaseUntil();
+        metadata.clearLease();
+
+        boolean success = false;
+        try
+        {
+            success = metadataService.storeLeased(metadata, owner);
+            return success;
+        }
+        finally
+        {
+            if (! success)
+            {
+                metadata.setLease(leaseOwner, leaseUntil);
+            }
+        }
+    }
+
+
+    /**
+     *  Releases the lease, if it hasn't already been released by {@link #storeFinal}.
+     *  Failures are logged but otherwise ignored, since the lease will expire.
+     */
+    @Override
+    public void close()
+    {
+        if (metadata.getLeaseOwner() == null)
+            return;
+
+        try
+        {
+            metadataService.releaseLease(metadata);
+        }
+        catch (Exception ex)
+        {
+            logger.warn("failed to release lease for photo {}: {}", metadata.getId(), ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *  Limits the rate at which callers may proceed, by spacing permits evenly. There
+ *  is no burst allowance: a caller that arrives after a quiet period proceeds
+ *  immediately, but the next caller waits a full interval.
+ *  <p>
+ *  A rate of zero (or less) means unlimited.
+ */
+public class RateLimiter
+{
+    private long intervalNanos;
+    private long nextPermit;
+
+
+    public RateLimiter(int permitsPerSecond)
+    {
+        intervalNanos = (permitsPerSecond > 0)
+                      ? TimeUnit.SECONDS.toNanos(1) / permitsPerSecond
+                      : 0;
+        nextPermit = System.nanoTime();
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Blocks until the caller is permitted to proceed.
+     */
+    public void acquire()
+    throws InterruptedException
+    {
+        if (intervalNanos == 0)
+            return;
+
+        long delay;
+        synchronized (this)
+        {
+            long now = System.nanoTime();
+            long permit = Math.max(now, nextPermit);
+            nextPermit = permit + intervalNanos;
+            delay = permit - now;
+        }
+
+        if (delay > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+    }
+}
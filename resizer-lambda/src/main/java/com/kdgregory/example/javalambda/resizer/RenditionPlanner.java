@@ -0,0 +1,70 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.kdgregory.example.javalambda.resizer.decode.RenditionGeometry;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+/**
+ *  Identifies sizes that don't need to be rendered, because their output would be
+ *  the same as that of another size. Most commonly, this happens when the original
+ *  fits within the size: rather than upscale (which takes time and storage, and
+ *  produces a worse image than the browser would), we use the original. In general,
+ *  sizes with the same {@link RenditionGeometry} are collapsed into one, including
+ *  sizes that have already been rendered and stored (so that a size rendered later,
+ *  by a backfill or on request, can use one of them).
+ */
+public class RenditionPlanner
+{
+    /**
+     *  Returns a map from the passed sizes that don't need to be rendered to the size
+     *  that should be used in their place (which is either <code>ORIGINAL</code> or
+     *  another of the passed sizes).
+     */
+    public Map<Sizes,Sizes> aliases(int srcWidth, int srcHeight, Collection<Sizes> sizes)
+    {
+        return aliases(srcWidth, srcHeight, sizes, Collections.emptySet());
+    }
+
+
+    /**
+     *  Returns a map from the passed sizes that don't need to be rendered to the size
+     *  that should be used in their place: <code>ORIGINAL</code>, one of the stored
+     *  sizes, or another of the passed sizes, in that order of preference. The stored
+     *  sizes must have been rendered from the same original (not aliased).
+     */
+    public Map<Sizes,Sizes> aliases(int srcWidth, int srcHeight, Collection<Sizes> sizes, Collection<Sizes> stored)
+    {
+        Map<Sizes,Sizes> result = new EnumMap<>(Sizes.class);
+        Map<RenditionGeometry,Sizes> byGeometry = new HashMap<>();
+        byGeometry.put(RenditionGeometry.compute(srcWidth, srcHeight, Sizes.ORIGINAL), Sizes.ORIGINAL);
+
+        for (Sizes size : stored)
+        {
+            if (size != Sizes.ORIGINAL)
+            {
+                byGeometry.putIfAbsent(RenditionGeometry.compute(srcWidth, srcHeight, size), size);
+            }
+        }
+
+        for (Sizes size : Sizes.values())
+        {
+            if ((size == Sizes.ORIGINAL) || ! sizes.contains(size))
+                continue;
+
+            RenditionGeometry geometry = RenditionGeometry.compute(srcWidth, srcHeight, size);
+            Sizes existing = byGeometry.putIfAbsent(geometry, size);
+            if (existing != null)
+            {
+                result.put(size, existing);
+            }
+        }
+        return result;
+    }
+}
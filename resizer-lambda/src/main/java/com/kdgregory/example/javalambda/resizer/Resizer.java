@@ -1,27 +1,69 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.example.javalambda.resizer;
 
+import java.awt.Color;
+import java.awt.GradientPaint;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
 
+import org.crac.Core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import net.sf.kdgcommons.io.IOUtil;
+
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+import com.amazonaws.services.s3.event.S3EventNotification;
 import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
 
+import com.kdgregory.example.javalambda.resizer.decode.DecodePlanner;
+import com.kdgregory.example.javalambda.resizer.decode.ImageHeader;
+import com.kdgregory.example.javalambda.resizer.decode.ImageNormalizer;
+import com.kdgregory.example.javalambda.resizer.decode.ImageSource;
+import com.kdgregory.example.javalambda.resizer.decode.RenditionGeometry;
+import com.kdgregory.example.javalambda.resizer.encode.EncodingParams;
+import com.kdgregory.example.javalambda.resizer.encode.ImageEncoder;
+import com.kdgregory.example.javalambda.resizer.pool.ByteChunkPool;
+import com.kdgregory.example.javalambda.resizer.pool.ChunkedOutputStream;
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+import com.kdgregory.example.javalambda.resizer.scaling.ScalingEngine;
+import com.kdgregory.example.javalambda.resizer.scaling.ScalingEngineType;
 import com.kdgregory.example.javalambda.shared.config.Environment;
+import com.kdgregory.example.javalambda.shared.data.FitMode;
 import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
 import com.kdgregory.example.javalambda.shared.data.Sizes;
 import com.kdgregory.example.javalambda.shared.services.ContentService;
@@ -34,24 +76,270 @@ import com.kdgregory.example.javalambda.shared.services.impl.MetadataServiceImpl
  *  Lambda handler invoked by image arriving in upload bucket. Verifies that we
  *  have metadata for that image, then moves it into images bucket and creates
  *  scaled images from it.
+ *  <p>
+ *  Renditions are produced on a fixed-size pool of worker threads, which share
+ *  the decoded source image. The size of this pool is controlled by the
+ *  <code>RESIZER_THREADS</code> environment variable, defaulting to the number
+ *  of available processors; set it to 1 to render sequentially on the handler
+ *  thread.
+ *  <p>
+ *  The algorithm used to scale each size is configurable, using the variable
+ *  <code>RESIZER_SCALING</code> (for all sizes) or <code>RESIZER_SCALING_SIZE</code>
+ *  (for a specific size); the value is one of the names from {@link ScalingEngineType}.
+ *  The default is <code>PROGRESSIVE</code>.
+ *  <p>
+ *  When only small sizes are needed, the original is decoded at reduced resolution;
+ *  see {@link DecodePlanner}. The <code>RESIZER_OVERSAMPLE</code> variable controls
+ *  how much resolution is retained beyond that of the largest size (default 2x).
+ *  If the original contains an embedded thumbnail that's large enough, it's used
+ *  to produce the <code>THUMB</code> size, and if that's the only pending size the
+ *  original isn't decoded at all.
+ *  <p>
+ *  Sizes may be "cascaded": produced from the next-larger size rather than from
+ *  the original. This is enabled by setting <code>RESIZER_CASCADE</code> (or
+ *  <code>RESIZER_CASCADE_SIZE</code>) to <code>true</code>. The scaling engine for
+ *  a cascaded step may be chosen separately from the engine used when that size is
+ *  produced from the original, with <code>RESIZER_CASCADE_SCALING</code> (or
+ *  <code>RESIZER_CASCADE_SCALING_SIZE</code>); it defaults to the latter.
+ *  <p>
+ *  Each size is fit to its dimensions according to its {@link FitMode}; see
+ *  {@link RenditionGeometry}. When all of the pending sizes are cropped, only the
+ *  region of the original that they cover is decoded. Sizes that would be the
+ *  same as the original aren't rendered; instead, they're recorded in the metadata
+ *  as aliases of the original. See {@link RenditionPlanner}.
+ *  <p>
+ *  Decoded images, renditions, and the buffers used for encoded content are taken
+ *  from pools that survive from one invocation to the next. The maximum size of
+ *  these pools, in megabytes, is controlled by <code>RESIZER_RASTER_POOL</code>
+ *  (default 192) and <code>RESIZER_BUFFER_POOL</code> (default 16).
+ *  <p>
+ *  Renditions are written by an {@link ImageEncoder}, using {@link EncodingParams}
+ *  that may be configured per size. Encoded renditions are passed to an {@link UploadStage},
+ *  which writes them to S3 on its own threads (<code>RESIZER_UPLOADS</code>, default 4;
+ *  0 uploads on the render thread), so that the upload of one rendition overlaps the
+ *  rendering of the next. The metadata is updated after all uploads complete. The time
+ *  spent in each stage is logged for each photo; see {@link StageTimings}.
+ *  <p>
+ *  Before downloading the original, the Resizer reads its header (using a ranged
+ *  read) and checks the projected memory use against a budget; see {@link MemoryBudget}.
+ *  The budget, in megabytes, is set by <code>RESIZER_MAX_MEMORY</code>, and defaults
+ *  to three quarters of the maximum heap size. Images that aren't recognized, or that
+ *  can't be processed within the budget, are marked as rejected in their metadata.
+ *  <p>
+ *  Images that are too large for even low-memory processing are processed in "tiled"
+ *  mode by a {@link TiledRenderer}: the original is decoded in horizontal strips, and
+ *  each strip is resampled for every pending size, so that the full decoded image
+ *  never exists in memory.
+ *  <p>
+ *  When a notification contains multiple records, they're processed concurrently
+ *  (up to <code>RESIZER_RECORDS</code>, default 4), with repeated keys processed
+ *  once. Each image reserves its projected memory from a {@link MemoryGate} before
+ *  it's downloaded, so that the images being processed together fit within the
+ *  memory budget, less the maximum size of the pools. A failure in one record
+ *  doesn't affect the others.
+ *  <p>
+ *  A new upload is normally "ingested": read from the upload bucket once into pooled
+ *  buffers, decoded from those buffers, and stored as the original by the same
+ *  {@link UploadStage} that stores renditions. Its SHA-256 hash is computed as it's
+ *  read, and looked up in a content index (see {@link UploadDeduplicator}) before it's
+ *  decoded; if another photo has the same content, this photo's metadata refers to
+ *  that photo's stored objects, and nothing is decoded or stored.
+ *  This is controlled by <code>RESIZER_INGEST</code> and <code>RESIZER_DEDUP</code>.
+ *  <p>
+ *  S3 may deliver a notification more than once, and the deliveries may be handled
+ *  by different invocations. To avoid processing a photo twice, an invocation takes
+ *  a lease on the photo's metadata before processing it (see {@link ProcessingLease});
+ *  an invocation that can't get the lease skips the photo. The lease duration, in
+ *  seconds, is set by <code>RESIZER_LEASE</code> (default 60). It must be longer
+ *  than the Lambda's timeout plus the time that a render request waits for another
+ *  invocation; otherwise a slow invocation can lose its lease, and its results will
+ *  be discarded. A warning is logged on first invocation if it isn't.
+ *  <p>
+ *  There are two handler functions: {@link #handler} is invoked directly by S3,
+ *  while {@link #sqsHandler} is invoked with batches of S3 notifications delivered
+ *  via an SQS queue. The latter reports the messages that failed, so that only they
+ *  are redelivered (this requires the event source mapping to enable
+ *  <code>ReportBatchItemFailures</code>).
+ *  <p>
+ *  When a size is added, existing photos are given that size by {@link Backfill},
+ *  which calls {@link #backfill} for each photo that's missing sizes.
+ *  <p>
+ *  By default, all sizes are rendered when a photo is uploaded. Setting
+ *  <code>RESIZER_EAGER</code> to a comma-separated list of size names limits this
+ *  to those sizes (the original is always stored); the others are rendered when
+ *  first requested, by the WebApp invoking {@link #renderHandler}.
+ *  <p>
+ *  When constructed by Lambda, the Resizer "primes" itself: it processes a small
+ *  generated image in each of the formats that it accepts, using the configured
+ *  engine and encoding parameters for each size, and makes a request to each AWS
+ *  service, so that the first photo doesn't pay for class loading, plugin discovery,
+ *  and connection setup. <code>RESIZER_PRIME</code> sets the number of passes over
+ *  the sample images (default 1; 0 disables priming). For runtimes that snapshot the
+ *  initialized environment, such as SnapStart, the Resizer registers {@link SnapshotHooks},
+ *  which re-establish connections after restore. Cold start timings are logged by a
+ *  {@link StartupTimer}.
  */
 public class Resizer
 {
+    private final static int CHUNK_SIZE = 64 * 1024;
+
+    // most headers fit in the initial read, but a JPEG's EXIF segment may be up to 64k
+    private final static int HEADER_SIZE     = 16 * 1024;
+    private final static int MAX_HEADER_SIZE = 256 * 1024;
+
+    // the maximum size of a decoded strip in tiled mode
+    private final static int STRIP_BYTES = 16 * 1024 * 1024;
+
+    // how long a render request waits for another invocation to finish with a photo;
+    // this is well under the API Gateway timeout, after which the client must retry
+    private final static int RENDER_RETRIES      = 4;
+    private final static long RENDER_RETRY_MILLIS = 500;
+
+    // priming processes a generated image in each format that ImageHeader recognizes;
+    // the sample is decoded with subsampling and then reduced, as with a real photo
+    private final static List<String> PRIME_FORMATS = Arrays.asList("jpeg", "png", "gif", "bmp");
+    private final static int PRIME_WIDTH        = 512;
+    private final static int PRIME_HEIGHT       = 384;
+    private final static int PRIME_SUBSAMPLING  = 2;
+    private final static int PRIME_REDUCTION    = 4;
+    private final static String PRIME_NOTIFICATION = "{\"Records\":[]}";
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     private String uploadBucket;
     private MetadataService metadataService;
     private ContentService contentService;
 
+    private int renderThreads;
+    private ExecutorService renderPool;
+
+    private int recordThreads;
+    private ExecutorService recordPool;
+
+    private Map<Sizes,ScalingEngine> scalingEngines = new EnumMap<>(Sizes.class);
+    private DecodePlanner decodePlanner;
+    private DecodePlanner lowMemoryPlanner;
+    private MemoryBudget memoryBudget;
+    private MemoryGate memoryGate;
+    private RenditionPlanner renditionPlanner = new RenditionPlanner();
+    private Map<Sizes,ScalingEngine> cascadeEngines = new EnumMap<>(Sizes.class);
+
+    private RasterPool rasterPool;
+    private ByteChunkPool chunkPool;
+    private ImageNormalizer normalizer;
+
+    private ImageEncoder encoder;
+    private Map<Sizes,EncodingParams> encodingParams = new EnumMap<>(Sizes.class);
+    private UploadStage uploadStage;
+    private boolean ingestUploads;
+    private boolean dedupUploads;
+    private UploadDeduplicator deduplicator;
+    private long leaseMillis;
+    private boolean leaseChecked;
+    private TiledRenderer tiledRenderer;
+    private Set<Sizes> eagerSizes = EnumSet.allOf(Sizes.class);
+
+    private StartupTimer startupTimer = new StartupTimer();
+    private SnapshotHooks snapshotHooks;
+
     public Resizer()
     {
-        uploadBucket = Environment.getOrThrow(Environment.S3_UPLOAD_BUCKET);
+        this(Environment.getOrThrow(Environment.S3_UPLOAD_BUCKET),
+             new MetadataServiceImpl(
+                    Environment.getOrThrow(Environment.DYNAMO_TABLE)),
+             new ContentServiceImpl(
+                    Environment.getOrThrow(Environment.S3_UPLOAD_BUCKET),
+                    Environment.getOrThrow(Environment.S3_IMAGE_BUCKET)));
 
-        metadataService = new MetadataServiceImpl(
-                            Environment.getOrThrow(Environment.DYNAMO_TABLE));
-        contentService = new ContentServiceImpl(
-                            uploadBucket,
-                            Environment.getOrThrow(Environment.S3_IMAGE_BUCKET));
+        startupTimer.initialized(prime(Environment.getOrDefault(Environment.RESIZER_PRIME, 1)));
+
+        // the context only holds a weak reference, so we must keep our own
+        snapshotHooks = new SnapshotHooks(this);
+        Core.getGlobalContext().register(snapshotHooks);
+    }
+
+
+    /**
+     *  Constructs an instance with explicit services; tuning parameters are still
+     *  taken from the environment. This is intended for testing.
+     */
+    public Resizer(String uploadBucket, MetadataService metadataService, ContentService contentService)
+    {
+        this.uploadBucket = uploadBucket;
+        this.metadataService = metadataService;
+        this.contentService = contentService;
+
+        renderThreads = Environment.getOrDefault(Environment.RESIZER_THREADS,
+                                                 Runtime.getRuntime().availableProcessors());
+        recordThreads = Environment.getOrDefault(Environment.RESIZER_RECORDS, 4);
+
+        rasterPool = new RasterPool(Environment.getOrDefault(Environment.RESIZER_RASTER_POOL, 192) * 1024L * 1024L);
+        chunkPool = new ByteChunkPool(CHUNK_SIZE,
+                                      Environment.getOrDefault(Environment.RESIZER_BUFFER_POOL, 16) * 1024 * 1024 / CHUNK_SIZE);
+        normalizer = new ImageNormalizer(rasterPool);
+        encoder = new ImageEncoder(chunkPool);
+        uploadStage = new UploadStage(contentService, Environment.getOrDefault(Environment.RESIZER_UPLOADS, 4));
+        ingestUploads = Boolean.parseBoolean(Environment.getOrDefault(Environment.RESIZER_INGEST, "true"));
+        dedupUploads = Boolean.parseBoolean(Environment.getOrDefault(Environment.RESIZER_DEDUP, "true"));
+        deduplicator = new UploadDeduplicator(metadataService);
+        leaseMillis = Environment.getOrDefault(Environment.RESIZER_LEASE, 60) * 1000L;
+
+        String eager = Environment.getOrDefault(Environment.RESIZER_EAGER, null);
+        if (eager != null)
+        {
+            eagerSizes = EnumSet.of(Sizes.ORIGINAL);
+            for (String sizeName : eager.split(","))
+            {
+                eagerSizes.add(Sizes.valueOf(sizeName.trim()));
+            }
+        }
+
+        for (Sizes size : Sizes.values())
+        {
+            String engineName = Environment.getForSize(Environment.RESIZER_SCALING, size,
+                                                       ScalingEngineType.PROGRESSIVE.name());
+            scalingEngines.put(size, ScalingEngineType.lookup(engineName).createEngine(rasterPool));
+            encodingParams.put(size, EncodingParams.fromEnvironment(size));
+
+            if (Boolean.parseBoolean(Environment.getForSize(Environment.RESIZER_CASCADE, size, "false")))
+            {
+                String cascadeEngineName = Environment.getForSize(Environment.RESIZER_CASCADE_SCALING, size, engineName);
+                cascadeEngines.put(size, ScalingEngineType.lookup(cascadeEngineName).createEngine(rasterPool));
+            }
+        }
+
+        decodePlanner = new DecodePlanner(Environment.getOrDefault(Environment.RESIZER_OVERSAMPLE, 2));
+        lowMemoryPlanner = new DecodePlanner(1);
+
+        long defaultBudget = Runtime.getRuntime().maxMemory() / 4 * 3 / (1024 * 1024);
+        memoryBudget = new MemoryBudget(Environment.getOrDefault(Environment.RESIZER_MAX_MEMORY, (int)defaultBudget) * 1024L * 1024L,
+                                        decodePlanner, lowMemoryPlanner, STRIP_BYTES);
+
+        // pooled images and buffers aren't part of any reservation, so the gate
+        // only hands out what's left after the pools reach their maximum size
+        long pooledBytes = rasterPool.getMaxBytes() + chunkPool.getMaxBytes();
+        memoryGate = new MemoryGate(memoryBudget.getMaxBytes() - pooledBytes);
+        if (pooledBytes >= memoryBudget.getMaxBytes())
+        {
+            logger.warn("pools ({} bytes) are as large as the memory budget ({} bytes); images will be processed one at a time",
+                        pooledBytes, memoryBudget.getMaxBytes());
+        }
+
+        renderPool = createRenderPool(renderThreads);
+
+        // threads are daemons so that they won't hold up JVM shutdown; Lambda will
+        // freeze them between invocations
+        if (recordThreads > 1)
+        {
+            recordPool = Executors.newFixedThreadPool(recordThreads, r -> {
+                Thread thread = new Thread(r, "resizer-record");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        tiledRenderer = new TiledRenderer(contentService, decodePlanner, rasterPool, chunkPool, normalizer, scalingEngines,
+                                          (renderPool != null) ? renderPool : Runnable::run, STRIP_BYTES);
     }
 
 
@@ -64,9 +352,419 @@ public class Resizer
         MDC.clear();
         MDC.put("requestId", lambdaContext.getAwsRequestId());
 
+        startupTimer.invoked();
+        checkLeaseDuration(lambdaContext);
         logger.info("received {} record(s)", event.getRecords().size());
 
-        for (S3EventNotificationRecord record : event.getRecords())
+        // a batch may contain multiple notifications for the same object
+        Set<String> keys = new LinkedHashSet<>();
+        addKeys(event.getRecords(), keys);
+
+        // there's no way to retry a direct invocation, so failures are simply logged
+        processAll(keys);
+    }
+
+
+    /**
+     *  Handles a batch of SQS messages, each of which contains an S3 notification.
+     *  The photos referenced by all messages are processed together, and any message
+     *  that references a photo that failed is reported in the response, so that it
+     *  will be redelivered. Messages that can't be parsed are logged and dropped,
+     *  since retrying them wouldn't help.
+     */
+    public SqsBatchResponse sqsHandler(SQSEvent event, Context lambdaContext)
+    {
+        MDC.clear();
+        MDC.put("requestId", lambdaContext.getAwsRequestId());
+
+        startupTimer.invoked();
+        checkLeaseDuration(lambdaContext);
+        logger.info("received {} message(s)", event.getRecords().size());
+
+        Map<String,Set<String>> keysByMessage = new LinkedHashMap<>();
+        Set<String> keys = new LinkedHashSet<>();
+        for (SQSMessage message : event.getRecords())
+        {
+            Set<String> messageKeys = new LinkedHashSet<>();
+            try
+            {
+                // S3 sends a test event, without records, when notifications are configured
+                S3EventNotification notification = S3EventNotification.parseJson(message.getBody());
+                if (notification.getRecords() != null)
+                {
+                    addKeys(notification.getRecords(), messageKeys);
+                }
+            }
+            catch (Exception ex)
+            {
+                logger.error("unable to parse message {}; it will be dropped", message.getMessageId(), ex);
+                continue;
+            }
+
+            keysByMessage.put(message.getMessageId(), messageKeys);
+            for (String key : messageKeys)
+            {
+                if (! keys.add(key))
+                {
+                    logger.debug("ignoring duplicate notification: {}", key);
+                }
+            }
+        }
+
+        Set<String> failed = processAll(keys);
+
+        SqsBatchResponse response = new SqsBatchResponse();
+        for (Map.Entry<String,Set<String>> entry : keysByMessage.entrySet())
+        {
+            if (! Collections.disjoint(entry.getValue(), failed))
+            {
+                response.addFailure(entry.getKey());
+            }
+        }
+
+        logger.info("{} of {} message(s) failed", response.getBatchItemFailures().size(), event.getRecords().size());
+        return response;
+    }
+
+
+    /**
+     *  Produces any sizes that an existing photo doesn't have. This retrieves the
+     *  current metadata for the photo, and is subject to the same lease as processing
+     *  a notification, so may be called while notifications are being processed.
+     *  Returns false if unable to process the photo.
+     */
+    public boolean backfill(String photoId)
+    {
+        return processKey(photoId);
+    }
+
+
+    /**
+     *  Returns the sizes that are rendered when a photo is uploaded (or backfilled);
+     *  this always includes the original.
+     */
+    public Set<Sizes> getEagerSizes()
+    {
+        return Collections.unmodifiableSet(eagerSizes);
+    }
+
+
+    /**
+     *  Handles a request from the WebApp to render a single size of a photo. The request
+     *  contains the photo's ID (<code>id</code>) and the name of the size (<code>size</code>);
+     *  the response is the photo's updated metadata, in the form sent to the client.
+     *  Exceptions are reported to the caller as a function error.
+     */
+    public Map<String,Object> renderHandler(Map<String,Object> request, Context lambdaContext)
+    throws InterruptedException
+    {
+        MDC.clear();
+        MDC.put("requestId", lambdaContext.getAwsRequestId());
+        startupTimer.invoked();
+        checkLeaseDuration(lambdaContext);
+
+        String photoId = (String)request.get(PhotoMetadata.Fields.ID);
+        String sizeName = (String)request.get("size");
+        logger.info("received render request: photo {}, size {}", photoId, sizeName);
+
+        if ((photoId == null) || (sizeName == null))
+            throw new IllegalArgumentException("render request must specify photo ID and size");
+
+        return render(photoId, Sizes.valueOf(sizeName)).toClientMap();
+    }
+
+
+    /**
+     *  Renders a single size of an existing photo, if it doesn't already have that size,
+     *  and returns the photo's updated metadata. If another invocation is processing the
+     *  photo, waits briefly for it to finish; if it's still processing, returns metadata
+     *  that doesn't have the size, and the caller should retry later. Throws if the photo
+     *  doesn't exist, hasn't been processed, or the size can't be rendered.
+     */
+    public PhotoMetadata render(String photoId, Sizes size)
+    throws InterruptedException
+    {
+        PhotoMetadata metadata = null;
+        for (int attempt = 0 ; attempt <= RENDER_RETRIES ; attempt++)
+        {
+            if (attempt > 0)
+            {
+                logger.debug("photo {} is being processed by another invocation; waiting", photoId);
+                Thread.sleep(RENDER_RETRY_MILLIS);
+            }
+
+            metadata = metadataService.retrieve(photoId);
+            if (metadata == null)
+                throw new ResizerException("no metadata for photo", photoId);
+            if (metadata.getSizes().contains(size))
+                return metadata;
+            if ((metadata.getRejected() != null) || ! metadata.getSizes().contains(Sizes.ORIGINAL))
+                throw new ResizerException("photo has not been processed", photoId);
+
+            // a photo that shares another photo's content takes its sizes from that photo,
+            // which may itself be held by another invocation
+            if (! photoId.equals(metadata.getContentId())
+                    && ! render(metadata.getContentId(), size).getSizes().contains(size))
+            {
+                return metadata;
+            }
+
+            if (! process(metadata, EnumSet.of(size)))
+                throw new ResizerException("failed to render " + size, photoId);
+
+            // process() also returns true if another invocation holds the lease
+            PhotoMetadata updated = metadataService.retrieve(photoId);
+            if (updated != null)
+            {
+                metadata = updated;
+                if (metadata.getSizes().contains(size))
+                    return metadata;
+            }
+        }
+
+        logger.info("photo {} is still being processed by another invocation; returning without {}", photoId, size);
+        return metadata;
+    }
+
+
+    /**
+     *  Exercises the code used to process a photo, without storing anything: connects
+     *  to the AWS services, then makes the specified number of passes over sample images
+     *  in each accepted format, decoding each and producing every size from it. Also
+     *  exercises notification parsing and content hashing. Failures are logged but
+     *  otherwise ignored, since they'll recur (and be reported) with a real photo.
+     *  Returns the elapsed time, in milliseconds; does nothing if passes is 0.
+     */
+    public long prime(int passes)
+    {
+        if (passes <= 0)
+        {
+            logger.info("priming disabled");
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        connect();
+
+        Map<String,byte[]> samples = new LinkedHashMap<>();
+        for (String format : PRIME_FORMATS)
+        {
+            try
+            {
+                samples.put(format, createSample(format));
+            }
+            catch (Exception ex)
+            {
+                logger.warn("unable to create {} sample for priming", format, ex);
+            }
+        }
+
+        for (int pass = 0 ; pass < passes ; pass++)
+        {
+            for (Map.Entry<String,byte[]> entry : samples.entrySet())
+            {
+                try
+                {
+                    primeFormat(entry.getKey(), entry.getValue());
+                }
+                catch (Exception ex)
+                {
+                    logger.warn("failed to prime {} processing", entry.getKey(), ex);
+                }
+            }
+        }
+
+        try
+        {
+            S3EventNotification.parseJson(PRIME_NOTIFICATION);
+            UploadDeduplicator.newDigest().digest(samples.getOrDefault("jpeg", new byte[0]));
+        }
+        catch (Exception ex)
+        {
+            logger.warn("failed to prime notification handling", ex);
+        }
+
+        // the sample's rasters are much smaller than a real photo's, so won't be reused
+        rasterPool.clear();
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        logger.info("primed {} format(s), {} pass(es), in {} ms", samples.size(), passes, elapsed);
+        return elapsed;
+    }
+
+//----------------------------------------------------------------------------
+//  Snapshot hooks -- called by SnapshotHooks
+//----------------------------------------------------------------------------
+
+    /**
+     *  Prepares for a snapshot of the execution environment, by discarding pooled
+     *  images so that they don't increase its size.
+     */
+    void beforeCheckpoint()
+    {
+        logger.info("preparing for snapshot");
+        rasterPool.clear();
+    }
+
+
+    /**
+     *  Re-establishes connections after the execution environment has been restored
+     *  from a snapshot; those that existed when the snapshot was taken are no longer
+     *  valid.
+     */
+    void afterRestore()
+    {
+        long start = System.currentTimeMillis();
+        connect();
+        startupTimer.restored(start);
+    }
+
+//----------------------------------------------------------------------------
+//  Test hooks
+//----------------------------------------------------------------------------
+
+    /**
+     *  Replaces the scaling engines for a size, which are otherwise configured from the
+     *  environment. A null cascade engine means that the size isn't cascaded.
+     */
+    void configureScaling(Sizes size, ScalingEngine engine, ScalingEngine cascadeEngine)
+    {
+        scalingEngines.put(size, engine);
+        if (cascadeEngine != null)
+            cascadeEngines.put(size, cascadeEngine);
+        else
+            cascadeEngines.remove(size);
+    }
+
+
+    /**
+     *  Replaces the render pool, whose size is otherwise configured from the environment.
+     *  A single thread means that sizes are rendered on the calling thread.
+     */
+    void configureRenderThreads(int threads)
+    {
+        if (renderPool != null)
+            renderPool.shutdown();
+
+        renderThreads = threads;
+        renderPool = createRenderPool(threads);
+        tiledRenderer = new TiledRenderer(contentService, decodePlanner, rasterPool, chunkPool, normalizer, scalingEngines,
+                                          (renderPool != null) ? renderPool : Runnable::run, STRIP_BYTES);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Creates the pool used to render sizes in parallel, returning null if there's
+     *  only one render thread. Threads are daemons so that they won't hold up JVM
+     *  shutdown; Lambda will freeze them between invocations.
+     */
+    private static ExecutorService createRenderPool(int threads)
+    {
+        if (threads <= 1)
+            return null;
+
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "resizer-render");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     *  Makes a request to each of the AWS services, so that connections are established
+     *  before the first photo is processed.
+     */
+    private void connect()
+    {
+        long start = System.nanoTime();
+        metadataService.connect();
+        contentService.connect();
+        logger.debug("connected to services in {} ms", (System.nanoTime() - start) / 1000000);
+    }
+
+
+    /**
+     *  Generates a sample image and encodes it in the specified format. PNGs have an
+     *  alpha channel, since that's common for PNG uploads and is decoded differently.
+     */
+    private static byte[] createSample(String format)
+    throws IOException
+    {
+        boolean alpha = format.equals("png");
+        BufferedImage img = new BufferedImage(PRIME_WIDTH, PRIME_HEIGHT,
+                                              alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        try
+        {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setPaint(new GradientPaint(0, 0, Color.BLUE, PRIME_WIDTH, PRIME_HEIGHT, new Color(255, 200, 0, alpha ? 128 : 255)));
+            g.fillRect(0, 0, PRIME_WIDTH, PRIME_HEIGHT);
+            g.setColor(Color.WHITE);
+            g.fillOval(PRIME_WIDTH / 4, PRIME_HEIGHT / 4, PRIME_WIDTH / 2, PRIME_HEIGHT / 2);
+        }
+        finally
+        {
+            g.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (! ImageIO.write(img, format, out))
+            throw new IOException("no ImageIO writer for " + format);
+        return out.toByteArray();
+    }
+
+
+    /**
+     *  Decodes a sample image, and produces every size from it using that size's
+     *  scaling engine and encoding parameters. The encoded renditions are discarded.
+     */
+    private void primeFormat(String format, byte[] sample)
+    throws IOException
+    {
+        String mimeType = "image/" + format;
+        try (ImageSource source = new ImageSource(sample))
+        {
+            Rectangle region = new Rectangle(0, 0, source.getWidth(), source.getHeight());
+            BufferedImage img = normalizer.replace(source.read(region, PRIME_SUBSAMPLING, rasterPool));
+            try
+            {
+                for (Sizes size : Sizes.values())
+                {
+                    if (size == Sizes.ORIGINAL)
+                        continue;
+
+                    BufferedImage dst = scalingEngines.get(size).scale(img, img.getWidth() / PRIME_REDUCTION,
+                                                                             img.getHeight() / PRIME_REDUCTION);
+                    try (ChunkedOutputStream out = new ChunkedOutputStream(chunkPool))
+                    {
+                        encoder.encode(dst, mimeType, encodingParams.get(size), out);
+                    }
+                    finally
+                    {
+                        rasterPool.release(dst);
+                    }
+                }
+            }
+            finally
+            {
+                rasterPool.release(img);
+            }
+        }
+    }
+
+
+    /**
+     *  Extracts the object keys from a list of S3 notification records, ignoring any
+     *  that don't refer to the upload bucket.
+     */
+    private void addKeys(List<S3EventNotificationRecord> records, Set<String> keys)
+    {
+        for (S3EventNotificationRecord record : records)
         {
             String bucket = record.getS3().getBucket().getName();
             String key = record.getS3().getObject().getKey();
@@ -77,111 +775,724 @@ public class Resizer
                 continue;
             }
 
+            keys.add(key);
+        }
+    }
+
+
+    /**
+     *  Processes the photos identified by the passed keys, concurrently if there's a
+     *  record pool and more than one key. Returns the keys that failed, after all have
+     *  been processed.
+     */
+    private Set<String> processAll(Collection<String> keys)
+    {
+        boolean parallel = (recordPool != null) && (keys.size() > 1);
+        Executor executor = parallel ? recordPool : Runnable::run;
+        Map<String,String> mdc = MDC.getCopyOfContextMap();
+
+        Map<String,CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        for (String key : keys)
+        {
+            futures.put(key, CompletableFuture.supplyAsync(() -> {
+                if (parallel) MDC.setContextMap(mdc);
+                try
+                {
+                    return processKey(key);
+                }
+                finally
+                {
+                    if (parallel) MDC.clear();
+                }
+            }, executor));
+        }
+
+        // processKey() doesn't throw, so join() simply waits
+        Set<String> failed = new LinkedHashSet<>();
+        for (Map.Entry<String,CompletableFuture<Boolean>> entry : futures.entrySet())
+        {
+            if (! entry.getValue().join().booleanValue())
+            {
+                failed.add(entry.getKey());
+            }
+        }
+        return failed;
+    }
+
+
+    /**
+     *  Retrieves the metadata for a single photo, and processes it. Returns false if
+     *  processing failed in a way that might succeed on retry; exceptions are logged,
+     *  so that they don't affect other photos in the same batch.
+     */
+    private boolean processKey(String key)
+    {
+        try
+        {
             PhotoMetadata metadata = metadataService.retrieve(key);
             if (metadata == null)
             {
                 logger.warn("ignoring notification with no associated metadata: {}", key);
-                continue;
+                return true;
             }
 
-            process(metadata);
+            return process(metadata, eagerSizes);
+        }
+        catch (Exception ex)
+        {
+            logger.error("exception when retrieving metadata for {}", key, ex);
+            return false;
         }
     }
 
 
-//----------------------------------------------------------------------------
-//  Internals
-//----------------------------------------------------------------------------
+    /**
+     *  Processes a photo to produce the specified sizes, unless there's nothing to do
+     *  or another invocation is already processing it. Returns false if unable to
+     *  process the photo; a photo that's being processed elsewhere counts as processed,
+     *  since that invocation will report its own failure.
+     *  <p>
+     *  While processing, the invocation holds a lease on the photo's metadata. This is
+     *  normally released by the final update to that metadata, and otherwise (for
+     *  example, if processing fails) is explicitly released before returning.
+     */
+    private boolean process(PhotoMetadata metadata, Set<Sizes> sizes)
+    {
+        String photoId = metadata.getId();
+        if (! isPending(metadata, sizes))
+        {
+            logger.info("nothing to do for photo {}", photoId);
+            return true;
+        }
+
+        ProcessingLease lease = ProcessingLease.acquire(metadataService, metadata, leaseMillis);
+        if (lease == null)
+        {
+            logger.info("photo {} is being processed by another invocation", photoId);
+            return true;
+        }
+
+        try (ProcessingLease leased = lease)
+        {
+            // the previous lease holder may have done the work
+            if (! isPending(leased.getMetadata(), sizes))
+            {
+                logger.info("photo {} was processed by another invocation", photoId);
+                return true;
+            }
+
+            return processLeased(leased, sizes);
+        }
+    }
+
+
+    /**
+     *  Determines whether a photo needs processing to produce the specified sizes.
+     */
+    private static boolean isPending(PhotoMetadata metadata, Set<Sizes> sizes)
+    {
+        return (metadata.getRejected() == null)
+            && ! metadata.getSizes().containsAll(sizes);
+    }
+
 
     /**
-     *  Saves versions of the photo for all supported sizes. This function may
-     *  be called on initial upload (in which case there will be no sizes), or
-     *  to produce additional sizes from an existing photo (functionality that
-     *  is not yet supported).
+     *  Saves versions of the photo for the specified sizes. This function may be
+     *  called on initial upload (in which case there will be no sizes), or to
+     *  produce additional sizes from an existing photo (by {@link #backfill} or
+     *  {@link #render}). Returns false if unable to process the photo (a rejected
+     *  photo counts as processed).
      */
-    private void process(PhotoMetadata metadata)
+    private boolean processLeased(ProcessingLease lease, Set<Sizes> sizes)
     {
+        PhotoMetadata metadata = lease.getMetadata();
         String photoId = metadata.getId();
         logger.info("processing photo {} for user {}", photoId, metadata.getUser());
         try
         {
-            // at the current time, this will always be true for an uploaded photo
-            if (! metadata.getSizes().contains(Sizes.ORIGINAL))
+            // a photo that shares another photo's content can only take its sizes
+            // from that photo, since it doesn't have its own original
+            if (! photoId.equals(metadata.getContentId()))
             {
-                contentService.moveUploadToImageBucket(photoId);
-                metadata.getSizes().add(Sizes.ORIGINAL);
+                if (deduplicator.reuseContent(lease, metadata.getContentId(), sizes))
+                    return true;
+
+                logger.warn("photo {} shares content with photo {}, which isn't complete", photoId, metadata.getContentId());
+                return false;
             }
 
-            BufferedImage img = loadImage(photoId);
+            // at the current time, this will always be true for an uploaded photo; unless
+            // disabled, the upload is copied to the image bucket while it's being decoded
+            boolean ingest = ! metadata.getSizes().contains(Sizes.ORIGINAL);
+            if (ingest && ! ingestUploads)
+            {
+                moveOriginal(lease);
+                ingest = false;
+            }
 
+            List<Sizes> pending = new ArrayList<>();
             for (Sizes size : Sizes.values())
             {
-                if (! metadata.getSizes().contains(size))
+                if ((size != Sizes.ORIGINAL) && sizes.contains(size) && ! metadata.getSizes().contains(size))
                 {
-                    resizeTo(metadata, img, size);
-                    metadata.getSizes().add(size);
+                    pending.add(size);
                 }
             }
 
-            metadataService.store(metadata);
+            StageTimings timings = new StageTimings();
+            Collection<CompletableFuture<Void>> uploads = new ConcurrentLinkedQueue<>();
+
+            long headerStart = System.nanoTime();
+            ImageHeader header = readHeader(photoId, ingest);
+            timings.record(StageTimings.Stage.DECODE, headerStart);
+
+            Map<Sizes,RenditionGeometry> geometries = Collections.emptyMap();
+            MemoryBudget.Decision decision = MemoryBudget.Decision.REJECT;
+            if (header != null)
+            {
+                logger.debug("original: {}", header);
+                geometries = planRenditions(metadata, header, pending);
+                decision = memoryBudget.check(geometries.values(), rasterPool.getCurrentBytes());
+            }
+
+            // ingest requires a single decode; in all other cases, the original must be
+            // in the image bucket before we go any further (the metadata is saved so that
+            // a retry doesn't try to move it again)
+            if (ingest && (geometries.isEmpty()
+                           || (decision == MemoryBudget.Decision.REJECT)
+                           || (decision == MemoryBudget.Decision.TILED)))
+            {
+                moveOriginal(lease);
+                ingest = false;
+            }
+
+            if (header == null)
+            {
+                return reject(lease, "not a recognized image format");
+            }
+
+            if (decision == MemoryBudget.Decision.REJECT)
+            {
+                return reject(lease, "image is too large to process: " + header.getWidth() + "x" + header.getHeight());
+            }
+
+            boolean lowMemory = (decision == MemoryBudget.Decision.LOW_MEMORY);
+            boolean tiled = (decision == MemoryBudget.Decision.TILED);
+            if (lowMemory || tiled)
+            {
+                logger.info("processing {} in {} mode", header, decision);
+                rasterPool.clear();
+            }
+
+            // when ingesting, the upload is read into a pooled buffer (and, if deduplicating,
+            // hashed) before it's decoded; a copy of an existing photo can then reuse that
+            // photo's stored objects, without being decoded or rendered
+            ChunkedOutputStream original = null;
+            String contentHash = null;
+
+            long estimate = memoryBudget.estimate(decision, geometries.values());
+            int reservation = memoryGate.acquire(estimate);
+            logger.debug("reserved {} bytes; {} bytes remain available", estimate, memoryGate.getAvailableBytes());
+            try
+            {
+                if (tiled)
+                {
+                    tiledRenderer.render(metadata, geometries, timings,
+                                         (size, img) -> store(metadata, size, img, timings, uploads));
+                }
+                else if (! geometries.isEmpty())
+                {
+                    long decodeStart = System.nanoTime();
+                    if (ingest)
+                    {
+                        original = new ChunkedOutputStream(chunkPool);
+                        contentHash = readUpload(photoId, original);
+                        if ((contentHash != null) && deduplicator.reuseDuplicate(lease, contentHash, sizes))
+                        {
+                            timings.record(StageTimings.Stage.DECODE, decodeStart);
+                            uploadStage.deleteUpload(photoId);
+                            return true;
+                        }
+                    }
+
+                    Map<Sizes,SourceImage> sources = loadSources(metadata, geometries, lowMemory, original);
+                    timings.record(StageTimings.Stage.DECODE, decodeStart);
+                    try
+                    {
+                        if (original != null)
+                        {
+                            // the upload stage takes ownership of the buffer, even if interrupted
+                            ChunkedOutputStream copy = original;
+                            original = null;
+                            uploads.add(uploadStage.submit(photoId, metadata.getMimetype(), Sizes.ORIGINAL, copy, timings));
+                        }
+
+                        renderAll(metadata, sources, geometries, lowMemory, timings, uploads);
+                    }
+                    finally
+                    {
+                        sources.values().forEach(source -> rasterPool.release(source.getImage()));
+                        logger.debug("after processing: {}", rasterPool);
+                    }
+                }
+            }
+            finally
+            {
+                if (original != null)
+                {
+                    original.close();
+                }
+                memoryGate.release(reservation);
+            }
+
+            // metadata is only updated after all renditions have been stored
+            awaitUploads(metadata, uploads);
+            logger.info("processed photo {}: {}", photoId, timings);
+
+            if (ingest)
+            {
+                metadata.getSizes().add(Sizes.ORIGINAL);
+            }
+            metadata.getSizes().addAll(pending);
+            if (! lease.storeFinal())
+                return false;
+
+            if (contentHash != null)
+            {
+                deduplicator.recordContentHash(photoId, contentHash);
+            }
+
+            // the upload has been replaced by the original, so is no longer needed; if the
+            // delete doesn't happen, the upload bucket's lifecycle rule will remove it
+            if (ingest)
+            {
+                uploadStage.deleteUpload(photoId);
+            }
+            return true;
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while processing photo {}", metadata.getId());
+            return false;
         }
         catch (Exception ex)
         {
             logger.error("exception when processing photo {}", metadata.getId(), ex);
+            return false;
+        }
+    }
+
+
+    /**
+     *  Moves the upload to the image bucket, and records that the original exists.
+     */
+    private void moveOriginal(ProcessingLease lease)
+    {
+        PhotoMetadata metadata = lease.getMetadata();
+        contentService.moveUploadToImageBucket(metadata.getId());
+        metadata.getSizes().add(Sizes.ORIGINAL);
+        if (! lease.store())
+            throw new ResizerException("failed to store metadata", metadata.getId());
+    }
+
+
+    /**
+     *  Reads the original image's header (from the upload if the photo is being
+     *  ingested), using one or more ranged reads. Returns null if the content is empty
+     *  or isn't a recognized image, or the header can't be found within a reasonable
+     *  distance from the start of the file. Throws only if the content can't be found
+     *  (or read), since that may succeed on retry.
+     */
+    private ImageHeader readHeader(String photoId, boolean fromUpload)
+    {
+        int length = HEADER_SIZE;
+        while (true)
+        {
+            byte[] content = fromUpload
+                           ? contentService.retrieveUploadRange(photoId, 0, length)
+                           : contentService.retrieveRange(photoId, Sizes.ORIGINAL, 0, length);
+            if (content == null)
+                throw new ResizerException("failed to retrieve original content", photoId);
+            if (content.length == 0)
+            {
+                logger.warn("photo {} is empty", photoId);
+                return null;
+            }
+
+            try
+            {
+                return ImageHeader.parse(content);
+            }
+            catch (EOFException ex)
+            {
+                // a short read means that we've seen the entire file
+                if ((content.length < length) || (length >= MAX_HEADER_SIZE))
+                {
+                    logger.warn("unable to find image header for photo {}: {}", photoId, ex.getMessage());
+                    return null;
+                }
+                length *= 4;
+            }
+        }
+    }
+
+
+    /**
+     *  Determines the geometries of the sizes that must be rendered. Sizes that would
+     *  be the same as the original (or as another size, whether pending or already
+     *  stored) are recorded as aliases in the metadata, and not rendered.
+     */
+    private Map<Sizes,RenditionGeometry> planRenditions(PhotoMetadata metadata, ImageHeader header, List<Sizes> pending)
+    {
+        List<Sizes> remaining = new ArrayList<>(pending);
+
+        Set<Sizes> stored = EnumSet.noneOf(Sizes.class);
+        stored.addAll(metadata.getSizes());
+        stored.removeAll(metadata.getAliases().keySet());
+
+        Map<Sizes,Sizes> aliases = renditionPlanner.aliases(header.getWidth(), header.getHeight(), remaining, stored);
+        if (! aliases.isEmpty())
+        {
+            logger.debug("aliased sizes: {}", aliases);
+            metadata.getAliases().putAll(aliases);
+            remaining.removeAll(aliases.keySet());
+        }
+
+        Map<Sizes,RenditionGeometry> geometries = new EnumMap<>(Sizes.class);
+        for (Sizes size : remaining)
+        {
+            geometries.put(size, RenditionGeometry.compute(header.getWidth(), header.getHeight(), size));
         }
+        return geometries;
     }
 
 
     /**
-     *  Loads the content bytes into a buffered image and returns it, null if unable to
-     *  load the image.
+     *  Logs a warning, on the first invocation, if the lease duration isn't longer than
+     *  the function's timeout (the remaining time at the start of the invocation) plus
+     *  the time that a render request may wait for another invocation.
      */
-    private BufferedImage loadImage(String photoId)
+    private void checkLeaseDuration(Context lambdaContext)
+    {
+        if (leaseChecked)
+            return;
+
+        leaseChecked = true;
+        long required = lambdaContext.getRemainingTimeInMillis() + RENDER_RETRIES * RENDER_RETRY_MILLIS;
+        if (leaseMillis <= required)
+        {
+            logger.warn("lease duration ({} ms) should be longer than {} ms; increase {}",
+                        leaseMillis, required, Environment.RESIZER_LEASE);
+        }
+    }
+
+
+    /**
+     *  Records that the photo won't be processed, and why. Returns false if unable to
+     *  store the metadata.
+     */
+    private boolean reject(ProcessingLease lease, String reason)
+    {
+        PhotoMetadata metadata = lease.getMetadata();
+        logger.warn("rejecting photo {}: {}", metadata.getId(), reason);
+        metadata.setRejected(reason);
+        return lease.storeFinal();
+    }
+
+
+    /**
+     *  Reads the upload into the passed buffer, so that it can be decoded and then
+     *  stored as the original. If deduplicating uploads, returns the content's hash,
+     *  which is computed as it's read; otherwise returns null.
+     */
+    private String readUpload(String photoId, ChunkedOutputStream buffer)
     throws IOException
     {
-        byte[] content = contentService.retrieve(photoId, Sizes.ORIGINAL);
+        InputStream content = contentService.openUploadStream(photoId);
         if (content == null)
             throw new ResizerException("failed to retrieve original content", photoId);
 
-        BufferedImage img = ImageIO.read(new ByteArrayInputStream(content));
-        logger.debug("original file size = {}, width = {}, height = {}",
-                     content.length, img.getWidth(), img.getHeight());
-        return img;
+        MessageDigest digest = dedupUploads ? UploadDeduplicator.newDigest() : null;
+        try (InputStream in = (digest != null) ? new DigestInputStream(content, digest) : content)
+        {
+            IOUtil.copy(in, buffer);
+        }
+        logger.debug("read {} bytes of upload for photo {}", buffer.length(), photoId);
+
+        if (digest == null)
+            return null;
+
+        String contentHash = UploadDeduplicator.toContentHash(digest);
+        logger.debug("content hash for photo {} = {}", photoId, contentHash);
+        return contentHash;
     }
 
 
     /**
-     *  Attempts to resize the image, writing the resized image to S3. The output image will
-     *  have the same MIME type as the input image.
+     *  Streams the original content and returns the image to be used as the source for
+     *  each of the sizes that must be rendered (the keys of the passed geometry map),
+     *  throwing if unable to load the image.
+     *  <p>
+     *  The original image will be decoded at the lowest resolution that's sufficient
+     *  for those sizes, and only the region that they cover will be decoded. In low-
+     *  memory mode, the decoded image retains no more resolution than the largest size
+     *  needs. If there's a suitable embedded thumbnail, it will be used as the source
+     *  for <code>THUMB</code> size.
+     *  <p>
+     *  When ingesting, the caller passes the upload's content (see {@link #readUpload}),
+     *  and retains ownership of that buffer. Otherwise, the original is decoded as it's
+     *  read from the image bucket.
      */
-    private void resizeTo(PhotoMetadata metadata, BufferedImage img, Sizes size)
+    private Map<Sizes,SourceImage> loadSources(PhotoMetadata metadata, Map<Sizes,RenditionGeometry> geometries, boolean lowMemory,
+                                               ChunkedOutputStream upload)
     throws IOException
     {
-        double scaleFactor = 1.0 * size.getWidth() / img.getWidth();
-        int dstWidth = size.getWidth();
-        int dstHeight = (int)(img.getHeight() * scaleFactor);
+        String photoId = metadata.getId();
+        InputStream content = null;
+        if (upload == null)
+        {
+            content = contentService.openStream(photoId, Sizes.ORIGINAL);
+            if (content == null)
+                throw new ResizerException("failed to retrieve original content", photoId);
+        }
 
-        logger.debug("resizing to fit {}; actual dimensions are {} x {}", size.getDescription(), dstWidth, dstHeight);
+        Map<Sizes,SourceImage> sources = new EnumMap<>(Sizes.class);
+        List<Sizes> remaining = new ArrayList<>(geometries.keySet());
 
-        BufferedImage dst = new BufferedImage(dstWidth, dstHeight, img.getType());
-        Graphics2D g = dst.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        g.setRenderingHint(RenderingHints.KEY_RENDERING,        RenderingHints.VALUE_RENDER_QUALITY);
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,     RenderingHints.VALUE_ANTIALIAS_ON);
-        g.drawImage(img, 0, 0, dstWidth, dstHeight, null);
-        g.dispose();
+        // an upload is decoded from the buffer that will be stored as the original; any
+        // other content is decoded as it's read from S3, rather than being buffered first
+        try (InputStream in = content ;
+             ImageSource source = (upload != null) ? new ImageSource(upload) : new ImageSource(in, chunkPool))
+        {
+            int srcWidth = source.getWidth();
+            int srcHeight = source.getHeight();
+            logger.debug("original width = {}, height = {}", srcWidth, srcHeight);
+
+            if (remaining.contains(Sizes.THUMB))
+            {
+                // the thumbnail must have at least as much resolution as the rendition
+                int minWidth = (int)Math.ceil(srcWidth * geometries.get(Sizes.THUMB).getScale());
+                BufferedImage thumbnail = source.readThumbnail(minWidth);
+                if (thumbnail != null)
+                {
+                    logger.debug("using embedded thumbnail: width = {}, height = {}",
+                                 thumbnail.getWidth(), thumbnail.getHeight());
+                    sources.put(Sizes.THUMB, new SourceImage(normalizer.replace(thumbnail), new Rectangle(0, 0, srcWidth, srcHeight)));
+                    remaining.remove(Sizes.THUMB);
+                }
+            }
+
+            if (! remaining.isEmpty())
+            {
+                List<RenditionGeometry> needed = new ArrayList<>();
+                for (Sizes size : remaining)
+                {
+                    needed.add(geometries.get(size));
+                }
+
+                DecodePlanner planner = lowMemory ? lowMemoryPlanner : decodePlanner;
+                Rectangle region = planner.region(needed);
+                int subsampling = planner.subsampling(needed);
+                BufferedImage img = source.read(region, subsampling, rasterPool);
+                logger.debug("decoded region {},{} {}x{} with subsampling {} as {} x {} (type {})",
+                             region.x, region.y, region.width, region.height,
+                             subsampling, img.getWidth(), img.getHeight(), img.getType());
+                img = normalizer.replace(img);
+
+                SourceImage decoded = new SourceImage(img, region);
+                for (Sizes size : remaining)
+                {
+                    sources.put(size, decoded);
+                }
+            }
+        }
+        catch (IOException|RuntimeException ex)
+        {
+            sources.values().forEach(source -> rasterPool.release(source.getImage()));
+            throw ex;
+        }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(65536);
-        ImageOutputStream ios = ImageIO.createImageOutputStream(bos);
+        return sources;
+    }
 
-        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(metadata.getMimetype());
-        if (! writers.hasNext())
-            throw new ResizerException("no ImageWriter for mime type " + metadata.getMimetype(), metadata.getId());
 
-        ImageWriter writer = writers.next();
-        writer.setOutput(ios);
-        writer.write(dst);
+    /**
+     *  Produces all of the specified renditions, in order of decreasing width. Each
+     *  rendition is produced from its associated source image, unless it's configured
+     *  for cascading, in which case it's produced from the previous (larger) rendition
+     *  (using the size's cascade engine) if that covers the needed region of the
+     *  original with sufficient resolution.
+     *  <p>
+     *  If there's a render pool, and we're not in low-memory mode, each rendition is
+     *  a separate task, which will wait for its source rendition if cascaded. This
+     *  method waits for all of them to finish (successfully or not), returns the
+     *  renditions to the pool, and throws if any of them failed.
+     */
+    private void renderAll(PhotoMetadata metadata, Map<Sizes,SourceImage> sources, Map<Sizes,RenditionGeometry> geometries, boolean lowMemory,
+                           StageTimings timings, Collection<CompletableFuture<Void>> uploads)
+    throws IOException
+    {
+        // worker threads don't inherit the logging context, so we pass it explicitly
+        Map<String,String> mdc = MDC.getCopyOfContextMap();
+        boolean parallel = (renderPool != null) && ! lowMemory;
+        Executor executor = parallel ? renderPool : Runnable::run;
 
-        contentService.store(metadata.getId(), metadata.getMimetype(), size, bos.toByteArray());
+        List<Sizes> ordered = new ArrayList<>(sources.keySet());
+        ordered.sort(Comparator.comparingInt((Sizes size) -> geometries.get(size).getWidth()).reversed());
+
+        List<CompletableFuture<SourceImage>> renditions = new ArrayList<>();
+        RenditionGeometry previousGeometry = null;
+        Sizes previousSize = null;
+        CompletableFuture<SourceImage> previous = null;
+        for (Sizes size : ordered)
+        {
+            SourceImage original = sources.get(size);
+            RenditionGeometry geometry = geometries.get(size);
+
+            // the source may be an embedded thumbnail, which is smaller than the previous size,
+            // or the previous size may have been cropped differently
+            CompletableFuture<SourceImage> source;
+            ScalingEngine engine;
+            if ((previous != null) && cascadeEngines.containsKey(size)
+                    && previousGeometry.getRegion().contains(geometry.getRegion())
+                    && (previousGeometry.getScale() >= geometry.getScale())
+                    && (previousGeometry.getScale() < original.getScale()))
+            {
+                logger.debug("{} will be produced from {}", size, previousSize);
+                source = previous;
+                engine = cascadeEngines.get(size);
+            }
+            else
+            {
+                source = CompletableFuture.completedFuture(original);
+                engine = scalingEngines.get(size);
+            }
+
+            CompletableFuture<SourceImage> rendition = source.thenApplyAsync(img -> {
+                MDC.setContextMap(mdc);
+                try
+                {
+                    return resizeTo(metadata, img, size, geometry, engine, timings, uploads);
+                }
+                catch (IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+                finally
+                {
+                    // the handler thread sets its own context on the next invocation
+                    if (parallel) MDC.clear();
+                }
+            }, executor);
+
+            renditions.add(rendition);
+            previous = rendition;
+            previousSize = size;
+            previousGeometry = geometry;
+        }
+
+        try
+        {
+            CompletableFuture.allOf(renditions.toArray(new CompletableFuture<?>[renditions.size()])).join();
+        }
+        catch (CompletionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException)cause).getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new ResizerException("failed to produce rendition", cause, metadata.getId());
+        }
+        finally
+        {
+            // all tasks have completed at this point, so nothing else refers to the images
+            for (CompletableFuture<SourceImage> rendition : renditions)
+            {
+                if (! rendition.isCompletedExceptionally())
+                {
+                    rasterPool.release(rendition.join().getImage());
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Attempts to resize the image with the given engine, and passes the resized image
+     *  to be stored. The output image will have the same MIME type as the input image.
+     *  Returns the resized image, so that it can be used as the source for another size.
+     */
+    private SourceImage resizeTo(PhotoMetadata metadata, SourceImage src, Sizes size, RenditionGeometry geometry,
+                                 ScalingEngine engine, StageTimings timings, Collection<CompletableFuture<Void>> uploads)
+    throws IOException
+    {
+        logger.debug("resizing to {} ({}) using {}; {}",
+                     size.getDescription(), size.getFitMode(), engine.getClass().getSimpleName(), geometry);
+
+        long start = System.nanoTime();
+        BufferedImage img = src.extract(geometry.getRegion());
+        BufferedImage dst = engine.scale(img, geometry.getWidth(), geometry.getHeight());
+        timings.record(StageTimings.Stage.SCALE, start);
+
+        store(metadata, size, dst, timings, uploads);
+        return new SourceImage(dst, geometry.getRegion());
+    }
+
+
+    /**
+     *  Encodes a rendition into a pooled buffer, and hands it to the upload stage. The
+     *  future for the upload is added to the passed collection; if the stage is
+     *  synchronous, the upload has completed (successfully or not) on return.
+     */
+    private void store(PhotoMetadata metadata, Sizes size, BufferedImage img,
+                       StageTimings timings, Collection<CompletableFuture<Void>> uploads)
+    throws IOException
+    {
+        long start = System.nanoTime();
+        ChunkedOutputStream content = new ChunkedOutputStream(chunkPool);
+        try
+        {
+            encoder.encode(img, metadata.getMimetype(), encodingParams.get(size), content);
+        }
+        catch (IOException|RuntimeException ex)
+        {
+            content.close();
+            throw ex;
+        }
+        timings.record(StageTimings.Stage.ENCODE, start);
+
+        try
+        {
+            uploads.add(uploadStage.submit(metadata.getId(), metadata.getMimetype(), size, content, timings));
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for upload stage");
+        }
+    }
+
+
+    /**
+     *  Waits for all uploads for a photo to complete, throwing if any of them failed.
+     */
+    private void awaitUploads(PhotoMetadata metadata, Collection<CompletableFuture<Void>> uploads)
+    throws IOException
+    {
+        try
+        {
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[uploads.size()])).join();
+        }
+        catch (CompletionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException)cause).getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new ResizerException("failed to upload rendition", cause, metadata.getId());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import org.crac.Context;
+import org.crac.Resource;
+
+
+/**
+ *  Connects a {@link Resizer} to runtimes that snapshot an initialized execution
+ *  environment and restore it for later invocations (Lambda SnapStart, or any other
+ *  CRaC-based runtime). The snapshot is taken after the Resizer has been constructed
+ *  and primed, so restored environments skip that work; but network connections
+ *  don't survive the snapshot, so they're re-established after restore.
+ *  <p>
+ *  The CRaC context holds registered resources via weak references, so the Resizer
+ *  must retain its instance. On runtimes that don't take snapshots, these hooks are
+ *  never invoked.
+ */
+class SnapshotHooks
+implements Resource
+{
+    private Resizer resizer;
+
+
+    public SnapshotHooks(Resizer resizer)
+    {
+        this.resizer = resizer;
+    }
+
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context)
+    throws Exception
+    {
+        resizer.beforeCheckpoint();
+    }
+
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context)
+    throws Exception
+    {
+        resizer.afterRestore();
+    }
+}
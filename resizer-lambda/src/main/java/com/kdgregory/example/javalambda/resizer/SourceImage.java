@@ -0,0 +1,84 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+
+/**
+ *  An image that can be used as the source for renditions, along with the region
+ *  of the original image that it covers. This may be the original decoded in its
+ *  entirety, a subsampled or cropped decode, an embedded thumbnail, or another
+ *  rendition.
+ */
+class SourceImage
+{
+    private BufferedImage image;
+    private Rectangle coverage;
+
+
+    public SourceImage(BufferedImage image, Rectangle coverage)
+    {
+        this.image = image;
+        this.coverage = coverage;
+    }
+
+
+    public BufferedImage getImage()
+    {
+        return image;
+    }
+
+
+    /**
+     *  Returns the ratio of this image's pixels to original pixels, horizontally.
+     */
+    public double getScale()
+    {
+        return (double)image.getWidth() / coverage.width;
+    }
+
+
+    /**
+     *  Determines whether this image covers the specified region of the original.
+     */
+    public boolean covers(Rectangle region)
+    {
+        return coverage.contains(region);
+    }
+
+
+    /**
+     *  Returns the portion of this image that corresponds to the specified region of
+     *  the original. This will be the image itself if it covers exactly that region,
+     *  otherwise a sub-image that shares its raster.
+     */
+    public BufferedImage extract(Rectangle region)
+    {
+        if (region.equals(coverage))
+            return image;
+
+        Rectangle r = locate(coverage, new Dimension(image.getWidth(), image.getHeight()), region);
+        if ((r.x == 0) && (r.y == 0) && (r.width == image.getWidth()) && (r.height == image.getHeight()))
+            return image;
+
+        return image.getSubimage(r.x, r.y, r.width, r.height);
+    }
+
+
+    /**
+     *  Translates a region of the original into the pixel coordinates of an image
+     *  with the given size that covers the given region of the original.
+     */
+    public static Rectangle locate(Rectangle coverage, Dimension size, Rectangle region)
+    {
+        double xScale = (double)size.width / coverage.width;
+        double yScale = (double)size.height / coverage.height;
+        int x = (int)Math.floor((region.x - coverage.x) * xScale);
+        int y = (int)Math.floor((region.y - coverage.y) * yScale);
+        int width = Math.max(1, Math.min(size.width - x, (int)Math.round(region.width * xScale)));
+        int height = Math.max(1, Math.min(size.height - y, (int)Math.round(region.height * yScale)));
+        return new Rectangle(x, y, width, height);
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  The response from {@link Resizer#sqsHandler}: identifies the messages that
+ *  could not be processed, so that Lambda will return them to the queue.
+ *  <p>
+ *  This is serialized by the Lambda runtime, and has the same structure as the
+ *  <code>SQSBatchResponse</code> class from later versions of the Lambda events
+ *  library (which we don't use, because those versions replace the S3 event
+ *  classes that the direct handler depends on).
+ */
+public class SqsBatchResponse
+{
+    /**
+     *  Identifies a single failed message.
+     */
+    public static class BatchItemFailure
+    {
+        private String itemIdentifier;
+
+        public BatchItemFailure(String itemIdentifier)
+        {
+            this.itemIdentifier = itemIdentifier;
+        }
+
+        public String getItemIdentifier()
+        {
+            return itemIdentifier;
+        }
+    }
+
+
+    private List<BatchItemFailure> batchItemFailures = new ArrayList<>();
+
+
+    public List<BatchItemFailure> getBatchItemFailures()
+    {
+        return batchItemFailures;
+    }
+
+
+    /**
+     *  Records a failed message, by its SQS message ID.
+     */
+    public void addFailure(String messageId)
+    {
+        batchItemFailures.add(new BatchItemFailure(messageId));
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *  Accumulates the time spent in each stage of processing a single photo. Stages
+ *  may run concurrently (for example, one rendition is being scaled while another
+ *  is being uploaded), so the sum of the stage times may exceed the elapsed time;
+ *  the difference is the amount of overlap. Instances are thread-safe.
+ */
+public class StageTimings
+{
+    public enum Stage
+    {
+        /** Reading the header, and downloading and decoding the original. */
+        DECODE,
+
+        /** Scaling renditions. */
+        SCALE,
+
+        /** Encoding renditions. */
+        ENCODE,
+
+        /** Waiting for the upload stage to accept an encoded rendition. */
+        QUEUE,
+
+        /** Writing encoded renditions to S3. */
+        UPLOAD
+    }
+
+
+    private long start = System.nanoTime();
+    private Map<Stage,LongAdder> totals = new EnumMap<>(Stage.class);
+
+
+    public StageTimings()
+    {
+        for (Stage stage : Stage.values())
+        {
+            totals.put(stage, new LongAdder());
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Adds the time since <code>startNanos</code> (a value from <code>System.nanoTime()</code>)
+     *  to the specified stage.
+     */
+    public void record(Stage stage, long startNanos)
+    {
+        totals.get(stage).add(System.nanoTime() - startNanos);
+    }
+
+
+    /**
+     *  Returns the total time for the specified stage, in milliseconds.
+     */
+    public long getMillis(Stage stage)
+    {
+        return totals.get(stage).sum() / 1000000;
+    }
+
+
+    /**
+     *  Returns the time since this object was created, in milliseconds.
+     */
+    public long getElapsedMillis()
+    {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+
+    /**
+     *  Returns the sum of all stage times, in milliseconds.
+     */
+    public long getTotalMillis()
+    {
+        long total = 0;
+        for (LongAdder value : totals.values())
+        {
+            total += value.sum();
+        }
+        return total / 1000000;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values())
+        {
+            sb.append(stage.name().toLowerCase()).append(" = ").append(getMillis(stage)).append(" ms, ");
+        }
+        sb.append("total = ").append(getTotalMillis()).append(" ms, ");
+        sb.append("elapsed = ").append(getElapsedMillis()).append(" ms");
+        return sb.toString();
+    }
+}
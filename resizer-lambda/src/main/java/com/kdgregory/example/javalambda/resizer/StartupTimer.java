@@ -0,0 +1,86 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Measures cold starts. Records the time from JVM start to the end of handler
+ *  initialization, and how much of that was spent priming, then logs them along
+ *  with the time to the first invocation. When the execution environment is restored
+ *  from a snapshot, the first invocation after the restore is measured from the
+ *  restore instead.
+ *  <p>
+ *  Lambda reports its own initialization and restore durations; these numbers show
+ *  where that time went, and how long the first request waited beyond it.
+ */
+public class StartupTimer
+{
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private long startMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private long initMillis;
+    private long primeMillis;
+    private long reconnectMillis;
+    private boolean restored;
+    private boolean pending = true;
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Records the end of initialization, along with the time spent priming (0 if
+     *  priming is disabled).
+     */
+    public synchronized void initialized(long primingMillis)
+    {
+        initMillis = System.currentTimeMillis() - startMillis;
+        primeMillis = primingMillis;
+        logger.info("initialized {} ms after JVM start, including {} ms priming", initMillis, primeMillis);
+    }
+
+
+    /**
+     *  Records a restore from snapshot. The argument is the time (from
+     *  <code>System.currentTimeMillis()</code>) that the restore hook was called;
+     *  this method is called once connections have been re-established.
+     */
+    public synchronized void restored(long restoreMillis)
+    {
+        startMillis = restoreMillis;
+        reconnectMillis = System.currentTimeMillis() - restoreMillis;
+        restored = true;
+        pending = true;
+        logger.info("restored from snapshot, reconnecting took {} ms", reconnectMillis);
+    }
+
+
+    /**
+     *  Called at the start of each invocation; logs the cold start timings for the
+     *  first. Returns true if this is the first invocation (since start or restore).
+     */
+    public synchronized boolean invoked()
+    {
+        if (! pending)
+            return false;
+
+        pending = false;
+        long elapsed = System.currentTimeMillis() - startMillis;
+        if (restored)
+        {
+            logger.info("cold start: first invocation {} ms after restore (reconnecting {} ms)",
+                        elapsed, reconnectMillis);
+        }
+        else
+        {
+            logger.info("cold start: first invocation {} ms after JVM start (initialization {} ms, priming {} ms)",
+                        elapsed, initMillis, primeMillis);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kdgregory.example.javalambda.resizer.decode.DecodePlanner;
+import com.kdgregory.example.javalambda.resizer.decode.ImageNormalizer;
+import com.kdgregory.example.javalambda.resizer.decode.ImageSource;
+import com.kdgregory.example.javalambda.resizer.decode.RenditionGeometry;
+import com.kdgregory.example.javalambda.resizer.pool.ByteChunkPool;
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+import com.kdgregory.example.javalambda.resizer.scaling.KernelScalingEngine;
+import com.kdgregory.example.javalambda.resizer.scaling.ResampleFilter;
+import com.kdgregory.example.javalambda.resizer.scaling.ScalingEngine;
+import com.kdgregory.example.javalambda.resizer.scaling.StripResampler;
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+import com.kdgregory.example.javalambda.shared.services.ContentService;
+
+
+/**
+ *  Produces renditions of images that are too large to decode in full, by decoding
+ *  the original in horizontal strips, and feeding each strip to a {@link StripResampler}
+ *  per size. The strips are subsampled (using the normal decode planner), and strip
+ *  height is chosen to keep each under a configured size. The resamplers for a strip
+ *  run in parallel if given a multi-threaded executor.
+ *  <p>
+ *  Each strip is a separate read, and image formats have to be decompressed from
+ *  the start, so this takes longer than a single decode. Sizes configured to use
+ *  one of the Java2D scaling engines are resampled with the Mitchell filter.
+ */
+public class TiledRenderer
+{
+    /**
+     *  Receives the completed renditions. Ownership of the image remains with the
+     *  renderer, which returns it to the raster pool after this is called.
+     */
+    public interface RenditionSink
+    {
+        void store(Sizes size, BufferedImage img)
+        throws IOException;
+    }
+
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private ContentService contentService;
+    private DecodePlanner decodePlanner;
+    private RasterPool rasterPool;
+    private ByteChunkPool chunkPool;
+    private ImageNormalizer normalizer;
+    private Map<Sizes,ScalingEngine> scalingEngines;
+    private Executor executor;
+    private int stripBytes;
+
+
+    /**
+     *  @param  contentService  Used to read the original.
+     *  @param  decodePlanner   Determines the region and subsampling of the decode.
+     *  @param  rasterPool      Provides decoded strips and renditions.
+     *  @param  chunkPool       Provides buffers for the encoded original.
+     *  @param  normalizer      Converts decoded strips to a standard layout.
+     *  @param  scalingEngines  The configured engine for each size, which determines
+     *                          its resampling filter.
+     *  @param  executor        Runs the resamplers for each strip.
+     *  @param  stripBytes      The maximum size of a decoded strip.
+     */
+    public TiledRenderer(ContentService contentService, DecodePlanner decodePlanner,
+                         RasterPool rasterPool, ByteChunkPool chunkPool, ImageNormalizer normalizer,
+                         Map<Sizes,ScalingEngine> scalingEngines, Executor executor, int stripBytes)
+    {
+        this.contentService = contentService;
+        this.decodePlanner = decodePlanner;
+        this.rasterPool = rasterPool;
+        this.chunkPool = chunkPool;
+        this.normalizer = normalizer;
+        this.scalingEngines = scalingEngines;
+        this.executor = executor;
+        this.stripBytes = stripBytes;
+    }
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Produces all of the specified renditions from the stored original, passing each
+     *  to the sink once all strips have been processed.
+     */
+    public void render(PhotoMetadata metadata, Map<Sizes,RenditionGeometry> geometries,
+                       StageTimings timings, RenditionSink sink)
+    throws IOException
+    {
+        String photoId = metadata.getId();
+        InputStream content = contentService.openStream(photoId, Sizes.ORIGINAL);
+        if (content == null)
+            throw new ResizerException("failed to retrieve original content", photoId);
+
+        List<RenditionGeometry> needed = new ArrayList<>(geometries.values());
+        Rectangle region = decodePlanner.region(needed);
+        int subsampling = decodePlanner.subsampling(needed);
+        Dimension decoded = new Dimension((region.width + subsampling - 1) / subsampling,
+                                          (region.height + subsampling - 1) / subsampling);
+        int stripRows = Math.max(1, stripBytes / (decoded.width * 4));
+        logger.debug("tiled decode of region {},{} {}x{} with subsampling {}, {} rows per strip",
+                     region.x, region.y, region.width, region.height, subsampling, stripRows);
+
+        Map<Sizes,StripResampler> resamplers = new EnumMap<>(Sizes.class);
+        for (Map.Entry<Sizes,RenditionGeometry> entry : geometries.entrySet())
+        {
+            RenditionGeometry geometry = entry.getValue();
+            Rectangle srcRegion = SourceImage.locate(region, decoded, geometry.getRegion());
+            resamplers.put(entry.getKey(), new StripResampler(filterFor(entry.getKey()), srcRegion,
+                                                              geometry.getWidth(), geometry.getHeight(),
+                                                              rasterPool));
+        }
+
+        try
+        {
+            try (InputStream in = content ; ImageSource source = new ImageSource(in, chunkPool))
+            {
+                for (int row = 0 ; row < decoded.height ; row += stripRows)
+                {
+                    int top = region.y + row * subsampling;
+                    int height = Math.min(stripRows * subsampling, region.y + region.height - top);
+                    long decodeStart = System.nanoTime();
+                    BufferedImage strip = normalizer.replace(source.read(new Rectangle(region.x, top, region.width, height),
+                                                                         subsampling, rasterPool));
+                    timings.record(StageTimings.Stage.DECODE, decodeStart);
+                    final int stripY = row;
+                    try
+                    {
+                        CompletableFuture.allOf(
+                            resamplers.values().stream()
+                                      .map(resampler -> CompletableFuture.runAsync(() -> {
+                                          long scaleStart = System.nanoTime();
+                                          resampler.accept(strip, stripY);
+                                          timings.record(StageTimings.Stage.SCALE, scaleStart);
+                                      }, executor))
+                                      .toArray(CompletableFuture<?>[]::new))
+                            .join();
+                    }
+                    catch (CompletionException ex)
+                    {
+                        if (ex.getCause() instanceof RuntimeException)
+                            throw (RuntimeException)ex.getCause();
+                        throw new ResizerException("failed to process strip", ex.getCause(), photoId);
+                    }
+                    finally
+                    {
+                        rasterPool.release(strip);
+                    }
+                }
+            }
+
+            for (Map.Entry<Sizes,StripResampler> entry : resamplers.entrySet())
+            {
+                Sizes size = entry.getKey();
+                logger.debug("storing {} from tiled decode", size.getDescription());
+                sink.store(size, entry.getValue().getResult());
+            }
+        }
+        finally
+        {
+            for (StripResampler resampler : resamplers.values())
+            {
+                if (resampler.isComplete())
+                {
+                    rasterPool.release(resampler.getResult());
+                }
+            }
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the filter to use for a size: that of its scaling engine, if it's a
+     *  kernel engine, otherwise Mitchell.
+     */
+    private ResampleFilter filterFor(Sizes size)
+    {
+        ScalingEngine engine = scalingEngines.get(size);
+        return (engine instanceof KernelScalingEngine)
+             ? ((KernelScalingEngine)engine).getFilter()
+             : ResampleFilter.MITCHELL;
+    }
+}
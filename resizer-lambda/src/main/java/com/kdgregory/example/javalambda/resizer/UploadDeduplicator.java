@@ -0,0 +1,134 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.kdgcommons.codec.HexCodec;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+import com.kdgregory.example.javalambda.shared.services.MetadataService;
+
+
+/**
+ *  Allows a photo to reuse the stored objects of another photo with the same content,
+ *  rather than rendering (and storing) its own.
+ *  <p>
+ *  Photos are identified by the SHA-256 hash of their original content, which is
+ *  looked up in a content index maintained by the {@link MetadataService}. A photo
+ *  is added to that index once it has been processed, so that later copies can
+ *  reuse it; the first photo with given content remains the one that's referenced.
+ */
+public class UploadDeduplicator
+{
+    private final static String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private MetadataService metadataService;
+
+
+    public UploadDeduplicator(MetadataService metadataService)
+    {
+        this.metadataService = metadataService;
+    }
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns a digest that computes content hashes.
+     */
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException("unsupported algorithm: " + CONTENT_HASH_ALGORITHM, ex);
+        }
+    }
+
+
+    /**
+     *  Returns the hex-encoded content hash from a digest that has been updated with
+     *  a photo's original content.
+     */
+    public static String toContentHash(MessageDigest digest)
+    {
+        return new HexCodec().toString(digest.digest());
+    }
+
+
+    /**
+     *  Looks for an existing photo with the same content hash. If there is one, and it
+     *  has the specified sizes, updates the leased metadata to use that photo's stored
+     *  objects and returns true. Returns false if there's no such photo, in which case
+     *  the caller should process this photo normally.
+     */
+    public boolean reuseDuplicate(ProcessingLease lease, String contentHash, Set<Sizes> sizes)
+    {
+        String existingId = metadataService.retrieveByContentHash(contentHash);
+        if ((existingId == null) || existingId.equals(lease.getMetadata().getId()))
+            return false;
+
+        return reuseContent(lease, existingId, sizes);
+    }
+
+
+    /**
+     *  Updates the leased metadata to use the stored objects of another photo, if that
+     *  photo has (at least) the specified sizes, and returns true. Returns false if the
+     *  other photo can't be reused.
+     */
+    public boolean reuseContent(ProcessingLease lease, String existingId, Set<Sizes> sizes)
+    {
+        PhotoMetadata existing = metadataService.retrieve(existingId);
+        if ((existing == null) || (existing.getRejected() != null)
+                || ! existing.getSizes().containsAll(sizes))
+        {
+            logger.debug("photo {} has the same content, but can't be reused: {}", existingId, existing);
+            return false;
+        }
+
+        PhotoMetadata metadata = lease.getMetadata();
+        logger.info("photo {} duplicates photo {}; reusing stored content", metadata.getId(), existing.getContentId());
+        metadata.setContentId(existing.getContentId());
+        metadata.getSizes().addAll(existing.getSizes());
+        metadata.getAliases().clear();
+        metadata.getAliases().putAll(existing.getAliases());
+        if (! lease.storeFinal())
+            throw new ResizerException("failed to store metadata", metadata.getId());
+
+        return true;
+    }
+
+
+    /**
+     *  Adds a processed photo to the content hash index, so that later copies can reuse
+     *  it. This is best-effort: a failure means only that copies will be processed.
+     */
+    public void recordContentHash(String photoId, String contentHash)
+    {
+        try
+        {
+            if (! metadataService.storeContentHash(contentHash, photoId))
+            {
+                logger.debug("content hash for photo {} was already recorded by another photo", photoId);
+            }
+        }
+        catch (Exception ex)
+        {
+            logger.warn("failed to record content hash for photo {}: {}", photoId, ex.getMessage());
+        }
+    }
+}
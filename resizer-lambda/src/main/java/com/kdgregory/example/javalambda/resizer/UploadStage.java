@@ -0,0 +1,167 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+import com.kdgregory.example.javalambda.shared.services.ContentService;
+
+import com.kdgregory.example.javalambda.resizer.pool.ChunkedOutputStream;
+
+
+/**
+ *  Writes encoded renditions (and ingested originals) to S3 on a dedicated thread
+ *  pool, so that the render threads can move on to the next rendition rather than
+ *  waiting for the upload. It also deletes ingested uploads.
+ *  <p>
+ *  The stage is bounded: it accepts at most twice as many renditions as it has
+ *  threads, and {@link #submit} blocks until there's room. This limits the memory
+ *  held by encoded content that's waiting to be written, and slows rendering if
+ *  the network can't keep up.
+ *  <p>
+ *  If constructed with zero threads, each upload runs on the calling thread, and
+ *  {@link #submit} returns when it's done.
+ */
+public class UploadStage
+{
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private ContentService contentService;
+    private Semaphore capacity;
+    private ExecutorService executor;
+    private Executor uploadExecutor;
+
+
+    public UploadStage(ContentService contentService, int threads)
+    {
+        this.contentService = contentService;
+
+        // threads are daemons so that they won't hold up JVM shutdown
+        if (threads > 0)
+        {
+            capacity = new Semaphore(threads * 2, true);
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "resizer-upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            uploadExecutor = executor;
+        }
+        else
+        {
+            capacity = new Semaphore(Integer.MAX_VALUE);
+            uploadExecutor = Runnable::run;
+        }
+    }
+
+
+    /**
+     *  Returns true if uploads run concurrently with the caller.
+     */
+    public boolean isAsync()
+    {
+        return executor != null;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Queues encoded content for upload, blocking if the stage is full. The stage
+     *  takes ownership of the content, and closes it once it's been written (or
+     *  the write fails). Returns a future that completes when the upload is done,
+     *  and which completes exceptionally if it failed.
+     */
+    public CompletableFuture<Void> submit(String photoId, String mimeType, Sizes size,
+                                          ChunkedOutputStream content, StageTimings timings)
+    throws InterruptedException
+    {
+        long queueStart = System.nanoTime();
+        try
+        {
+            capacity.acquire();
+        }
+        catch (InterruptedException ex)
+        {
+            content.close();
+            throw ex;
+        }
+        timings.record(StageTimings.Stage.QUEUE, queueStart);
+
+        Map<String,String> mdc = MDC.getCopyOfContextMap();
+        boolean async = isAsync();
+        try
+        {
+            return CompletableFuture.runAsync(() -> {
+                if (async && (mdc != null)) MDC.setContextMap(mdc);
+                long start = System.nanoTime();
+                try
+                {
+                    upload(photoId, mimeType, size, content);
+                }
+                finally
+                {
+                    timings.record(StageTimings.Stage.UPLOAD, start);
+                    content.close();
+                    capacity.release();
+                    if (async) MDC.clear();
+                }
+            }, uploadExecutor);
+        }
+        catch (RuntimeException ex)
+        {
+            content.close();
+            capacity.release();
+            throw ex;
+        }
+    }
+
+
+    /**
+     *  Deletes an upload from the upload bucket, on the stage's threads. This isn't
+     *  bounded, and failures are logged rather than reported, since a delete only
+     *  reclaims space. Returns a future that completes when the delete is done.
+     */
+    public CompletableFuture<Void> deleteUpload(String photoId)
+    {
+        Map<String,String> mdc = MDC.getCopyOfContextMap();
+        boolean async = isAsync();
+        return CompletableFuture.runAsync(() -> {
+            if (async && (mdc != null)) MDC.setContextMap(mdc);
+            try
+            {
+                contentService.deleteUpload(photoId);
+            }
+            catch (Exception ex)
+            {
+                logger.warn("failed to delete upload {}: {}", photoId, ex.getMessage());
+            }
+            finally
+            {
+                if (async) MDC.clear();
+            }
+        }, uploadExecutor);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void upload(String photoId, String mimeType, Sizes size, ChunkedOutputStream content)
+    {
+        logger.debug("uploading {} ({} bytes)", size.getDescription(), content.length());
+        contentService.store(photoId, mimeType, size, content.toInputStream(), content.length());
+    }
+}
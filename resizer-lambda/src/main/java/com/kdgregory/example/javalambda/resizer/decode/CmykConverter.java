@@ -0,0 +1,87 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+
+
+/**
+ *  Converts the raw raster of a CMYK or YCCK JPEG into RGB. The JDK's JPEG reader
+ *  can't decode these images into a <code>BufferedImage</code>, but it can return
+ *  their raw samples via <code>readRaster()</code>, with no color conversion.
+ *  <p>
+ *  Most such images are written by Adobe applications, which mark them with an
+ *  APP14 segment. This segment indicates whether the image was transformed to
+ *  YCCK, and its presence indicates that the CMYK values are stored inverted.
+ *  <p>
+ *  The conversion to RGB is the simple "subtractive" formula, not a color-managed
+ *  conversion using the image's ICC profile. Colors will be somewhat off (generally
+ *  more saturated) compared to a print-oriented viewer, but that's acceptable for
+ *  renditions on a web page.
+ */
+public class CmykConverter
+{
+    /**
+     *  Converts the raster into the passed <code>TYPE_INT_RGB</code> image, which must
+     *  have the same dimensions.
+     *
+     *  @param  raster      Raw samples from the JPEG reader: four bands.
+     *  @param  hasAdobe    Indicates that the image has an Adobe APP14 segment, so its
+     *                      values are inverted.
+     *  @param  isYcck      Indicates that the APP14 segment specifies YCCK transform.
+     *  @param  dst         The destination image.
+     */
+    public static BufferedImage toRgb(Raster raster, boolean hasAdobe, boolean isYcck, BufferedImage dst)
+    {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int[] dstPixels = ((DataBufferInt)dst.getRaster().getDataBuffer()).getData();
+        int[] row = new int[width * 4];
+
+        for (int y = 0 ; y < height ; y++)
+        {
+            raster.getPixels(raster.getMinX(), raster.getMinY() + y, width, 1, row);
+            int dstPos = y * width;
+            for (int ii = 0 ; ii < row.length ; ii += 4)
+            {
+                int c = row[ii];
+                int m = row[ii + 1];
+                int yy = row[ii + 2];
+                int k = row[ii + 3];
+
+                if (isYcck)
+                {
+                    // standard JFIF YCbCr -> RGB, applied to the first three components;
+                    // the result is inverted CMY, and inverted again below
+                    int luma = c;
+                    int cb = m - 128;
+                    int cr = yy - 128;
+                    c = 255 - clamp(luma + 1.402 * cr);
+                    m = 255 - clamp(luma - 0.34414 * cb - 0.71414 * cr);
+                    yy = 255 - clamp(luma + 1.772 * cb);
+                }
+
+                if (hasAdobe)
+                {
+                    c = 255 - c;
+                    m = 255 - m;
+                    yy = 255 - yy;
+                    k = 255 - k;
+                }
+
+                int r = (255 - c) * (255 - k) / 255;
+                int g = (255 - m) * (255 - k) / 255;
+                int b = (255 - yy) * (255 - k) / 255;
+                dstPixels[dstPos++] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return dst;
+    }
+
+
+    private static int clamp(double value)
+    {
+        return (value < 0) ? 0 : (value > 255) ? 255 : (int)(value + 0.5);
+    }
+}
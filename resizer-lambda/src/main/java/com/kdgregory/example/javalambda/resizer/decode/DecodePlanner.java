@@ -0,0 +1,64 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.Rectangle;
+import java.util.Collection;
+
+
+/**
+ *  Determines how much of an image we need to decode, based on the geometries of
+ *  the renditions that will be produced from it: the region that covers all of
+ *  them, and the resolution needed for the most demanding.
+ *  <p>
+ *  Subsampled decoding simply drops pixels, so the decoded image will alias if
+ *  it's used directly. To avoid this, the planner keeps a configurable multiple
+ *  of the largest target size (the "oversampling" factor), and leaves it to the
+ *  scaling engine to filter the remaining reduction.
+ */
+public class DecodePlanner
+{
+    private int oversampling;
+
+
+    public DecodePlanner(int oversampling)
+    {
+        this.oversampling = Math.max(1, oversampling);
+    }
+
+
+    /**
+     *  Returns the largest integer subsampling factor that will leave at least
+     *  <code>oversampling</code> times the resolution needed for each of the passed
+     *  geometries, in both dimensions. Returns 1 (ie, full resolution) if the image
+     *  is already smaller than that, or there are no geometries.
+     */
+    public int subsampling(Collection<RenditionGeometry> geometries)
+    {
+        if (geometries.isEmpty())
+            return 1;
+
+        int result = Integer.MAX_VALUE;
+        for (RenditionGeometry geometry : geometries)
+        {
+            Rectangle region = geometry.getRegion();
+            result = Math.min(result, region.width / (geometry.getWidth() * oversampling));
+            result = Math.min(result, region.height / (geometry.getHeight() * oversampling));
+        }
+        return Math.max(1, result);
+    }
+
+
+    /**
+     *  Returns the smallest region of the original that covers all of the passed
+     *  geometries, null if there are none.
+     */
+    public Rectangle region(Collection<RenditionGeometry> geometries)
+    {
+        Rectangle result = null;
+        for (RenditionGeometry geometry : geometries)
+        {
+            result = (result == null) ? geometry.getRegion() : result.union(geometry.getRegion());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import javax.imageio.stream.ImageInputStream;
+
+
+/**
+ *  Extracts the thumbnail image from a JPEG's EXIF (APP1) segment. The standard
+ *  JPEG reader only exposes JFIF thumbnails, but most cameras and phones write
+ *  their thumbnail into EXIF.
+ *  <p>
+ *  An EXIF segment holds a TIFF structure: IFD0 describes the main image, and
+ *  the optional IFD1 describes the thumbnail. A JPEG-compressed thumbnail is
+ *  identified by two IFD1 tags, holding its offset (relative to the start of the
+ *  TIFF header) and length.
+ */
+public class ExifThumbnail
+{
+    private final static int MARKER_SOI     = 0xD8;
+    private final static int MARKER_EOI     = 0xD9;
+    private final static int MARKER_SOS     = 0xDA;
+    private final static int MARKER_APP1    = 0xE1;
+
+    private final static int TAG_JPEG_OFFSET = 0x0201;
+    private final static int TAG_JPEG_LENGTH = 0x0202;
+
+    private final static byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+
+    /**
+     *  Reads the stream from its current position (which must be the start of a
+     *  JPEG), returning the bytes of the embedded EXIF thumbnail or null if there
+     *  isn't one. The stream position and byte order are not restored.
+     */
+    public static byte[] extract(ImageInputStream in)
+    throws IOException
+    {
+        in.setByteOrder(ByteOrder.BIG_ENDIAN);
+        if ((in.read() != 0xFF) || (in.read() != MARKER_SOI))
+            return null;
+
+        while (true)
+        {
+            int marker = nextMarker(in);
+            if ((marker < 0) || (marker == MARKER_SOS) || (marker == MARKER_EOI))
+                return null;
+
+            long segmentStart = in.getStreamPosition();
+            int segmentLength = in.readUnsignedShort();
+            if ((marker == MARKER_APP1) && isExif(in))
+            {
+                return extractFromTiff(in, in.getStreamPosition(), segmentStart + segmentLength);
+            }
+
+            in.seek(segmentStart + segmentLength);
+        }
+    }
+
+
+    /**
+     *  Skips to the next marker, returning its code or -1 at end of file.
+     */
+    private static int nextMarker(ImageInputStream in)
+    throws IOException
+    {
+        int b = in.read();
+        while ((b >= 0) && (b != 0xFF))
+            b = in.read();
+        while (b == 0xFF)
+            b = in.read();
+        return b;
+    }
+
+
+    private static boolean isExif(ImageInputStream in)
+    throws IOException
+    {
+        for (byte expected : EXIF_HEADER)
+        {
+            if (in.read() != (expected & 0xFF))
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     *  Walks the TIFF structure starting at the given position, looking for the
+     *  thumbnail tags in IFD1.
+     */
+    private static byte[] extractFromTiff(ImageInputStream in, long tiffStart, long segmentEnd)
+    throws IOException
+    {
+        int b0 = in.read();
+        int b1 = in.read();
+        if ((b0 == 'I') && (b1 == 'I'))
+            in.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        else if ((b0 == 'M') && (b1 == 'M'))
+            in.setByteOrder(ByteOrder.BIG_ENDIAN);
+        else
+            return null;
+
+        if (in.readUnsignedShort() != 42)
+            return null;
+
+        long ifd0 = in.readUnsignedInt();
+        if (! seekWithin(in, tiffStart + ifd0, segmentEnd))
+            return null;
+
+        int ifd0Entries = in.readUnsignedShort();
+        in.skipBytes(ifd0Entries * 12);
+
+        long ifd1 = in.readUnsignedInt();
+        if ((ifd1 == 0) || ! seekWithin(in, tiffStart + ifd1, segmentEnd))
+            return null;
+
+        long offset = -1;
+        long length = -1;
+        int ifd1Entries = in.readUnsignedShort();
+        for (int ii = 0 ; ii < ifd1Entries ; ii++)
+        {
+            int tag = in.readUnsignedShort();
+            in.skipBytes(6);                // type and count; both tags are a single LONG
+            long value = in.readUnsignedInt();
+            if (tag == TAG_JPEG_OFFSET)
+                offset = value;
+            else if (tag == TAG_JPEG_LENGTH)
+                length = value;
+        }
+
+        if ((offset <= 0) || (length <= 0) || (tiffStart + offset + length > segmentEnd))
+            return null;
+
+        byte[] thumbnail = new byte[(int)length];
+        in.seek(tiffStart + offset);
+        in.readFully(thumbnail);
+        return thumbnail;
+    }
+
+
+    private static boolean seekWithin(ImageInputStream in, long pos, long limit)
+    throws IOException
+    {
+        if (pos >= limit)
+            return false;
+        in.seek(pos);
+        return true;
+    }
+}
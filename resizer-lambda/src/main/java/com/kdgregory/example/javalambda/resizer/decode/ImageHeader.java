@@ -0,0 +1,253 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.io.EOFException;
+
+
+/**
+ *  Extracts the format and dimensions of an image from the first bytes of its
+ *  content, so that the Resizer can decide whether (and how) to process an image
+ *  without downloading all of it. Recognizes JPEG, PNG, GIF, and BMP.
+ *  <p>
+ *  This is separate from {@link ImageSource} because ImageIO's readers expect to
+ *  see a complete header: the JPEG reader, for example, must see all of the tables
+ *  preceding the image data, and reports a variety of errors if the content ends
+ *  early. Here we look only for the fields that we need.
+ */
+public class ImageHeader
+{
+    public final static String JPEG = "JPEG";
+    public final static String PNG  = "PNG";
+    public final static String GIF  = "GIF";
+    public final static String BMP  = "BMP";
+
+    private final static byte[] PNG_SIGNATURE = new byte[] { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private String format;
+    private int width;
+    private int height;
+
+
+    public ImageHeader(String format, int width, int height)
+    {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+     *  Parses the header from the passed content. Returns null if the content isn't
+     *  a recognized image format (or is corrupt), throws <code>EOFException</code>
+     *  if the content ends before the dimensions are found.
+     */
+    public static ImageHeader parse(byte[] content)
+    throws EOFException
+    {
+        ImageHeader header = null;
+        if (startsWith(content, new byte[] { (byte)0xFF, (byte)0xD8 }))
+            header = parseJpeg(content);
+        else if (startsWith(content, PNG_SIGNATURE))
+            header = parsePng(content);
+        else if (startsWith(content, "GIF87a".getBytes()) || startsWith(content, "GIF89a".getBytes()))
+            header = parseGif(content);
+        else if (startsWith(content, "BM".getBytes()))
+            header = parseBmp(content);
+        else if (content.length < PNG_SIGNATURE.length)
+            throw new EOFException("content too short to identify: " + content.length + " bytes");
+
+        // dimensions are unsigned in some formats, so a corrupt file may appear negative
+        if ((header == null) || (header.width <= 0) || (header.height <= 0))
+            return null;
+
+        return header;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Accessors
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the format name: one of the constants defined by this class.
+     */
+    public String getFormat()
+    {
+        return format;
+    }
+
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    /**
+     *  Returns the number of pixels in the image.
+     */
+    public long getPixels()
+    {
+        return (long)width * height;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return format + " " + width + "x" + height;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Walks the JPEG marker segments until it finds a start-of-frame segment. The
+     *  EXIF segment, which contains an embedded thumbnail, usually precedes this,
+     *  so it may be tens of kilobytes into the file.
+     */
+    private static ImageHeader parseJpeg(byte[] content)
+    throws EOFException
+    {
+        int pos = 2;
+        while (true)
+        {
+            if (u8(content, pos) != 0xFF)
+                return null;
+
+            // markers may be preceded by any number of fill bytes
+            int marker = u8(content, pos + 1);
+            while (marker == 0xFF)
+            {
+                pos++;
+                marker = u8(content, pos + 1);
+            }
+            pos += 2;
+
+            // restart markers and TEM are standalone; SOS or EOI before SOF means a corrupt file
+            if (((marker >= 0xD0) && (marker <= 0xD7)) || (marker == 0x01))
+                continue;
+            if ((marker == 0xDA) || (marker == 0xD9))
+                return null;
+
+            int length = u16be(content, pos);
+            if (isStartOfFrame(marker))
+            {
+                int height = u16be(content, pos + 3);
+                int width = u16be(content, pos + 5);
+                return new ImageHeader(JPEG, width, height);
+            }
+            pos += length;
+        }
+    }
+
+
+    /**
+     *  SOF0 through SOF15, excluding DHT, JPG, and DAC (which share that range).
+     */
+    private static boolean isStartOfFrame(int marker)
+    {
+        return (marker >= 0xC0) && (marker <= 0xCF)
+            && (marker != 0xC4) && (marker != 0xC8) && (marker != 0xCC);
+    }
+
+
+    /**
+     *  The IHDR chunk must immediately follow the signature.
+     */
+    private static ImageHeader parsePng(byte[] content)
+    throws EOFException
+    {
+        int pos = PNG_SIGNATURE.length;
+        if ((u8(content, pos + 4) != 'I') || (u8(content, pos + 5) != 'H')
+                || (u8(content, pos + 6) != 'D') || (u8(content, pos + 7) != 'R'))
+            return null;
+
+        return new ImageHeader(PNG, u32be(content, pos + 8), u32be(content, pos + 12));
+    }
+
+
+    /**
+     *  Uses the logical screen dimensions, which all frames must fit within.
+     */
+    private static ImageHeader parseGif(byte[] content)
+    throws EOFException
+    {
+        return new ImageHeader(GIF, u16le(content, 6), u16le(content, 8));
+    }
+
+
+    /**
+     *  The dimensions are in the info header that follows the file header; the
+     *  original OS/2 header uses 16-bit values, later headers use 32-bit, and a
+     *  negative height indicates a top-down image.
+     */
+    private static ImageHeader parseBmp(byte[] content)
+    throws EOFException
+    {
+        int headerSize = u32le(content, 14);
+        if (headerSize == 12)
+            return new ImageHeader(BMP, u16le(content, 18), u16le(content, 20));
+
+        return new ImageHeader(BMP, u32le(content, 18), Math.abs(u32le(content, 22)));
+    }
+
+
+    private static boolean startsWith(byte[] content, byte[] prefix)
+    {
+        if (content.length < prefix.length)
+            return false;
+
+        for (int ii = 0 ; ii < prefix.length ; ii++)
+        {
+            if (content[ii] != prefix[ii])
+                return false;
+        }
+        return true;
+    }
+
+
+    private static int u8(byte[] content, int pos)
+    throws EOFException
+    {
+        if (pos >= content.length)
+            throw new EOFException("header extends past offset " + content.length);
+        return content[pos] & 0xFF;
+    }
+
+
+    private static int u16be(byte[] content, int pos)
+    throws EOFException
+    {
+        return (u8(content, pos) << 8) | u8(content, pos + 1);
+    }
+
+
+    private static int u16le(byte[] content, int pos)
+    throws EOFException
+    {
+        return u8(content, pos) | (u8(content, pos + 1) << 8);
+    }
+
+
+    private static int u32be(byte[] content, int pos)
+    throws EOFException
+    {
+        return (u16be(content, pos) << 16) | u16be(content, pos + 2);
+    }
+
+
+    private static int u32le(byte[] content, int pos)
+    throws EOFException
+    {
+        return u16le(content, pos) | (u16le(content, pos + 2) << 16);
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+/**
+ *  Converts decoded images into one of the layouts that Java2D and the scaling
+ *  engines handle efficiently: <code>TYPE_INT_RGB</code>, <code>TYPE_INT_ARGB</code>,
+ *  <code>TYPE_3BYTE_BGR</code>, or <code>TYPE_BYTE_GRAY</code>. Images that already
+ *  have one of these layouts are returned as-is; others are converted once, so that
+ *  all subsequent operations use the fast paths.
+ *  <p>
+ *  ImageIO produces other layouts for many non-JPEG images: PNGs with alpha are
+ *  decoded as <code>TYPE_4BYTE_ABGR</code>, palette PNGs as <code>TYPE_BYTE_INDEXED</code>
+ *  or <code>TYPE_BYTE_BINARY</code>, 16-bit PNGs and grayscale images with alpha as
+ *  <code>TYPE_CUSTOM</code>. A <code>TYPE_CUSTOM</code> image can't be used as a
+ *  template for <code>new BufferedImage()</code>, and drawing it goes through Java2D's
+ *  generic (slow) loops.
+ */
+public class ImageNormalizer
+{
+    private RasterPool pool;
+
+
+    public ImageNormalizer(RasterPool pool)
+    {
+        this.pool = pool;
+    }
+
+
+    /**
+     *  Returns the passed image if it has one of the standard layouts, otherwise a
+     *  converted copy (taken from the pool). The caller is responsible for releasing
+     *  the original if it's no longer needed.
+     */
+    public BufferedImage normalize(BufferedImage img)
+    {
+        if (isNormalized(img))
+            return img;
+
+        boolean hasAlpha = img.getColorModel().hasAlpha();
+        boolean isGray = img.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+
+        if (isGray && ! hasAlpha)
+            return toGray(img);
+
+        BufferedImage result = pool.acquire(img.getWidth(), img.getHeight(),
+                                            hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return result;
+    }
+
+
+    /**
+     *  Normalizes the passed image, returning it to the pool if it had to be converted.
+     *  This is used for decoded images that aren't needed in their original layout.
+     */
+    public BufferedImage replace(BufferedImage img)
+    {
+        BufferedImage result = normalize(img);
+        if (result != img)
+        {
+            pool.release(img);
+        }
+        return result;
+    }
+
+
+    /**
+     *  Determines whether the image has one of the standard types, and its pixels
+     *  occupy the entirety of its raster, in row order (which is not true for
+     *  sub-images).
+     */
+    public static boolean isNormalized(BufferedImage img)
+    {
+        switch (img.getType())
+        {
+            case BufferedImage.TYPE_INT_RGB :
+            case BufferedImage.TYPE_INT_ARGB :
+            case BufferedImage.TYPE_3BYTE_BGR :
+            case BufferedImage.TYPE_BYTE_GRAY :
+                break;
+            default :
+                return false;
+        }
+
+        WritableRaster raster = img.getRaster();
+        if ((raster.getParent() != null) || (raster.getDataBuffer().getOffset() != 0))
+            return false;
+
+        SampleModel sm = raster.getSampleModel();
+        if (sm instanceof SinglePixelPackedSampleModel)
+            return ((SinglePixelPackedSampleModel)sm).getScanlineStride() == img.getWidth();
+        if (sm instanceof ComponentSampleModel)
+        {
+            ComponentSampleModel csm = (ComponentSampleModel)sm;
+            return csm.getScanlineStride() == img.getWidth() * csm.getPixelStride();
+        }
+        return false;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Converts a grayscale image to 8 bits per pixel. This copies samples directly,
+     *  rather than drawing, because Java2D treats the (linear) gray colorspace as
+     *  different from the (gamma-corrected) sRGB colorspace, and would lighten the
+     *  image.
+     */
+    private BufferedImage toGray(BufferedImage img)
+    {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        Raster src = img.getRaster();
+        int bits = img.getColorModel().getComponentSize(0);
+        int max = (1 << bits) - 1;
+
+        BufferedImage result = pool.acquire(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster dst = result.getRaster();
+        int[] row = new int[width];
+        for (int y = 0 ; y < height ; y++)
+        {
+            src.getSamples(0, y, width, 1, 0, row);
+            if (bits != 8)
+            {
+                for (int x = 0 ; x < width ; x++)
+                {
+                    row[x] = (row[x] * 255 + max / 2) / max;
+                }
+            }
+            dst.setSamples(0, y, width, 1, 0, row);
+        }
+        return result;
+    }
+}
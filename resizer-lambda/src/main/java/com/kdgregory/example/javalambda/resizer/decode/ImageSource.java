@@ -0,0 +1,348 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import com.kdgregory.example.javalambda.resizer.pool.ByteChunkPool;
+import com.kdgregory.example.javalambda.resizer.pool.ChunkedOutputStream;
+import com.kdgregory.example.javalambda.resizer.pool.PooledImageInputStream;
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+
+/**
+ *  Wraps encoded image content, along with the <code>ImageReader</code> used to
+ *  decode it. Construction reads only as much of the content as needed to identify
+ *  its format; the dimensions are read (from the image header) on first request.
+ *  When constructed from a stream, the content is read as it's needed, so that
+ *  decoding can proceed while the content is still arriving.
+ *  <p>
+ *  Instances must be closed after use, to release the reader's native resources.
+ */
+public class ImageSource
+implements Closeable
+{
+    // thumbnail dimensions are rounded, so we can't expect an exact aspect ratio
+    private final static double MAX_ASPECT_DIFFERENCE = 0.02;
+
+    // used to identify CMYK/YCCK JPEGs
+    private final static String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private final static int    ADOBE_TRANSFORM_YCCK = 2;
+
+    private ImageInputStream in;
+    private ImageReader reader;
+
+
+    public ImageSource(byte[] content)
+    throws IOException
+    {
+        this(new ByteArrayInputStream(content));
+    }
+
+
+    /**
+     *  Constructs an instance that reads from the passed stream. The caller remains
+     *  responsible for closing that stream.
+     */
+    public ImageSource(InputStream content)
+    throws IOException
+    {
+        // we create the stream explicitly because ImageIO's default is to cache on disk
+        this(new MemoryCacheImageInputStream(content));
+    }
+
+
+    /**
+     *  Constructs an instance that reads from the passed stream, caching its content
+     *  in chunks taken from the passed pool. The caller remains responsible for closing
+     *  the stream; the chunks are returned to the pool when this object is closed.
+     */
+    public ImageSource(InputStream content, ByteChunkPool chunkPool)
+    throws IOException
+    {
+        this(new PooledImageInputStream(content, chunkPool));
+    }
+
+
+    /**
+     *  Constructs an instance that reads content that's already been written to pooled
+     *  chunks, without copying it. The caller remains responsible for closing the passed
+     *  stream, which must not be closed before this object.
+     */
+    public ImageSource(ChunkedOutputStream content)
+    throws IOException
+    {
+        this(content.toImageInputStream());
+    }
+
+
+    private ImageSource(ImageInputStream in)
+    throws IOException
+    {
+        this.in = in;
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (! readers.hasNext())
+        {
+            in.close();
+            throw new IIOException("no ImageReader for content");
+        }
+
+        reader = readers.next();
+        reader.setInput(in);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the format of the image, as reported by its reader (eg: "JPEG").
+     */
+    public String getFormatName()
+    throws IOException
+    {
+        return reader.getFormatName();
+    }
+
+
+    /**
+     *  Returns the full width of the image.
+     */
+    public int getWidth()
+    throws IOException
+    {
+        return reader.getWidth(0);
+    }
+
+
+    /**
+     *  Returns the full height of the image.
+     */
+    public int getHeight()
+    throws IOException
+    {
+        return reader.getHeight(0);
+    }
+
+
+    /**
+     *  Returns the largest embedded thumbnail that's at least the given width and
+     *  has the same aspect ratio as the main image, null if there isn't one. Looks
+     *  for thumbnails exposed by the reader (eg, JFIF), as well as those stored in a
+     *  JPEG's EXIF segment.
+     */
+    public BufferedImage readThumbnail(int minWidth)
+    throws IOException
+    {
+        BufferedImage best = null;
+        if (reader.readerSupportsThumbnails())
+        {
+            for (int ii = 0 ; ii < reader.getNumThumbnails(0) ; ii++)
+            {
+                best = chooseThumbnail(best, reader.readThumbnail(0, ii), minWidth);
+            }
+        }
+
+        if ("JPEG".equalsIgnoreCase(reader.getFormatName()))
+        {
+            byte[] exifThumbnail;
+            in.mark();
+            try
+            {
+                in.seek(0);
+                exifThumbnail = ExifThumbnail.extract(in);
+            }
+            finally
+            {
+                in.reset();
+            }
+
+            if (exifThumbnail != null)
+            {
+                // note: ImageIO.read() closes the stream
+                ImageInputStream thumbIn = new MemoryCacheImageInputStream(new ByteArrayInputStream(exifThumbnail));
+                best = chooseThumbnail(best, ImageIO.read(thumbIn), minWidth);
+            }
+        }
+
+        return best;
+    }
+
+
+    /**
+     *  Decodes the image, taking every Nth pixel in each dimension. Pass 1 to
+     *  decode the image at full resolution.
+     */
+    public BufferedImage read(int subsampling)
+    throws IOException
+    {
+        return read(subsampling, null);
+    }
+
+
+    /**
+     *  Decodes the image, taking every Nth pixel in each dimension, into an image
+     *  taken from the passed pool. If the reader's preferred image type can't be
+     *  pooled, or the pool is null, the reader allocates the image.
+     */
+    public BufferedImage read(int subsampling, RasterPool pool)
+    throws IOException
+    {
+        return read(null, subsampling, pool);
+    }
+
+
+    /**
+     *  Decodes a region of the image (null for the entire image), taking every Nth
+     *  pixel in each dimension, into an image taken from the passed pool. The JPEG
+     *  reader still decompresses every row down to the bottom of the region, but
+     *  only converts and stores the pixels within it, and stops reading after it.
+     *  <p>
+     *  CMYK and YCCK JPEGs, which the JDK's reader can't convert into an image, are
+     *  read as raw samples and converted to <code>TYPE_INT_RGB</code>.
+     */
+    public BufferedImage read(Rectangle region, int subsampling, RasterPool pool)
+    throws IOException
+    {
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (subsampling > 1)
+        {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+
+        if ((region != null) && ! region.equals(new Rectangle(0, 0, getWidth(), getHeight())))
+        {
+            param.setSourceRegion(region);
+        }
+        else
+        {
+            region = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        ImageTypeSpecifier spec = types.hasNext() ? types.next() : null;
+        if (isCmyk(spec))
+        {
+            return readCmyk(param, pool);
+        }
+
+        if (pool != null)
+        {
+            int type = (spec != null) ? spec.getBufferedImageType() : BufferedImage.TYPE_CUSTOM;
+            if (type != BufferedImage.TYPE_CUSTOM)
+            {
+                int width = (region.width + subsampling - 1) / subsampling;
+                int height = (region.height + subsampling - 1) / subsampling;
+                param.setDestination(pool.acquire(width, height, type));
+            }
+        }
+
+        return reader.read(0, param);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Determines whether the image is a CMYK or YCCK JPEG. The Java 8 reader doesn't
+     *  report any image types for these; later readers report a CMYK image, which is
+     *  of no use to Java2D.
+     */
+    private boolean isCmyk(ImageTypeSpecifier spec)
+    throws IOException
+    {
+        if (! "JPEG".equalsIgnoreCase(reader.getFormatName()))
+            return false;
+
+        return (spec == null)
+            || (spec.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_CMYK);
+    }
+
+
+    /**
+     *  Reads a JPEG that uses the CMYK or YCCK colorspace. The Adobe APP14 segment
+     *  in the image metadata tells us how the samples are encoded.
+     */
+    private BufferedImage readCmyk(ImageReadParam param, RasterPool pool)
+    throws IOException
+    {
+        Raster raster = reader.readRaster(0, param);
+        if (raster.getNumBands() != 4)
+            throw new IIOException("unsupported JPEG colorspace: " + raster.getNumBands() + " bands");
+
+        boolean hasAdobe = false;
+        boolean isYcck = false;
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        Element root = (Element)metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList adobe = root.getElementsByTagName("app14Adobe");
+        if (adobe.getLength() > 0)
+        {
+            hasAdobe = true;
+            String transform = ((Element)adobe.item(0)).getAttribute("transform");
+            isYcck = String.valueOf(ADOBE_TRANSFORM_YCCK).equals(transform);
+        }
+
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        BufferedImage dst = (pool != null)
+                          ? pool.acquire(width, height, BufferedImage.TYPE_INT_RGB)
+                          : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        return CmykConverter.toRgb(raster, hasAdobe, isYcck, dst);
+    }
+
+
+    /**
+     *  Returns the better of two thumbnails, either of which may be null, where
+     *  "better" means that it satisfies our size and aspect ratio requirements and
+     *  is larger.
+     */
+    private BufferedImage chooseThumbnail(BufferedImage current, BufferedImage candidate, int minWidth)
+    throws IOException
+    {
+        if ((candidate == null) || (candidate.getWidth() < minWidth))
+            return current;
+
+        // thumbnails are often letterboxed to a standard size; we can't use those
+        double srcAspect = (double)getWidth() / getHeight();
+        double thumbAspect = (double)candidate.getWidth() / candidate.getHeight();
+        if (Math.abs(srcAspect - thumbAspect) / srcAspect > MAX_ASPECT_DIFFERENCE)
+            return current;
+
+        if ((current != null) && (current.getWidth() >= candidate.getWidth()))
+            return current;
+
+        return candidate;
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        reader.dispose();
+        in.close();
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.Rectangle;
+
+import com.kdgregory.example.javalambda.shared.data.FitMode;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+/**
+ *  Describes how a rendition is produced from the original image: the region of
+ *  the original that it shows, and the dimensions that region is scaled to. This
+ *  is calculated from the full dimensions of the original, and the size's
+ *  {@link FitMode}. Images are never enlarged: if the original is smaller than
+ *  the size, the result is the same as the original (or, for <code>COVER</code>,
+ *  a crop of it).
+ *  <p>
+ *  Instances are immutable, and equal if they would produce the same rendition.
+ */
+public class RenditionGeometry
+{
+    private Rectangle region;
+    private int width;
+    private int height;
+
+
+    public RenditionGeometry(Rectangle region, int width, int height)
+    {
+        this.region = new Rectangle(region);
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+     *  Calculates the geometry for a size, given the dimensions of the original.
+     */
+    public static RenditionGeometry compute(int srcWidth, int srcHeight, Sizes size)
+    {
+        Rectangle full = new Rectangle(0, 0, srcWidth, srcHeight);
+        if (size == Sizes.ORIGINAL)
+            return new RenditionGeometry(full, srcWidth, srcHeight);
+
+        double widthRatio = (double)size.getWidth() / srcWidth;
+        double heightRatio = (double)size.getHeight() / srcHeight;
+        switch (size.getFitMode())
+        {
+            case WIDTH :
+                return scaled(full, Math.min(1.0, widthRatio));
+            case FIT :
+                return scaled(full, Math.min(1.0, Math.min(widthRatio, heightRatio)));
+            case COVER :
+                double scale = Math.min(1.0, Math.max(widthRatio, heightRatio));
+                int regionWidth = Math.min(srcWidth, (int)Math.round(size.getWidth() / scale));
+                int regionHeight = Math.min(srcHeight, (int)Math.round(size.getHeight() / scale));
+                Rectangle region = new Rectangle((srcWidth - regionWidth) / 2, (srcHeight - regionHeight) / 2,
+                                                 regionWidth, regionHeight);
+                return new RenditionGeometry(region,
+                                             Math.min(size.getWidth(), regionWidth),
+                                             Math.min(size.getHeight(), regionHeight));
+            default :
+                throw new IllegalArgumentException("unsupported fit mode: " + size.getFitMode());
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Accessors
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the region of the original image that's shown in the rendition. This is
+     *  a copy; modifying it doesn't affect the geometry.
+     */
+    public Rectangle getRegion()
+    {
+        return new Rectangle(region);
+    }
+
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    /**
+     *  Returns the ratio of rendition pixels to original pixels, horizontally.
+     */
+    public double getScale()
+    {
+        return (double)width / region.width;
+    }
+
+
+    /**
+     *  Determines whether the rendition would be identical to the original.
+     */
+    public boolean isIdentity(int srcWidth, int srcHeight)
+    {
+        return (region.x == 0) && (region.y == 0)
+            && (region.width == srcWidth) && (region.height == srcHeight)
+            && (width == srcWidth) && (height == srcHeight);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Object overrides
+//----------------------------------------------------------------------------
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (! (obj instanceof RenditionGeometry))
+            return false;
+
+        RenditionGeometry that = (RenditionGeometry)obj;
+        return this.region.equals(that.region)
+            && (this.width == that.width)
+            && (this.height == that.height);
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+        return region.hashCode() * 31 + width * 17 + height;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "RenditionGeometry[region = " + region.x + "," + region.y + " " + region.width + "x" + region.height
+             + ", width = " + width + ", height = " + height + "]";
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static RenditionGeometry scaled(Rectangle full, double scale)
+    {
+        int width = Math.max(1, (int)Math.round(full.width * scale));
+        int height = Math.max(1, (int)Math.round(full.height * scale));
+        return new RenditionGeometry(full, width, height);
+    }
+}
@@ -0,0 +1,148 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.encode;
+
+import com.kdgregory.example.javalambda.shared.config.Environment;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+/**
+ *  Controls how a rendition is encoded. Quality, target size, and progressive mode
+ *  only apply to JPEG; compression level, row filter, and palette conversion only
+ *  apply to PNG. Settings that don't apply to the image's format are ignored.
+ */
+public class EncodingParams
+{
+    /** The quality used by the JDK's JPEG writer if not told otherwise. */
+    public final static float DEFAULT_QUALITY = 0.75f;
+
+    /** By default, images with up to this many colors are converted to palette images. */
+    public final static int DEFAULT_PNG_COLORS = 4096;
+
+    private float quality;
+    private int targetBytes;
+    private boolean progressive;
+    private int pngLevel;
+    private PngFilter pngFilter;
+    private int pngColors;
+
+
+    /**
+     *  @param  quality     The compression quality, from 0.0 to 1.0.
+     *  @param  targetBytes The maximum desired size of the encoded image; if the image
+     *                      is larger than this at the specified quality, the quality is
+     *                      reduced until it fits. Zero means no limit.
+     *  @param  progressive If true, the image is written as progressive JPEG.
+     *  @param  pngLevel    The deflate level for PNG images, 0 to 9.
+     *  @param  pngFilter   The row filter for PNG images.
+     *  @param  pngColors   PNG images with no more than this many colors are written
+     *                      as palette images (reduced to 256 colors if necessary).
+     *                      Zero disables conversion.
+     */
+    public EncodingParams(float quality, int targetBytes, boolean progressive,
+                          int pngLevel, PngFilter pngFilter, int pngColors)
+    {
+        if ((quality <= 0) || (quality > 1))
+            throw new IllegalArgumentException("quality must be > 0 and <= 1: " + quality);
+        if ((pngLevel < 0) || (pngLevel > 9))
+            throw new IllegalArgumentException("PNG level must be between 0 and 9: " + pngLevel);
+
+        this.quality = quality;
+        this.targetBytes = targetBytes;
+        this.progressive = progressive;
+        this.pngLevel = pngLevel;
+        this.pngFilter = pngFilter;
+        this.pngColors = pngColors;
+    }
+
+
+    /**
+     *  Constructs an instance with the default PNG settings: maximum compression,
+     *  adaptive filtering, and palette conversion for images with few colors.
+     */
+    public EncodingParams(float quality, int targetBytes, boolean progressive)
+    {
+        this(quality, targetBytes, progressive, 9, PngFilter.ADAPTIVE, DEFAULT_PNG_COLORS);
+    }
+
+
+    /**
+     *  Creates an instance from the environment variables <code>RESIZER_QUALITY</code>,
+     *  <code>RESIZER_TARGET_SIZE</code>, <code>RESIZER_PROGRESSIVE</code>,
+     *  <code>RESIZER_PNG_LEVEL</code>, <code>RESIZER_PNG_FILTER</code>, and
+     *  <code>RESIZER_PNG_COLORS</code>, any of which may be overridden for the
+     *  specific size.
+     */
+    public static EncodingParams fromEnvironment(Sizes size)
+    {
+        String quality = Environment.getForSize(Environment.RESIZER_QUALITY, size, String.valueOf(DEFAULT_QUALITY));
+        String targetBytes = Environment.getForSize(Environment.RESIZER_TARGET_SIZE, size, "0");
+        String progressive = Environment.getForSize(Environment.RESIZER_PROGRESSIVE, size, "false");
+        String pngLevel = Environment.getForSize(Environment.RESIZER_PNG_LEVEL, size, "9");
+        String pngFilter = Environment.getForSize(Environment.RESIZER_PNG_FILTER, size, PngFilter.ADAPTIVE.name());
+        String pngColors = Environment.getForSize(Environment.RESIZER_PNG_COLORS, size, String.valueOf(DEFAULT_PNG_COLORS));
+        try
+        {
+            return new EncodingParams(Float.parseFloat(quality),
+                                      Integer.parseInt(targetBytes),
+                                      Boolean.parseBoolean(progressive),
+                                      Integer.parseInt(pngLevel),
+                                      PngFilter.lookup(pngFilter),
+                                      Integer.parseInt(pngColors));
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("invalid encoding configuration for " + size
+                                               + ": quality = " + quality + ", target bytes = " + targetBytes
+                                               + ", PNG level = " + pngLevel + ", PNG colors = " + pngColors);
+        }
+    }
+
+
+    public float getQuality()
+    {
+        return quality;
+    }
+
+
+    public int getTargetBytes()
+    {
+        return targetBytes;
+    }
+
+
+    public boolean isProgressive()
+    {
+        return progressive;
+    }
+
+
+    public int getPngLevel()
+    {
+        return pngLevel;
+    }
+
+
+    public PngFilter getPngFilter()
+    {
+        return pngFilter;
+    }
+
+
+    public int getPngColors()
+    {
+        return pngColors;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "EncodingParams[quality = " + quality
+             + ", targetBytes = " + targetBytes
+             + ", progressive = " + progressive
+             + ", pngLevel = " + pngLevel
+             + ", pngFilter = " + pngFilter
+             + ", pngColors = " + pngColors
+             + "]";
+    }
+}
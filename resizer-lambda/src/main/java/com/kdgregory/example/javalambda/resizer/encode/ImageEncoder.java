@@ -0,0 +1,287 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.encode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+import com.kdgregory.example.javalambda.resizer.pool.ByteChunkPool;
+import com.kdgregory.example.javalambda.resizer.pool.PooledImageOutputStream;
+
+
+/**
+ *  Encodes renditions. Each image is written into a pooled buffer, and then copied
+ *  to its destination; this allows an image that's larger than its target size to
+ *  be re-encoded at lower quality. The quality is chosen by binary search, from the
+ *  configured quality down to a fixed minimum, and is the highest quality that fits
+ *  (or the minimum if nothing fits).
+ *  <p>
+ *  Renditions don't carry metadata: for JPEG, the JFIF segment is omitted (nothing
+ *  else is written for an image that doesn't come with metadata).
+ *  <p>
+ *  PNG images are written by {@link PngEncoder} rather than ImageIO, after conversion
+ *  to a palette image by {@link PaletteQuantizer} if they have few enough colors.
+ *  Since these are written sequentially, they're written directly to the destination.
+ *  <p>
+ *  Looking up an <code>ImageWriter</code> involves iterating the service registry,
+ *  and creating one allocates native resources, so writers are cached. Writers
+ *  aren't thread-safe, so each thread has its own cache. This class is thread-safe.
+ */
+public class ImageEncoder
+{
+    private final static String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private final static String JPEG_COMPRESSION_TYPE = "JPEG";
+    private final static String PNG_MIME_TYPE = "image/png";
+
+    // below this, JPEG artifacts are obvious at any size
+    private final static float MIN_SEARCH_QUALITY = 0.3f;
+
+    // each step halves the quality range; six steps gets us within 0.01
+    private final static int MAX_SEARCH_STEPS = 6;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private ByteChunkPool chunkPool;
+    private ThreadLocal<Map<String,ImageWriter>> writerCache = ThreadLocal.withInitial(HashMap::new);
+
+
+    public ImageEncoder(ByteChunkPool chunkPool)
+    {
+        this.chunkPool = chunkPool;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Encodes the image in the format identified by the MIME type, and writes it to
+     *  the passed stream (which is not closed). Throws if there's no writer for the
+     *  format, or if unable to write.
+     */
+    public void encode(BufferedImage img, String mimeType, EncodingParams params, OutputStream out)
+    throws IOException
+    {
+        if (PNG_MIME_TYPE.equals(mimeType))
+        {
+            encodePng(img, params, out);
+            return;
+        }
+
+        ImageWriter writer = writerFor(mimeType);
+        PooledImageOutputStream best = null;
+        try
+        {
+            best = write(writer, img, params, params.getQuality());
+            if ((params.getTargetBytes() > 0) && (best.length() > params.getTargetBytes())
+                    && supportsQuality(writer.getDefaultWriteParam()))
+            {
+                best = searchQuality(writer, img, params, best);
+            }
+            best.writeTo(out);
+        }
+        catch (IOException|RuntimeException ex)
+        {
+            // the writer may be in an inconsistent state, so don't reuse it
+            writerCache.get().remove(mimeType);
+            writer.dispose();
+            throw ex;
+        }
+        finally
+        {
+            if (best != null)
+            {
+                best.close();
+            }
+        }
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void encodePng(BufferedImage img, EncodingParams params, OutputStream out)
+    throws IOException
+    {
+        if (params.getPngColors() > 0)
+        {
+            BufferedImage palette = PaletteQuantizer.quantize(img, params.getPngColors());
+            if (palette != null)
+            {
+                logger.debug("converted to palette image with {} colors",
+                             ((IndexColorModel)palette.getColorModel()).getMapSize());
+                img = palette;
+            }
+        }
+
+        new PngEncoder(params.getPngLevel(), params.getPngFilter()).write(img, out);
+    }
+
+
+    private ImageWriter writerFor(String mimeType)
+    throws IOException
+    {
+        Map<String,ImageWriter> writers = writerCache.get();
+        ImageWriter writer = writers.get(mimeType);
+        if (writer == null)
+        {
+            Iterator<ImageWriter> itx = ImageIO.getImageWritersByMIMEType(mimeType);
+            if (! itx.hasNext())
+                throw new IIOException("no ImageWriter for MIME type " + mimeType);
+
+            writer = itx.next();
+            writers.put(mimeType, writer);
+        }
+        return writer;
+    }
+
+
+    private static boolean supportsQuality(ImageWriteParam param)
+    {
+        return param.canWriteCompressed()
+            && Arrays.asList(param.getCompressionTypes()).contains(JPEG_COMPRESSION_TYPE);
+    }
+
+
+    /**
+     *  Finds the highest quality that produces an image no larger than the target,
+     *  given the image encoded at the configured quality. Returns the encoded image,
+     *  closing the passed one if it's not the result.
+     */
+    private PooledImageOutputStream searchQuality(
+        ImageWriter writer, BufferedImage img, EncodingParams params, PooledImageOutputStream initial)
+    throws IOException
+    {
+        float low = MIN_SEARCH_QUALITY;
+        float high = params.getQuality();
+        if (high <= low)
+            return initial;
+
+        // the minimum is our fallback if nothing fits
+        initial.close();
+        PooledImageOutputStream best = write(writer, img, params, low);
+        if (best.length() > params.getTargetBytes())
+        {
+            logger.debug("unable to meet target size {}; {} bytes at minimum quality",
+                         params.getTargetBytes(), best.length());
+            return best;
+        }
+
+        float bestQuality = low;
+        try
+        {
+            for (int step = 0 ; step < MAX_SEARCH_STEPS ; step++)
+            {
+                float quality = (low + high) / 2;
+                PooledImageOutputStream candidate = write(writer, img, params, quality);
+                if (candidate.length() <= params.getTargetBytes())
+                {
+                    best.close();
+                    best = candidate;
+                    bestQuality = quality;
+                    low = quality;
+                }
+                else
+                {
+                    candidate.close();
+                    high = quality;
+                }
+            }
+        }
+        catch (IOException|RuntimeException ex)
+        {
+            best.close();
+            throw ex;
+        }
+
+        logger.debug("reduced quality to {} to meet target size {}; actual size {}",
+                     bestQuality, params.getTargetBytes(), best.length());
+        return best;
+    }
+
+
+    /**
+     *  Encodes the image at the specified quality, returning the buffered result.
+     */
+    private PooledImageOutputStream write(ImageWriter writer, BufferedImage img, EncodingParams params, float quality)
+    throws IOException
+    {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (supportsQuality(param))
+        {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType(JPEG_COMPRESSION_TYPE);
+            param.setCompressionQuality(quality);
+        }
+        if (params.isProgressive() && param.canWriteProgressive())
+        {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img), param);
+        stripMetadata(metadata);
+
+        PooledImageOutputStream ios = new PooledImageOutputStream(chunkPool);
+        try
+        {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, metadata), param);
+            return ios;
+        }
+        catch (IOException|RuntimeException ex)
+        {
+            ios.close();
+            throw ex;
+        }
+        finally
+        {
+            writer.setOutput(null);
+        }
+    }
+
+
+    /**
+     *  Removes optional segments from the writer's default metadata. At present this
+     *  only applies to JPEG, where it removes the JFIF segment (the image's components
+     *  are still identified as YCbCr or grayscale by their count).
+     */
+    private static void stripMetadata(IIOMetadata metadata)
+    throws IOException
+    {
+        if ((metadata == null) || ! JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName()))
+            return;
+
+        IIOMetadataNode root = (IIOMetadataNode)metadata.getAsTree(JPEG_METADATA_FORMAT);
+        for (Node child = root.getFirstChild() ; child != null ; child = child.getNextSibling())
+        {
+            if ("JPEGvariety".equals(child.getNodeName()))
+            {
+                while (child.hasChildNodes())
+                {
+                    child.removeChild(child.getFirstChild());
+                }
+            }
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+    }
+}
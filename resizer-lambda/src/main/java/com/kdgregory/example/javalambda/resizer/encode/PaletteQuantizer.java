@@ -0,0 +1,347 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.encode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.PriorityQueue;
+
+
+/**
+ *  Converts images with a limited number of colors into palette images. If the image
+ *  has no more than 256 distinct colors (including alpha), the palette is exact.
+ *  Otherwise, if the image has no more than a configured number of colors, they're
+ *  reduced to 256 using median cut: the color space is repeatedly divided at the
+ *  median of its widest channel, and each resulting box is represented by the
+ *  weighted average of its colors. There's no dithering: this is intended for
+ *  graphics and screenshots, where the "extra" colors come from antialiasing.
+ *  <p>
+ *  All fully-transparent pixels are treated as the same color.
+ */
+public class PaletteQuantizer
+{
+    private final static int MAX_PALETTE_SIZE = 256;
+
+
+    /**
+     *  Returns a palette version of the passed image, null if it has more than the
+     *  specified number of colors.
+     */
+    public static BufferedImage quantize(BufferedImage img, int maxColors)
+    {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] pixels = img.getRGB(0, 0, width, height, null, 0, width);
+        for (int ii = 0 ; ii < pixels.length ; ii++)
+        {
+            if ((pixels[ii] >>> 24) == 0)
+                pixels[ii] = 0;
+        }
+
+        ColorHistogram histogram = ColorHistogram.build(pixels, Math.max(maxColors, MAX_PALETTE_SIZE));
+        if (histogram == null)
+            return null;
+
+        int[] palette = (histogram.size() <= MAX_PALETTE_SIZE)
+                      ? exactPalette(histogram)
+                      : medianCut(histogram);
+
+        IndexColorModel cm = createColorModel(palette);
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, cm);
+        byte[] dst = ((DataBufferByte)result.getRaster().getDataBuffer()).getData();
+        for (int ii = 0 ; ii < pixels.length ; ii++)
+        {
+            dst[ii] = (byte)histogram.getValue(pixels[ii]);
+        }
+        return result;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Assigns each color in the histogram its own palette entry.
+     */
+    private static int[] exactPalette(ColorHistogram histogram)
+    {
+        int[] colors = histogram.colors();
+        for (int ii = 0 ; ii < colors.length ; ii++)
+        {
+            histogram.setValue(colors[ii], ii);
+        }
+        return colors;
+    }
+
+
+    /**
+     *  Divides the histogram's colors into boxes, assigns each color the index of its
+     *  box, and returns the palette.
+     */
+    private static int[] medianCut(ColorHistogram histogram)
+    {
+        int[] colors = histogram.colors();
+        int[] counts = new int[colors.length];
+        for (int ii = 0 ; ii < colors.length ; ii++)
+        {
+            counts[ii] = histogram.getCount(colors[ii]);
+        }
+
+        // the box with the widest channel is split first; a box with one color can't be split
+        PriorityQueue<ColorBox> queue = new PriorityQueue<>((b1, b2) -> b2.range - b1.range);
+        queue.add(new ColorBox(colors, counts, 0, colors.length));
+        int boxCount = 1;
+        while ((boxCount < MAX_PALETTE_SIZE) && (queue.peek().range > 0))
+        {
+            ColorBox box = queue.poll();
+            int split = box.split(colors, counts);
+            queue.add(new ColorBox(colors, counts, box.from, split));
+            queue.add(new ColorBox(colors, counts, split, box.to));
+            boxCount++;
+        }
+
+        int[] palette = new int[boxCount];
+        int index = 0;
+        for (ColorBox box : queue)
+        {
+            palette[index] = box.average(colors, counts);
+            for (int ii = box.from ; ii < box.to ; ii++)
+            {
+                histogram.setValue(colors[ii], index);
+            }
+            index++;
+        }
+        return palette;
+    }
+
+
+    private static IndexColorModel createColorModel(int[] palette)
+    {
+        byte[] r = new byte[palette.length];
+        byte[] g = new byte[palette.length];
+        byte[] b = new byte[palette.length];
+        byte[] a = new byte[palette.length];
+        for (int ii = 0 ; ii < palette.length ; ii++)
+        {
+            a[ii] = (byte)(palette[ii] >>> 24);
+            r[ii] = (byte)(palette[ii] >> 16);
+            g[ii] = (byte)(palette[ii] >> 8);
+            b[ii] = (byte)palette[ii];
+        }
+        return new IndexColorModel(8, palette.length, r, g, b, a);
+    }
+
+
+    private static int channel(int color, int shift)
+    {
+        return (color >>> shift) & 0xFF;
+    }
+
+
+    /**
+     *  A contiguous range of the colors array, along with the shift for its widest
+     *  channel and that channel's range.
+     */
+    private static class ColorBox
+    {
+        private final static int[] SHIFTS = { 24, 16, 8, 0 };
+
+        public int from;
+        public int to;
+        public int shift;
+        public int range;
+
+        public ColorBox(int[] colors, int[] counts, int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+            this.range = -1;
+            for (int shift : SHIFTS)
+            {
+                int min = 255;
+                int max = 0;
+                for (int ii = from ; ii < to ; ii++)
+                {
+                    int value = channel(colors[ii], shift);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                if (max - min > range)
+                {
+                    this.range = max - min;
+                    this.shift = shift;
+                }
+            }
+        }
+
+        /**
+         *  Sorts the box's colors by its widest channel, and returns the index that
+         *  divides them into two halves by pixel count. Both halves are non-empty.
+         */
+        public int split(int[] colors, int[] counts)
+        {
+            // counting sort, since there are only 256 possible channel values
+            int[] offsets = new int[257];
+            for (int ii = from ; ii < to ; ii++)
+            {
+                offsets[channel(colors[ii], shift) + 1]++;
+            }
+            for (int ii = 1 ; ii < offsets.length ; ii++)
+            {
+                offsets[ii] += offsets[ii - 1];
+            }
+
+            int[] sortedColors = new int[to - from];
+            int[] sortedCounts = new int[to - from];
+            for (int ii = from ; ii < to ; ii++)
+            {
+                int pos = offsets[channel(colors[ii], shift)]++;
+                sortedColors[pos] = colors[ii];
+                sortedCounts[pos] = counts[ii];
+            }
+            System.arraycopy(sortedColors, 0, colors, from, sortedColors.length);
+            System.arraycopy(sortedCounts, 0, counts, from, sortedCounts.length);
+
+            long total = 0;
+            for (int ii = from ; ii < to ; ii++)
+            {
+                total += counts[ii];
+            }
+
+            long cumulative = 0;
+            for (int ii = from ; ii < to - 1 ; ii++)
+            {
+                cumulative += counts[ii];
+                if (cumulative * 2 >= total)
+                    return ii + 1;
+            }
+            return to - 1;
+        }
+
+        /**
+         *  Returns the pixel-weighted average of the box's colors.
+         */
+        public int average(int[] colors, int[] counts)
+        {
+            long total = 0;
+            long[] sums = new long[SHIFTS.length];
+            for (int ii = from ; ii < to ; ii++)
+            {
+                total += counts[ii];
+                for (int jj = 0 ; jj < SHIFTS.length ; jj++)
+                {
+                    sums[jj] += (long)channel(colors[ii], SHIFTS[jj]) * counts[ii];
+                }
+            }
+
+            int result = 0;
+            for (int jj = 0 ; jj < SHIFTS.length ; jj++)
+            {
+                result |= (int)((sums[jj] + total / 2) / total) << SHIFTS[jj];
+            }
+            return result;
+        }
+    }
+
+
+    /**
+     *  An open-addressed hash table that counts the occurrences of each color, and
+     *  holds an arbitrary value (the palette index) for it.
+     */
+    private static class ColorHistogram
+    {
+        private int[] keys;
+        private int[] counts;
+        private int[] values;
+        private boolean[] used;
+        private int mask;
+        private int size;
+
+        private ColorHistogram(int maxColors)
+        {
+            int capacity = Integer.highestOneBit(maxColors) * 4;
+            keys = new int[capacity];
+            counts = new int[capacity];
+            values = new int[capacity];
+            used = new boolean[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         *  Counts the colors in the passed pixels, returning null if there are more
+         *  than the specified number of colors.
+         */
+        public static ColorHistogram build(int[] pixels, int maxColors)
+        {
+            ColorHistogram histogram = new ColorHistogram(maxColors);
+            int lastColor = 0;
+            int lastSlot = -1;
+            for (int pixel : pixels)
+            {
+                // runs of the same color are common in the images that we care about
+                if ((lastSlot >= 0) && (pixel == lastColor))
+                {
+                    histogram.counts[lastSlot]++;
+                    continue;
+                }
+
+                int slot = histogram.find(pixel);
+                if (! histogram.used[slot])
+                {
+                    if (histogram.size == maxColors)
+                        return null;
+                    histogram.used[slot] = true;
+                    histogram.keys[slot] = pixel;
+                    histogram.size++;
+                }
+                histogram.counts[slot]++;
+                lastColor = pixel;
+                lastSlot = slot;
+            }
+            return histogram;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public int[] colors()
+        {
+            int[] result = new int[size];
+            int index = 0;
+            for (int ii = 0 ; ii < keys.length ; ii++)
+            {
+                if (used[ii])
+                    result[index++] = keys[ii];
+            }
+            return result;
+        }
+
+        public int getCount(int color)
+        {
+            return counts[find(color)];
+        }
+
+        public int getValue(int color)
+        {
+            return values[find(color)];
+        }
+
+        public void setValue(int color, int value)
+        {
+            values[find(color)] = value;
+        }
+
+        private int find(int color)
+        {
+            int slot = (color * 0x9E3779B9) >>> 8 & mask;
+            while (used[slot] && (keys[slot] != color))
+            {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.encode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+
+/**
+ *  Writes PNG files, with control over compression level and row filtering (which the
+ *  JDK's writer doesn't provide). Palette images (those with an <code>IndexColorModel</code>)
+ *  are written with the smallest bit depth that will hold the palette, along with a
+ *  transparency chunk if any palette entries aren't opaque. Grayscale images are
+ *  written as 8-bit grayscale; all others are written as 8-bit RGB or RGBA, depending
+ *  on whether they have alpha.
+ *  <p>
+ *  No ancillary chunks (other than transparency) are written. Instances are immutable,
+ *  and may be used concurrently.
+ */
+public class PngEncoder
+{
+    private final static byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private final static int COLOR_GRAY     = 0;
+    private final static int COLOR_RGB      = 2;
+    private final static int COLOR_PALETTE  = 3;
+    private final static int COLOR_RGBA     = 6;
+
+    // a reasonable tradeoff between per-chunk overhead and buffer size
+    private final static int IDAT_SIZE = 32 * 1024;
+
+    private int level;
+    private PngFilter filter;
+
+
+    /**
+     *  @param  level   The deflate compression level, 0 (none) to 9 (best).
+     *  @param  filter  The row filter.
+     */
+    public PngEncoder(int level, PngFilter filter)
+    {
+        if ((level < 0) || (level > 9))
+            throw new IllegalArgumentException("invalid deflate level: " + level);
+
+        this.level = level;
+        this.filter = filter;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Writes the image to the passed stream, which is not closed.
+     */
+    public void write(BufferedImage img, OutputStream out)
+    throws IOException
+    {
+        ImageLayout layout = new ImageLayout(img);
+
+        out.write(SIGNATURE);
+        writeHeader(out, img, layout);
+        if (layout.palette != null)
+        {
+            writePalette(out, layout.palette);
+        }
+        writeImageData(out, img, layout);
+        writeChunk(out, "IEND", new byte[0], 0);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static void writeHeader(OutputStream out, BufferedImage img, ImageLayout layout)
+    throws IOException
+    {
+        byte[] data = new byte[13];
+        putInt(data, 0, img.getWidth());
+        putInt(data, 4, img.getHeight());
+        data[8] = (byte)layout.bitDepth;
+        data[9] = (byte)layout.colorType;
+        // compression, filter method, and interlace are all 0
+        writeChunk(out, "IHDR", data, data.length);
+    }
+
+
+    private static void writePalette(OutputStream out, IndexColorModel palette)
+    throws IOException
+    {
+        int size = palette.getMapSize();
+        byte[] rgb = new byte[size * 3];
+        byte[] alpha = new byte[size];
+        int alphaCount = 0;
+        for (int ii = 0 ; ii < size ; ii++)
+        {
+            rgb[ii * 3]     = (byte)palette.getRed(ii);
+            rgb[ii * 3 + 1] = (byte)palette.getGreen(ii);
+            rgb[ii * 3 + 2] = (byte)palette.getBlue(ii);
+            alpha[ii] = (byte)palette.getAlpha(ii);
+            if (palette.getAlpha(ii) != 255)
+                alphaCount = ii + 1;
+        }
+
+        writeChunk(out, "PLTE", rgb, rgb.length);
+        if (alphaCount > 0)
+        {
+            // trailing opaque entries may be omitted
+            writeChunk(out, "tRNS", alpha, alphaCount);
+        }
+    }
+
+
+    private void writeImageData(OutputStream out, BufferedImage img, ImageLayout layout)
+    throws IOException
+    {
+        int rowBytes = (img.getWidth() * layout.bitsPerPixel + 7) / 8;
+        int bpp = Math.max(1, layout.bitsPerPixel / 8);
+
+        byte[] prev = new byte[rowBytes];
+        byte[] curr = new byte[rowBytes];
+        byte[][] filtered = new byte[5][rowBytes];
+        int[] pixels = new int[img.getWidth()];
+
+        Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream zout = new DeflaterOutputStream(new ImageDataStream(out), deflater, IDAT_SIZE))
+        {
+            for (int y = 0 ; y < img.getHeight() ; y++)
+            {
+                layout.packRow(img, y, pixels, curr);
+
+                int filterType = filter.getCode();
+                if ((filterType < 0) && ((layout.colorType == COLOR_PALETTE) || (layout.bitDepth < 8)))
+                {
+                    filterType = PngFilter.NONE.getCode();
+                }
+
+                if (filterType < 0)
+                {
+                    filterType = chooseFilter(curr, prev, bpp, filtered);
+                }
+                else
+                {
+                    applyFilter(filterType, curr, prev, bpp, filtered[filterType]);
+                }
+
+                zout.write(filterType);
+                zout.write(filtered[filterType], 0, rowBytes);
+
+                byte[] tmp = prev;
+                prev = curr;
+                curr = tmp;
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     *  Applies all filters to the row, and returns the one whose output has the minimum
+     *  sum of absolute values (treating bytes as signed).
+     */
+    private static int chooseFilter(byte[] curr, byte[] prev, int bpp, byte[][] filtered)
+    {
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0 ; type < filtered.length ; type++)
+        {
+            applyFilter(type, curr, prev, bpp, filtered[type]);
+            long sum = 0;
+            for (byte b : filtered[type])
+            {
+                sum += Math.abs(b);
+            }
+            if (sum < bestSum)
+            {
+                best = type;
+                bestSum = sum;
+            }
+        }
+        return best;
+    }
+
+
+    private static void applyFilter(int type, byte[] curr, byte[] prev, int bpp, byte[] dst)
+    {
+        for (int ii = 0 ; ii < curr.length ; ii++)
+        {
+            int x = curr[ii] & 0xFF;
+            int a = (ii >= bpp) ? curr[ii - bpp] & 0xFF : 0;
+            int b = prev[ii] & 0xFF;
+            int c = (ii >= bpp) ? prev[ii - bpp] & 0xFF : 0;
+            switch (type)
+            {
+                case 0 :
+                    dst[ii] = (byte)x;
+                    break;
+                case 1 :
+                    dst[ii] = (byte)(x - a);
+                    break;
+                case 2 :
+                    dst[ii] = (byte)(x - b);
+                    break;
+                case 3 :
+                    dst[ii] = (byte)(x - ((a + b) >> 1));
+                    break;
+                default :
+                    dst[ii] = (byte)(x - paeth(a, b, c));
+                    break;
+            }
+        }
+    }
+
+
+    private static int paeth(int a, int b, int c)
+    {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if ((pa <= pb) && (pa <= pc))
+            return a;
+        if (pb <= pc)
+            return b;
+        return c;
+    }
+
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length)
+    throws IOException
+    {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] header = new byte[4];
+        putInt(header, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int)crc.getValue());
+
+        out.write(header);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.write(trailer);
+    }
+
+
+    private static void putInt(byte[] buf, int off, int value)
+    {
+        buf[off]     = (byte)(value >>> 24);
+        buf[off + 1] = (byte)(value >>> 16);
+        buf[off + 2] = (byte)(value >>> 8);
+        buf[off + 3] = (byte)value;
+    }
+
+
+    /**
+     *  Determines how the image will be written, and extracts rows of pixels in that
+     *  format.
+     */
+    private static class ImageLayout
+    {
+        public int colorType;
+        public int bitDepth;
+        public int bitsPerPixel;
+        public IndexColorModel palette;
+
+        public ImageLayout(BufferedImage img)
+        {
+            if ((img.getColorModel() instanceof IndexColorModel)
+                    && (((IndexColorModel)img.getColorModel()).getMapSize() <= 256))
+            {
+                palette = (IndexColorModel)img.getColorModel();
+                int size = palette.getMapSize();
+                colorType = COLOR_PALETTE;
+                bitDepth = (size <= 2) ? 1 : (size <= 4) ? 2 : (size <= 16) ? 4 : 8;
+                bitsPerPixel = bitDepth;
+            }
+            else if (img.getType() == BufferedImage.TYPE_BYTE_GRAY)
+            {
+                colorType = COLOR_GRAY;
+                bitDepth = 8;
+                bitsPerPixel = 8;
+            }
+            else if (img.getColorModel().hasAlpha())
+            {
+                colorType = COLOR_RGBA;
+                bitDepth = 8;
+                bitsPerPixel = 32;
+            }
+            else
+            {
+                colorType = COLOR_RGB;
+                bitDepth = 8;
+                bitsPerPixel = 24;
+            }
+        }
+
+        /**
+         *  Writes one row of the image into the passed buffer, in PNG format. The
+         *  pixels array is used as a work area.
+         */
+        public void packRow(BufferedImage img, int y, int[] pixels, byte[] row)
+        {
+            int width = img.getWidth();
+            switch (colorType)
+            {
+                case COLOR_PALETTE :
+                case COLOR_GRAY :
+                    Raster raster = img.getRaster();
+                    raster.getSamples(0, y, width, 1, 0, pixels);
+                    packSamples(pixels, width, row);
+                    break;
+                case COLOR_RGBA :
+                    img.getRGB(0, y, width, 1, pixels, 0, width);
+                    for (int x = 0, pos = 0 ; x < width ; x++)
+                    {
+                        int argb = pixels[x];
+                        row[pos++] = (byte)(argb >> 16);
+                        row[pos++] = (byte)(argb >> 8);
+                        row[pos++] = (byte)argb;
+                        row[pos++] = (byte)(argb >>> 24);
+                    }
+                    break;
+                default :
+                    img.getRGB(0, y, width, 1, pixels, 0, width);
+                    for (int x = 0, pos = 0 ; x < width ; x++)
+                    {
+                        int rgb = pixels[x];
+                        row[pos++] = (byte)(rgb >> 16);
+                        row[pos++] = (byte)(rgb >> 8);
+                        row[pos++] = (byte)rgb;
+                    }
+                    break;
+            }
+        }
+
+        /**
+         *  Packs samples at the current bit depth, most significant bits first.
+         */
+        private void packSamples(int[] samples, int width, byte[] row)
+        {
+            if (bitDepth == 8)
+            {
+                for (int x = 0 ; x < width ; x++)
+                {
+                    row[x] = (byte)samples[x];
+                }
+                return;
+            }
+
+            Arrays.fill(row, (byte)0);
+            int perByte = 8 / bitDepth;
+            for (int x = 0 ; x < width ; x++)
+            {
+                int shift = 8 - bitDepth * (x % perByte + 1);
+                row[x / perByte] |= (byte)(samples[x] << shift);
+            }
+        }
+    }
+
+
+    /**
+     *  Breaks the compressed stream into IDAT chunks. The deflater's buffer is the same
+     *  size as the chunk, so in practice each write produces a chunk.
+     */
+    private static class ImageDataStream
+    extends OutputStream
+    {
+        private OutputStream out;
+
+        public ImageDataStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b)
+        throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        throws IOException
+        {
+            if (len == 0)
+                return;
+
+            if (off == 0)
+            {
+                writeChunk(out, "IDAT", b, len);
+            }
+            else
+            {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                writeChunk(out, "IDAT", copy, len);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            // the destination stream belongs to our caller
+        }
+    }
+}
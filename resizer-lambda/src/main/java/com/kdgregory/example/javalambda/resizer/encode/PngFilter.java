@@ -0,0 +1,53 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.encode;
+
+
+/**
+ *  The row filters that can be applied when writing a PNG. Each row of the image
+ *  is transformed by the filter before compression; the best filter depends on the
+ *  content. <code>ADAPTIVE</code> chooses a filter for each row, using the "minimum
+ *  sum of absolute differences" heuristic from the PNG specification, except for
+ *  palette images where it always uses <code>NONE</code>.
+ */
+public enum PngFilter
+{
+    NONE        (0),
+    SUB         (1),
+    UP          (2),
+    AVERAGE     (3),
+    PAETH       (4),
+    ADAPTIVE    (-1);
+
+
+    private int code;
+
+    private PngFilter(int code)
+    {
+        this.code = code;
+    }
+
+
+    /**
+     *  Returns the filter type byte that's written at the start of each row, -1
+     *  for <code>ADAPTIVE</code>.
+     */
+    public int getCode()
+    {
+        return code;
+    }
+
+
+    /**
+     *  Returns the filter corresponding to a configuration value, throwing
+     *  <code>IllegalArgumentException</code> if it doesn't exist.
+     */
+    public static PngFilter lookup(String name)
+    {
+        for (PngFilter filter : values())
+        {
+            if (filter.name().equalsIgnoreCase(name))
+                return filter;
+        }
+        throw new IllegalArgumentException("unknown PNG filter: " + name);
+    }
+}
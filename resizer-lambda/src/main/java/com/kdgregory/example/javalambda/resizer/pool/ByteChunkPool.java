@@ -0,0 +1,78 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.pool;
+
+import java.util.ArrayDeque;
+
+
+/**
+ *  Retains fixed-size byte arrays ("chunks") for reuse. These are used as buffers
+ *  for encoded content, which is generally too large to be allocated from the
+ *  young generation as a single array.
+ *  <p>
+ *  The pool retains at most a fixed number of chunks; chunks released beyond that
+ *  number are left for the garbage collector. Instances are thread-safe.
+ */
+public class ByteChunkPool
+{
+    private int chunkSize;
+    private int maxChunks;
+    private ArrayDeque<byte[]> available = new ArrayDeque<>();
+
+
+    public ByteChunkPool(int chunkSize, int maxChunks)
+    {
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+    }
+
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+
+    /**
+     *  Returns the maximum amount of memory that the pool will retain, in bytes.
+     */
+    public long getMaxBytes()
+    {
+        return (long)chunkSize * maxChunks;
+    }
+
+
+    /**
+     *  Returns a chunk, which may contain garbage.
+     */
+    public byte[] acquire()
+    {
+        synchronized (this)
+        {
+            byte[] chunk = available.pollFirst();
+            if (chunk != null)
+                return chunk;
+        }
+        return new byte[chunkSize];
+    }
+
+
+    /**
+     *  Returns a chunk to the pool.
+     */
+    public synchronized void release(byte[] chunk)
+    {
+        if ((chunk.length == chunkSize) && (available.size() < maxChunks))
+        {
+            available.addFirst(chunk);
+        }
+    }
+
+
+    /**
+     *  Returns the number of chunks currently in the pool.
+     */
+    public synchronized int getAvailableChunks()
+    {
+        return available.size();
+    }
+}
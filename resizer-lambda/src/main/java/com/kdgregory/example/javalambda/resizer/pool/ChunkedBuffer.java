@@ -0,0 +1,146 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.pool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  A random-access byte buffer that's composed of chunks from a {@link ByteChunkPool}.
+ *  Grows as needed, without copying existing content. Callers must call {@link #release}
+ *  when done with the buffer. Instances are not thread-safe.
+ */
+public class ChunkedBuffer
+{
+    private ByteChunkPool pool;
+    private int chunkSize;
+    private List<byte[]> chunks = new ArrayList<>();
+    private int discarded;
+    private long length;
+
+
+    public ChunkedBuffer(ByteChunkPool pool)
+    {
+        this.pool = pool;
+        this.chunkSize = pool.getChunkSize();
+    }
+
+
+    /**
+     *  Returns the number of bytes that have been written to the buffer.
+     */
+    public long length()
+    {
+        return length;
+    }
+
+
+    /**
+     *  Writes bytes at the specified position, extending the buffer if needed.
+     */
+    public void write(long pos, byte[] b, int off, int len)
+    {
+        while (len > 0)
+        {
+            int chunkIdx = (int)(pos / chunkSize);
+            int chunkOff = (int)(pos % chunkSize);
+            while (chunks.size() <= chunkIdx)
+            {
+                chunks.add(pool.acquire());
+            }
+
+            int count = Math.min(len, chunkSize - chunkOff);
+            System.arraycopy(b, off, chunks.get(chunkIdx), chunkOff, count);
+            pos += count;
+            off += count;
+            len -= count;
+            length = Math.max(length, pos);
+        }
+    }
+
+
+    /**
+     *  Reads bytes starting at the specified position, returning the number of bytes
+     *  read or -1 if the position is at or past the end of the buffer.
+     */
+    public int read(long pos, byte[] b, int off, int len)
+    {
+        if (pos >= length)
+            return -1;
+
+        len = (int)Math.min(len, length - pos);
+        int total = 0;
+        while (total < len)
+        {
+            int chunkIdx = (int)(pos / chunkSize);
+            int chunkOff = (int)(pos % chunkSize);
+            int count = Math.min(len - total, chunkSize - chunkOff);
+            System.arraycopy(chunks.get(chunkIdx), chunkOff, b, off + total, count);
+            pos += count;
+            total += count;
+        }
+        return total;
+    }
+
+
+    /**
+     *  Reads a single byte, returning -1 if the position is at or past the end of
+     *  the buffer.
+     */
+    public int read(long pos)
+    {
+        if (pos >= length)
+            return -1;
+        return chunks.get((int)(pos / chunkSize))[(int)(pos % chunkSize)] & 0xFF;
+    }
+
+
+    /**
+     *  Returns the chunks that lie entirely before the specified position to the pool.
+     *  Content before that position can no longer be read (or written), and the buffer
+     *  can no longer be written to a stream.
+     */
+    public void discardBefore(long pos)
+    {
+        int count = (int)Math.min(pos / chunkSize, chunks.size());
+        for ( ; discarded < count ; discarded++)
+        {
+            pool.release(chunks.get(discarded));
+            chunks.set(discarded, null);
+        }
+    }
+
+
+    /**
+     *  Writes the content of the buffer to the passed stream.
+     */
+    public void writeTo(OutputStream out)
+    throws IOException
+    {
+        long remaining = length;
+        for (byte[] chunk : chunks)
+        {
+            int count = (int)Math.min(remaining, chunkSize);
+            out.write(chunk, 0, count);
+            remaining -= count;
+        }
+    }
+
+
+    /**
+     *  Returns all chunks to the pool. The buffer is empty after this call.
+     */
+    public void release()
+    {
+        for (byte[] chunk : chunks)
+        {
+            if (chunk != null)
+                pool.release(chunk);
+        }
+        chunks.clear();
+        discarded = 0;
+        length = 0;
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.pool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.imageio.stream.ImageInputStream;
+
+
+/**
+ *  A sequential <code>OutputStream</code> that holds its content in pooled chunks,
+ *  for content that will be written elsewhere later. Call {@link #writeTo} to copy
+ *  the content to its final destination, or {@link #toInputStream} (or {@link
+ *  #toImageInputStream}) to read it; closing the stream returns its chunks to the
+ *  pool.
+ */
+public class ChunkedOutputStream
+extends OutputStream
+{
+    private ChunkedBuffer buffer;
+    private boolean closed;
+
+
+    public ChunkedOutputStream(ByteChunkPool pool)
+    {
+        buffer = new ChunkedBuffer(pool);
+    }
+
+
+    /**
+     *  Returns the number of bytes that have been written to the stream.
+     */
+    public long length()
+    {
+        return buffer.length();
+    }
+
+
+    /**
+     *  Writes the stream's content to the passed output stream.
+     */
+    public void writeTo(OutputStream out)
+    throws IOException
+    {
+        checkClosed();
+        buffer.writeTo(out);
+    }
+
+
+    /**
+     *  Returns a stream that reads the content written so far. The returned stream
+     *  supports mark and reset, and must not be used after this stream has been closed.
+     */
+    public InputStream toInputStream()
+    {
+        return new InputStream()
+        {
+            private long pos;
+            private long mark;
+
+            @Override
+            public int read()
+            throws IOException
+            {
+                checkClosed();
+                int b = buffer.read(pos);
+                if (b >= 0)
+                    pos++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+            throws IOException
+            {
+                checkClosed();
+                if (len == 0)
+                    return 0;
+                int count = buffer.read(pos, b, off, len);
+                if (count > 0)
+                    pos += count;
+                return count;
+            }
+
+            @Override
+            public int available()
+            {
+                return (int)Math.min(Integer.MAX_VALUE, Math.max(0, buffer.length() - pos));
+            }
+
+            @Override
+            public boolean markSupported()
+            {
+                return true;
+            }
+
+            @Override
+            public void mark(int readlimit)
+            {
+                mark = pos;
+            }
+
+            @Override
+            public void reset()
+            {
+                pos = mark;
+            }
+        };
+    }
+
+
+    /**
+     *  Returns an <code>ImageInputStream</code> that reads the content written so far,
+     *  directly from this stream's chunks. The returned stream must not be used after
+     *  this stream has been closed.
+     */
+    public ImageInputStream toImageInputStream()
+    {
+        return new PooledImageInputStream(buffer);
+    }
+
+
+    @Override
+    public void write(int b)
+    throws IOException
+    {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    throws IOException
+    {
+        checkClosed();
+        buffer.write(buffer.length(), b, off, len);
+    }
+
+
+    /**
+     *  Closes the stream and returns its chunks to the pool. May be called multiple
+     *  times.
+     */
+    @Override
+    public void close()
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        buffer.release();
+    }
+
+
+    private void checkClosed()
+    throws IOException
+    {
+        if (closed)
+            throw new IOException("stream is closed");
+    }
+}
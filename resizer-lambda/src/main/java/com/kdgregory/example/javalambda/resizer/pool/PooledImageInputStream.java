@@ -0,0 +1,151 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.pool;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+
+/**
+ *  A seekable <code>ImageInputStream</code> that reads from an <code>InputStream</code>
+ *  as needed, caching the content in pooled chunks so that the reader can seek
+ *  backwards. Chunks that lie entirely before the flushed position are returned to
+ *  the pool, although most of ImageIO's readers don't flush their input. Closing this
+ *  stream returns its remaining chunks to the pool, but does not close the underlying
+ *  stream.
+ *  <p>
+ *  May also read content that's already been buffered by a {@link ChunkedOutputStream}
+ *  (see {@link ChunkedOutputStream#toImageInputStream}), in which case there's no copy,
+ *  and the buffer remains owned by that stream.
+ */
+public class PooledImageInputStream
+extends ImageInputStreamImpl
+{
+    private final static int READ_SIZE = 8192;
+
+    private InputStream source;
+    private ChunkedBuffer buffer;
+    private boolean ownsBuffer;
+    private boolean closed;
+    private boolean sourceExhausted;
+    private byte[] readBuf = new byte[READ_SIZE];
+
+
+    public PooledImageInputStream(InputStream source, ByteChunkPool pool)
+    {
+        this.source = source;
+        this.buffer = new ChunkedBuffer(pool);
+        this.ownsBuffer = true;
+    }
+
+
+    /**
+     *  Constructs an instance that reads existing content from the passed buffer,
+     *  which is not released when this stream is closed.
+     */
+    PooledImageInputStream(ChunkedBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.sourceExhausted = true;
+    }
+
+
+    @Override
+    public int read()
+    throws IOException
+    {
+        checkClosed();
+        bitOffset = 0;
+        fill(streamPos + 1);
+        int b = buffer.read(streamPos);
+        if (b >= 0)
+            streamPos++;
+        return b;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    throws IOException
+    {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0)
+            return 0;
+
+        fill(streamPos + len);
+        int count = buffer.read(streamPos, b, off, len);
+        if (count > 0)
+            streamPos += count;
+        return count;
+    }
+
+
+    @Override
+    public boolean isCached()
+    {
+        return true;
+    }
+
+
+    @Override
+    public boolean isCachedMemory()
+    {
+        return true;
+    }
+
+
+    /**
+     *  Discards the cached content before the specified position, returning whole
+     *  chunks to the pool (if this stream owns them).
+     */
+    @Override
+    public void flushBefore(long pos)
+    throws IOException
+    {
+        super.flushBefore(pos);
+        if (ownsBuffer)
+        {
+            buffer.discardBefore(pos);
+        }
+    }
+
+
+    /**
+     *  Closes the stream and returns its chunks to the pool (if it owns them). May be
+     *  called multiple times.
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        super.close();
+        if (ownsBuffer)
+        {
+            buffer.release();
+        }
+    }
+
+
+    /**
+     *  Reads from the source until the cache holds at least the specified number
+     *  of bytes, or the source is exhausted.
+     */
+    private void fill(long required)
+    throws IOException
+    {
+        while (! sourceExhausted && (buffer.length() < required))
+        {
+            int count = source.read(readBuf, 0, readBuf.length);
+            if (count < 0)
+                sourceExhausted = true;
+            else
+                buffer.write(buffer.length(), readBuf, 0, count);
+        }
+    }
+}
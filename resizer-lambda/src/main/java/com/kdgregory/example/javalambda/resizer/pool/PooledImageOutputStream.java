@@ -0,0 +1,125 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.pool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+
+/**
+ *  A seekable <code>ImageOutputStream</code> that holds its content in pooled
+ *  chunks. After the image has been written, call {@link #writeTo} to copy the
+ *  content to its final destination. Closing the stream returns its chunks to
+ *  the pool.
+ */
+public class PooledImageOutputStream
+extends ImageOutputStreamImpl
+{
+    private ChunkedBuffer buffer;
+    private boolean closed;
+
+
+    public PooledImageOutputStream(ByteChunkPool pool)
+    {
+        buffer = new ChunkedBuffer(pool);
+    }
+
+
+    /**
+     *  Writes the stream's content to the passed output stream.
+     */
+    public void writeTo(OutputStream out)
+    throws IOException
+    {
+        checkClosed();
+        flushBits();
+        buffer.writeTo(out);
+    }
+
+
+    @Override
+    public void write(int b)
+    throws IOException
+    {
+        checkClosed();
+        flushBits();
+        buffer.write(streamPos, new byte[] { (byte)b }, 0, 1);
+        streamPos++;
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    throws IOException
+    {
+        checkClosed();
+        flushBits();
+        buffer.write(streamPos, b, off, len);
+        streamPos += len;
+    }
+
+
+    @Override
+    public int read()
+    throws IOException
+    {
+        checkClosed();
+        bitOffset = 0;
+        int b = buffer.read(streamPos);
+        if (b >= 0)
+            streamPos++;
+        return b;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    throws IOException
+    {
+        checkClosed();
+        bitOffset = 0;
+        int count = buffer.read(streamPos, b, off, len);
+        if (count > 0)
+            streamPos += count;
+        return count;
+    }
+
+
+    @Override
+    public long length()
+    {
+        return buffer.length();
+    }
+
+
+    @Override
+    public boolean isCached()
+    {
+        return true;
+    }
+
+
+    @Override
+    public boolean isCachedMemory()
+    {
+        return true;
+    }
+
+
+    /**
+     *  Closes the stream and returns its chunks to the pool. May be called multiple
+     *  times.
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        super.close();
+        buffer.release();
+    }
+}
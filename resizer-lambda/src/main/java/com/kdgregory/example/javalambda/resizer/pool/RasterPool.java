@@ -0,0 +1,155 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.pool;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+
+/**
+ *  Retains images that are no longer in use, so that they can be reused by a later
+ *  request for an image with the same dimensions and type. Since Lambda reuses
+ *  containers, and photos from the same camera tend to have the same dimensions,
+ *  this avoids repeatedly allocating large arrays (which, being too large for the
+ *  young generation, go directly into the old generation).
+ *  <p>
+ *  The pool has a maximum footprint (based on the size of the images' data arrays).
+ *  When releasing an image would exceed that footprint, the least-recently-released
+ *  images are discarded. An image larger than the maximum footprint is never retained.
+ *  <p>
+ *  Only images with one of the standard types can be pooled. Callers must not touch
+ *  an image after releasing it, and must assume that an acquired image contains
+ *  garbage. Instances are thread-safe.
+ */
+public class RasterPool
+{
+    private long maxBytes;
+    private long currentBytes;
+
+    // most recently released at front
+    private LinkedList<BufferedImage> available = new LinkedList<>();
+
+    // statistics, for logging
+    private int hits;
+    private int misses;
+
+
+    public RasterPool(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns an image with the specified dimensions and type, either from the pool
+     *  or newly allocated. Throws if the type is not one of the standard types.
+     */
+    public BufferedImage acquire(int width, int height, int type)
+    {
+        synchronized (this)
+        {
+            for (Iterator<BufferedImage> itx = available.iterator() ; itx.hasNext() ; )
+            {
+                BufferedImage img = itx.next();
+                if ((img.getWidth() == width) && (img.getHeight() == height) && (img.getType() == type))
+                {
+                    itx.remove();
+                    currentBytes -= footprint(img);
+                    hits++;
+                    return img;
+                }
+            }
+            misses++;
+        }
+
+        return new BufferedImage(width, height, type);
+    }
+
+
+    /**
+     *  Returns an image to the pool. Images that can't be pooled are silently ignored,
+     *  as are images that are already in the pool and sub-images (which share their
+     *  parent's raster).
+     */
+    public synchronized void release(BufferedImage img)
+    {
+        if ((img == null) || (img.getType() == BufferedImage.TYPE_CUSTOM) || (img.getRaster().getParent() != null))
+            return;
+
+        long size = footprint(img);
+        if (size > maxBytes)
+            return;
+
+        for (BufferedImage existing : available)
+        {
+            if (existing == img)
+                return;
+        }
+
+        available.addFirst(img);
+        currentBytes += size;
+        while (currentBytes > maxBytes)
+        {
+            currentBytes -= footprint(available.removeLast());
+        }
+    }
+
+
+    /**
+     *  Discards all pooled images, so that their memory may be reclaimed.
+     */
+    public synchronized void clear()
+    {
+        available.clear();
+        currentBytes = 0;
+    }
+
+
+    /**
+     *  Returns the maximum footprint of the pool, in bytes.
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+
+    /**
+     *  Returns the current footprint of the pool, in bytes.
+     */
+    public synchronized long getCurrentBytes()
+    {
+        return currentBytes;
+    }
+
+
+    /**
+     *  Returns a summary of the pool's usage, for logging.
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "RasterPool[images = " + available.size()
+             + ", bytes = " + currentBytes
+             + ", hits = " + hits
+             + ", misses = " + misses
+             + "]";
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static long footprint(BufferedImage img)
+    {
+        DataBuffer data = img.getRaster().getDataBuffer();
+        long bytesPerElement = DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+        return bytesPerElement * data.getSize();
+    }
+}
@@ -0,0 +1,32 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+/**
+ *  Scales the source image to its final size in a single bicubic pass. This
+ *  gives good results for small reductions, but is slow and prone to aliasing
+ *  when the source is many times larger than the destination.
+ */
+public class DirectScalingEngine
+implements ScalingEngine
+{
+    private RasterPool pool;
+
+
+    public DirectScalingEngine(RasterPool pool)
+    {
+        this.pool = pool;
+    }
+
+
+    @Override
+    public BufferedImage scale(BufferedImage src, int width, int height)
+    {
+        return Java2DScaler.scale(src, width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC, pool);
+    }
+}
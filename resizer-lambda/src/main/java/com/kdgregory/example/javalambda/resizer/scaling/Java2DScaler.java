@@ -0,0 +1,35 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+/**
+ *  Static helper for the engines that use Java2D to do their scaling.
+ */
+class Java2DScaler
+{
+    /**
+     *  Draws the source image into an image of the specified dimensions, taken from
+     *  the pool, using the specified interpolation (one of the <code>VALUE_INTERPOLATION</code>
+     *  constants from <code>RenderingHints</code>).
+     */
+    public static BufferedImage scale(BufferedImage src, int width, int height, Object interpolation, RasterPool pool)
+    {
+        BufferedImage dst = pool.acquire(width, height, src.getType());
+        Graphics2D g = dst.createGraphics();
+        // a pooled image has old content, which must be replaced rather than blended
+        g.setComposite(AlphaComposite.Src);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,    interpolation);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,        RenderingHints.VALUE_RENDER_QUALITY);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,     RenderingHints.VALUE_ANTIALIAS_ON);
+        g.drawImage(src, 0, 0, width, height, null);
+        g.dispose();
+        return dst;
+    }
+}
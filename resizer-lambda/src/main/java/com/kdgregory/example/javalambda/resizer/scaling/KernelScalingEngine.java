@@ -0,0 +1,504 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+/**
+ *  A scaling engine that doesn't use Java2D: it resamples the image's raster
+ *  data directly, using a separable convolution with one of the filters from
+ *  {@link ResampleFilter}. The image is first resampled horizontally, into an
+ *  intermediate buffer of floats, and then vertically into the destination.
+ *  <p>
+ *  Each pass divides its rows into bands, which are processed in parallel on a
+ *  <code>ForkJoinPool</code>. Filter weights are computed once per combination
+ *  of source and destination size, and cached.
+ *  <p>
+ *  This engine works directly with images that have one of the common integer
+ *  or byte-interleaved layouts. Images with other layouts are converted to
+ *  <code>TYPE_INT_RGB</code> or <code>TYPE_INT_ARGB</code> before scaling, and
+ *  the result has the converted type. Both the destination and any converted
+ *  copy of the source are taken from a {@link RasterPool}.
+ *  <p>
+ *  Images with (non-premultiplied) alpha are premultiplied as they're unpacked for
+ *  the horizontal pass, and un-premultiplied as the vertical pass packs them, so
+ *  that the color of transparent pixels doesn't bleed into their neighbors.
+ */
+public class KernelScalingEngine
+implements ScalingEngine
+{
+    // shared by all instances; the common pool is sized at one less than the
+    // number of processors, which on a small Lambda means a single thread
+    private final static ForkJoinPool SHARED_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // source dimensions vary from image to image, so we don't let the cache grow forever
+    private final static int MAX_CACHED_WEIGHTS = 64;
+
+    // bands smaller than this aren't worth the overhead of a separate task
+    private final static int MIN_BAND_ROWS = 16;
+
+    private final static int[] SHIFTS_RGB  = { 16, 8, 0 };
+    private final static int[] SHIFTS_ARGB = { 24, 16, 8, 0 };
+
+    private ResampleFilter filter;
+    private ForkJoinPool pool;
+    private RasterPool rasterPool;
+    private ConcurrentHashMap<Long,ResampleWeights> weightCache = new ConcurrentHashMap<>();
+
+
+    public KernelScalingEngine(ResampleFilter filter, ForkJoinPool pool, RasterPool rasterPool)
+    {
+        this.filter = filter;
+        this.pool = pool;
+        this.rasterPool = rasterPool;
+    }
+
+
+    public KernelScalingEngine(ResampleFilter filter, RasterPool rasterPool)
+    {
+        this(filter, SHARED_POOL, rasterPool);
+    }
+
+
+    public KernelScalingEngine(ResampleFilter filter)
+    {
+        this(filter, SHARED_POOL, new RasterPool(0));
+    }
+
+
+    /**
+     *  Returns the filter used by this engine.
+     */
+    public ResampleFilter getFilter()
+    {
+        return filter;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Implementation of ScalingEngine
+//----------------------------------------------------------------------------
+
+    @Override
+    public BufferedImage scale(BufferedImage src, int width, int height)
+    {
+        BufferedImage img = toSupportedLayout(src);
+        int srcWidth = img.getWidth();
+        int srcHeight = img.getHeight();
+        int channels = img.getRaster().getNumBands();
+
+        ResampleWeights horizontal = weightsFor(srcWidth, width);
+        ResampleWeights vertical = weightsFor(srcHeight, height);
+
+        float[] intermediate = new float[srcHeight * width * channels];
+        runInBands(srcHeight, (fromRow, toRow) ->
+            horizontalPass(img, fromRow, toRow, horizontal, intermediate, width, channels));
+
+        if (img != src)
+        {
+            rasterPool.release(img);
+        }
+
+        // every destination pixel is written, so there's no need to clear a pooled image
+        BufferedImage dst = rasterPool.acquire(width, height, img.getType());
+        runInBands(height, (fromRow, toRow) ->
+            verticalPass(intermediate, width, channels, vertical, dst, fromRow, toRow));
+
+        return dst;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the passed image if it's one that we can process directly, otherwise
+     *  a copy of it that we can process.
+     */
+    private BufferedImage toSupportedLayout(BufferedImage img)
+    {
+        switch (img.getType())
+        {
+            case BufferedImage.TYPE_INT_RGB :
+            case BufferedImage.TYPE_INT_BGR :
+            case BufferedImage.TYPE_INT_ARGB :
+            case BufferedImage.TYPE_INT_ARGB_PRE :
+            case BufferedImage.TYPE_3BYTE_BGR :
+            case BufferedImage.TYPE_4BYTE_ABGR :
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE :
+            case BufferedImage.TYPE_BYTE_GRAY :
+                if (isContiguous(img))
+                    return img;
+                return convert(img, img.getType());
+            default :
+                return convert(img, img.getColorModel().hasAlpha()
+                                    ? BufferedImage.TYPE_INT_ARGB
+                                    : BufferedImage.TYPE_INT_RGB);
+        }
+    }
+
+
+    /**
+     *  Determines whether the image's pixels occupy the entirety of its data buffer,
+     *  in row order. This will be true for images created by ImageIO, but not for
+     *  sub-images.
+     */
+    private static boolean isContiguous(BufferedImage img)
+    {
+        WritableRaster raster = img.getRaster();
+        if ((raster.getSampleModelTranslateX() != 0) || (raster.getSampleModelTranslateY() != 0)
+                || (raster.getDataBuffer().getOffset() != 0))
+            return false;
+
+        SampleModel sm = raster.getSampleModel();
+        if (sm instanceof SinglePixelPackedSampleModel)
+            return ((SinglePixelPackedSampleModel)sm).getScanlineStride() == img.getWidth();
+        if (sm instanceof PixelInterleavedSampleModel)
+        {
+            PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel)sm;
+            return (pism.getPixelStride() == raster.getNumBands())
+                && (pism.getScanlineStride() == img.getWidth() * pism.getPixelStride());
+        }
+        return false;
+    }
+
+
+    private BufferedImage convert(BufferedImage img, int type)
+    {
+        BufferedImage result = rasterPool.acquire(img.getWidth(), img.getHeight(), type);
+        Graphics2D g = result.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return result;
+    }
+
+
+    private ResampleWeights weightsFor(int srcSize, int dstSize)
+    {
+        if (weightCache.size() > MAX_CACHED_WEIGHTS)
+        {
+            weightCache.clear();
+        }
+
+        Long key = Long.valueOf(((long)srcSize << 32) | dstSize);
+        return weightCache.computeIfAbsent(key, k -> new ResampleWeights(filter, srcSize, dstSize));
+    }
+
+
+    private void runInBands(int rows, BandProcessor processor)
+    {
+        int bandRows = Math.max(MIN_BAND_ROWS, rows / (pool.getParallelism() * 4));
+        pool.invoke(new BandTask(processor, 0, rows, bandRows));
+    }
+
+
+    /**
+     *  Resamples the specified source rows horizontally, writing the result into
+     *  the intermediate buffer (which is the destination width, source height).
+     */
+    private static void horizontalPass(
+        BufferedImage src, int fromRow, int toRow, ResampleWeights weights,
+        float[] dst, int dstWidth, int channels)
+    {
+        float[] row = new float[src.getWidth() * channels];
+        for (int y = fromRow ; y < toRow ; y++)
+        {
+            unpackRow(src, y, 0, row);
+            convolveRow(row, weights, dst, y * dstWidth * channels, dstWidth, channels);
+        }
+    }
+
+
+    /**
+     *  Resamples a single unpacked row, writing the result into the destination
+     *  array at the given offset. This is also used by {@link StripResampler}.
+     */
+    static void convolveRow(float[] row, ResampleWeights weights, float[] dst, int dstBase, int dstWidth, int channels)
+    {
+        switch (channels)
+        {
+            case 1 :
+                convolve1(row, weights, dst, dstBase, dstWidth);
+                break;
+            case 3 :
+                convolve3(row, weights, dst, dstBase, dstWidth);
+                break;
+            default :
+                convolve4(row, weights, dst, dstBase, dstWidth);
+        }
+    }
+
+
+    // the following methods are the inner loop of the horizontal pass, specialized
+    // by number of channels so that the accumulators can live in registers
+
+    private static void convolve1(float[] row, ResampleWeights weights, float[] dst, int dstBase, int dstWidth)
+    {
+        float[] w = weights.weights();
+        for (int x = 0 ; x < dstWidth ; x++)
+        {
+            int idx = weights.start(x);
+            int offset = weights.offset(x);
+            int end = offset + weights.count(x);
+            float a0 = 0;
+            for (int k = offset ; k < end ; k++)
+            {
+                a0 += row[idx++] * w[k];
+            }
+            dst[dstBase + x] = a0;
+        }
+    }
+
+
+    private static void convolve3(float[] row, ResampleWeights weights, float[] dst, int dstBase, int dstWidth)
+    {
+        float[] w = weights.weights();
+        for (int x = 0 ; x < dstWidth ; x++)
+        {
+            int idx = weights.start(x) * 3;
+            int offset = weights.offset(x);
+            int end = offset + weights.count(x);
+            float a0 = 0, a1 = 0, a2 = 0;
+            for (int k = offset ; k < end ; k++)
+            {
+                float wk = w[k];
+                a0 += row[idx++] * wk;
+                a1 += row[idx++] * wk;
+                a2 += row[idx++] * wk;
+            }
+            int dstIdx = dstBase + x * 3;
+            dst[dstIdx++] = a0;
+            dst[dstIdx++] = a1;
+            dst[dstIdx]   = a2;
+        }
+    }
+
+
+    private static void convolve4(float[] row, ResampleWeights weights, float[] dst, int dstBase, int dstWidth)
+    {
+        float[] w = weights.weights();
+        for (int x = 0 ; x < dstWidth ; x++)
+        {
+            int idx = weights.start(x) * 4;
+            int offset = weights.offset(x);
+            int end = offset + weights.count(x);
+            float a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            for (int k = offset ; k < end ; k++)
+            {
+                float wk = w[k];
+                a0 += row[idx++] * wk;
+                a1 += row[idx++] * wk;
+                a2 += row[idx++] * wk;
+                a3 += row[idx++] * wk;
+            }
+            int dstIdx = dstBase + x * 4;
+            dst[dstIdx++] = a0;
+            dst[dstIdx++] = a1;
+            dst[dstIdx++] = a2;
+            dst[dstIdx]   = a3;
+        }
+    }
+
+
+    /**
+     *  Resamples the intermediate buffer vertically, writing the specified rows of
+     *  the destination image.
+     */
+    private static void verticalPass(
+        float[] src, int width, int channels, ResampleWeights weights,
+        BufferedImage dst, int fromRow, int toRow)
+    {
+        int rowSize = width * channels;
+        float[] row = new float[rowSize];
+        float[] w = weights.weights();
+
+        for (int y = fromRow ; y < toRow ; y++)
+        {
+            int start = weights.start(y);
+            int count = weights.count(y);
+            int offset = weights.offset(y);
+
+            Arrays.fill(row, 0f);
+            for (int k = 0 ; k < count ; k++)
+            {
+                float wk = w[offset + k];
+                int srcBase = (start + k) * rowSize;
+                for (int ii = 0 ; ii < rowSize ; ii++)
+                    row[ii] += src[srcBase + ii] * wk;
+            }
+
+            packRow(row, dst, y);
+        }
+    }
+
+
+    /**
+     *  Extracts a row of pixels as floats, one per channel, starting at the specified
+     *  column; the length of the passed array determines how many pixels are read.
+     *  The image must have a supported, contiguous layout. If the image has straight
+     *  alpha, the color channels are premultiplied.
+     */
+    static void unpackRow(BufferedImage img, int y, int x0, float[] row)
+    {
+        int width = img.getWidth();
+        if (img.getRaster().getDataBuffer() instanceof DataBufferInt)
+        {
+            int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+            int[] shifts = (img.getRaster().getNumBands() == 4) ? SHIFTS_ARGB : SHIFTS_RGB;
+            int channels = shifts.length;
+            int count = row.length / channels;
+            int base = y * width + x0;
+            for (int x = 0 ; x < count ; x++)
+            {
+                int pixel = data[base + x];
+                for (int c = 0 ; c < channels ; c++)
+                    row[x * channels + c] = (pixel >>> shifts[c]) & 0xFF;
+            }
+        }
+        else
+        {
+            byte[] data = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+            int channels = img.getRaster().getNumBands();
+            int base = (y * width + x0) * channels;
+            for (int ii = 0 ; ii < row.length ; ii++)
+                row[ii] = data[base + ii] & 0xFF;
+        }
+
+        if (hasStraightAlpha(img))
+        {
+            // all supported layouts with alpha have it as the first channel
+            for (int ii = 0 ; ii < row.length ; ii += 4)
+            {
+                float scale = row[ii] / 255f;
+                row[ii + 1] *= scale;
+                row[ii + 2] *= scale;
+                row[ii + 3] *= scale;
+            }
+        }
+    }
+
+
+    /**
+     *  Writes a row of per-channel floats into the image, rounding and clamping. If
+     *  the image has straight alpha, the row is assumed to be premultiplied, and is
+     *  un-premultiplied in place.
+     */
+    static void packRow(float[] row, BufferedImage img, int y)
+    {
+        if (hasStraightAlpha(img))
+        {
+            for (int ii = 0 ; ii < row.length ; ii += 4)
+            {
+                // alpha may overshoot, but it's the value that the colors were scaled by
+                float alpha = row[ii];
+                float scale = (alpha >= 0.5f) ? 255f / alpha : 0f;
+                row[ii + 1] *= scale;
+                row[ii + 2] *= scale;
+                row[ii + 3] *= scale;
+            }
+        }
+
+        int width = img.getWidth();
+        if (img.getRaster().getDataBuffer() instanceof DataBufferInt)
+        {
+            int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+            int[] shifts = (img.getRaster().getNumBands() == 4) ? SHIFTS_ARGB : SHIFTS_RGB;
+            int channels = shifts.length;
+            int base = y * width;
+            for (int x = 0 ; x < width ; x++)
+            {
+                int pixel = 0;
+                for (int c = 0 ; c < channels ; c++)
+                    pixel |= clamp(row[x * channels + c]) << shifts[c];
+                data[base + x] = pixel;
+            }
+        }
+        else
+        {
+            byte[] data = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+            int base = y * row.length;
+            for (int ii = 0 ; ii < row.length ; ii++)
+                data[base + ii] = (byte)clamp(row[ii]);
+        }
+    }
+
+
+    /**
+     *  Determines whether the image has an alpha channel that isn't premultiplied.
+     */
+    private static boolean hasStraightAlpha(BufferedImage img)
+    {
+        return img.getColorModel().hasAlpha() && ! img.isAlphaPremultiplied();
+    }
+
+
+    private static int clamp(float value)
+    {
+        int v = Math.round(value);
+        return (v < 0) ? 0 : (v > 255) ? 255 : v;
+    }
+
+
+    /**
+     *  Processes a range of rows.
+     */
+    @FunctionalInterface
+    private interface BandProcessor
+    {
+        void process(int fromRow, int toRow);
+    }
+
+
+    /**
+     *  Recursively splits a range of rows until it's no larger than the band size,
+     *  then processes it.
+     */
+    private static class BandTask
+    extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private BandProcessor processor;
+        private int fromRow;
+        private int toRow;
+        private int bandRows;
+
+        public BandTask(BandProcessor processor, int fromRow, int toRow, int bandRows)
+        {
+            this.processor = processor;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (toRow - fromRow <= bandRows)
+            {
+                processor.process(fromRow, toRow);
+                return;
+            }
+
+            int mid = (fromRow + toRow) >>> 1;
+            invokeAll(new BandTask(processor, fromRow, mid, bandRows),
+                      new BandTask(processor, mid, toRow, bandRows));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+/**
+ *  Scales the source image in multiple steps: repeatedly halves it using bilinear
+ *  interpolation, until it's within a factor of two of the destination size, then
+ *  performs a final bicubic pass.
+ *  <p>
+ *  Each halving step considers only a 2x2 neighborhood of source pixels, so it's
+ *  cheap, and since every source pixel contributes to the output there's none of
+ *  the aliasing that you get from a single large reduction.
+ *  <p>
+ *  Intermediate images are returned to the pool as soon as they're no longer needed.
+ *  The result is always a separate image, even if no scaling is needed.
+ */
+public class ProgressiveScalingEngine
+implements ScalingEngine
+{
+    private RasterPool pool;
+
+
+    public ProgressiveScalingEngine(RasterPool pool)
+    {
+        this.pool = pool;
+    }
+
+
+    @Override
+    public BufferedImage scale(BufferedImage src, int width, int height)
+    {
+        BufferedImage current = src;
+        int currentWidth = src.getWidth();
+        int currentHeight = src.getHeight();
+
+        while ((currentWidth / 2 >= width) && (currentHeight / 2 >= height))
+        {
+            currentWidth /= 2;
+            currentHeight /= 2;
+            BufferedImage next = Java2DScaler.scale(current, currentWidth, currentHeight,
+                                                    RenderingHints.VALUE_INTERPOLATION_BILINEAR, pool);
+            if (current != src)
+            {
+                pool.release(current);
+            }
+            current = next;
+        }
+
+        // if the source is already the destination size, this makes a copy, because
+        // the caller owns (and will release) the returned image separately from the source
+        if ((current != src) && (currentWidth == width) && (currentHeight == height))
+            return current;
+
+        BufferedImage result = Java2DScaler.scale(current, width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC, pool);
+        if (current != src)
+        {
+            pool.release(current);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+
+/**
+ *  The reconstruction filters supported by {@link KernelScalingEngine}. Each filter
+ *  is defined by its support (the distance from center, in source pixels, at which
+ *  its weight becomes zero) and a weighting function.
+ */
+public enum ResampleFilter
+{
+    /**
+     *  Averages all source pixels that fall within the destination pixel. Fastest,
+     *  and reasonable for large reductions, but soft.
+     */
+    BOX(0.5)
+    {
+        @Override
+        public double weight(double x)
+        {
+            return ((x >= -0.5) && (x < 0.5)) ? 1.0 : 0.0;
+        }
+    },
+
+    /**
+     *  The Mitchell-Netravali cubic with B = C = 1/3: a compromise between
+     *  blurring and ringing.
+     */
+    MITCHELL(2.0)
+    {
+        private final static double B = 1.0 / 3.0;
+        private final static double C = 1.0 / 3.0;
+
+        @Override
+        public double weight(double x)
+        {
+            x = Math.abs(x);
+            if (x < 1.0)
+                return ((12 - 9 * B - 6 * C) * x * x * x
+                     + (-18 + 12 * B + 6 * C) * x * x
+                     + (6 - 2 * B)) / 6.0;
+            if (x < 2.0)
+                return ((-B - 6 * C) * x * x * x
+                     + (6 * B + 30 * C) * x * x
+                     + (-12 * B - 48 * C) * x
+                     + (8 * B + 24 * C)) / 6.0;
+            return 0.0;
+        }
+    },
+
+    /**
+     *  A windowed sinc with three lobes: the sharpest of the filters, at the
+     *  cost of some ringing around hard edges.
+     */
+    LANCZOS3(3.0)
+    {
+        @Override
+        public double weight(double x)
+        {
+            x = Math.abs(x);
+            if (x < 1e-8)
+                return 1.0;
+            if (x >= 3.0)
+                return 0.0;
+            double px = Math.PI * x;
+            return 3.0 * Math.sin(px) * Math.sin(px / 3.0) / (px * px);
+        }
+    };
+
+
+    private double support;
+
+    private ResampleFilter(double support)
+    {
+        this.support = support;
+    }
+
+
+    public double getSupport()
+    {
+        return support;
+    }
+
+
+    /**
+     *  Returns the filter's weight at the given distance from center.
+     */
+    public abstract double weight(double x);
+}
@@ -0,0 +1,105 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+
+/**
+ *  Precomputed filter weights for resampling one dimension of an image: for each
+ *  destination pixel, the index of the first contributing source pixel, the number
+ *  of contributing pixels, and their (normalized) weights.
+ *  <p>
+ *  When reducing, the filter is stretched by the reduction factor, so that every
+ *  source pixel contributes to the result. Contributions that would fall outside
+ *  the source are dropped, and the remaining weights renormalized.
+ */
+class ResampleWeights
+{
+    private int[] start;
+    private int[] count;
+    private float[] weights;
+    private int stride;
+
+
+    public ResampleWeights(ResampleFilter filter, int srcSize, int dstSize)
+    {
+        double scale = (double)dstSize / srcSize;
+        double filterScale = Math.max(1.0, 1.0 / scale);
+        double support = filter.getSupport() * filterScale;
+
+        start = new int[dstSize];
+        count = new int[dstSize];
+        stride = (int)Math.ceil(support * 2) + 2;
+        weights = new float[dstSize * stride];
+
+        for (int ii = 0 ; ii < dstSize ; ii++)
+        {
+            double center = (ii + 0.5) / scale;
+            int left = Math.max(0, (int)Math.floor(center - support));
+            int right = Math.min(srcSize - 1, (int)Math.ceil(center + support));
+            right = Math.min(right, left + stride - 1);
+
+            int base = ii * stride;
+            double total = 0;
+            for (int jj = left ; jj <= right ; jj++)
+            {
+                double w = filter.weight((jj + 0.5 - center) / filterScale);
+                weights[base + jj - left] = (float)w;
+                total += w;
+            }
+
+            if (total == 0)
+            {
+                // can happen at the edges with a box filter; fall back to nearest pixel
+                left = Math.min(srcSize - 1, (int)center);
+                right = left;
+                weights[base] = 1.0f;
+                total = 1.0;
+            }
+
+            start[ii] = left;
+            count[ii] = right - left + 1;
+            for (int jj = 0 ; jj < count[ii] ; jj++)
+            {
+                weights[base + jj] /= total;
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the index of the first source pixel that contributes to the given
+     *  destination pixel.
+     */
+    public int start(int dstIndex)
+    {
+        return start[dstIndex];
+    }
+
+
+    /**
+     *  Returns the number of source pixels that contribute to the given destination pixel.
+     */
+    public int count(int dstIndex)
+    {
+        return count[dstIndex];
+    }
+
+
+    /**
+     *  Returns the offset into {@link #weights} of the first weight for the given
+     *  destination pixel.
+     */
+    public int offset(int dstIndex)
+    {
+        return dstIndex * stride;
+    }
+
+
+    /**
+     *  Returns the weights array. This is exposed directly, rather than through an
+     *  accessor, because it's accessed from the innermost loop of the resampler.
+     */
+    public float[] weights()
+    {
+        return weights;
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.image.BufferedImage;
+
+
+/**
+ *  Produces a scaled copy of an image. Implementations must be thread-safe, as
+ *  a single instance will be used to produce multiple renditions concurrently,
+ *  and must not modify the source image.
+ */
+public interface ScalingEngine
+{
+    /**
+     *  Returns a new image, scaled from the source to the specified dimensions.
+     */
+    public BufferedImage scale(BufferedImage src, int width, int height);
+}
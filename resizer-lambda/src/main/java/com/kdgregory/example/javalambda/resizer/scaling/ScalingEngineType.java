@@ -0,0 +1,50 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.util.function.Function;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+/**
+ *  Identifies the available scaling engines, and creates instances of them that
+ *  use a given {@link RasterPool}. Engine names are used by configuration, and
+ *  are case-insensitive.
+ */
+public enum ScalingEngineType
+{
+    DIRECT          (pool -> new DirectScalingEngine(pool)),
+    PROGRESSIVE     (pool -> new ProgressiveScalingEngine(pool)),
+    BOX             (pool -> new KernelScalingEngine(ResampleFilter.BOX, pool)),
+    MITCHELL        (pool -> new KernelScalingEngine(ResampleFilter.MITCHELL, pool)),
+    LANCZOS3        (pool -> new KernelScalingEngine(ResampleFilter.LANCZOS3, pool));
+
+
+    private Function<RasterPool,ScalingEngine> factory;
+
+    private ScalingEngineType(Function<RasterPool,ScalingEngine> factory)
+    {
+        this.factory = factory;
+    }
+
+
+    public ScalingEngine createEngine(RasterPool pool)
+    {
+        return factory.apply(pool);
+    }
+
+
+    /**
+     *  Returns the type corresponding to a configuration value, throwing
+     *  <code>IllegalArgumentException</code> if it doesn't exist.
+     */
+    public static ScalingEngineType lookup(String name)
+    {
+        for (ScalingEngineType type : values())
+        {
+            if (type.name().equalsIgnoreCase(name))
+                return type;
+        }
+        throw new IllegalArgumentException("unknown scaling engine: " + name);
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+/**
+ *  Produces a scaled image from a source that's supplied as a sequence of horizontal
+ *  strips, so that the entire source never has to be in memory. This uses the same
+ *  separable convolution as {@link KernelScalingEngine}: each source row is resampled
+ *  horizontally as it arrives, and held in a ring buffer until all of the destination
+ *  rows that depend on it have been produced by the vertical pass. The ring buffer
+ *  only has to hold as many rows as the vertical filter's width.
+ *  <p>
+ *  Strips must be supplied in order, from top to bottom, and must have one of the
+ *  standard contiguous layouts (see <code>ImageNormalizer</code>); the destination
+ *  has the same type as the first strip. The source rows may extend beyond the
+ *  region that this resampler uses; rows and columns outside that region are ignored,
+ *  so that one sequence of strips can feed multiple resamplers.
+ *  <p>
+ *  Instances are not thread-safe, but distinct instances may consume the same strip
+ *  concurrently.
+ */
+public class StripResampler
+{
+    private Rectangle region;
+    private int dstWidth;
+    private int dstHeight;
+    private RasterPool rasterPool;
+
+    private ResampleWeights horizontal;
+    private ResampleWeights vertical;
+
+    private BufferedImage dst;
+    private int channels;
+    private float[] srcRow;
+    private float[] dstRow;
+    private float[][] ring;
+
+    private int rowsReceived;       // relative to region
+    private int nextDstRow;
+
+
+    /**
+     *  @param  filter      The resampling filter.
+     *  @param  region      The region of the source, in source pixels, that will
+     *                      be scaled to the destination.
+     *  @param  dstWidth    Width of the destination image.
+     *  @param  dstHeight   Height of the destination image.
+     *  @param  rasterPool  Source of the destination image.
+     */
+    public StripResampler(ResampleFilter filter, Rectangle region, int dstWidth, int dstHeight, RasterPool rasterPool)
+    {
+        this.region = new Rectangle(region);
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.rasterPool = rasterPool;
+
+        horizontal = new ResampleWeights(filter, region.width, dstWidth);
+        vertical = new ResampleWeights(filter, region.height, dstHeight);
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Consumes a strip of the source image.
+     *
+     *  @param  strip   The strip's pixels; its width must be at least that of the
+     *                  right edge of this resampler's region.
+     *  @param  stripY  The source row corresponding to the first row of the strip.
+     */
+    public void accept(BufferedImage strip, int stripY)
+    {
+        if (dst == null)
+        {
+            initialize(strip);
+        }
+        else if (strip.getType() != dst.getType())
+        {
+            throw new IllegalArgumentException("strip type " + strip.getType() + " does not match " + dst.getType());
+        }
+
+        int from = Math.max(stripY, region.y + rowsReceived);
+        int to = Math.min(stripY + strip.getHeight(), region.y + region.height);
+        for (int y = from ; y < to ; y++)
+        {
+            int regionY = y - region.y;
+            KernelScalingEngine.unpackRow(strip, y - stripY, region.x, srcRow);
+            KernelScalingEngine.convolveRow(srcRow, horizontal, ring[regionY % ring.length], 0, dstWidth, channels);
+            rowsReceived = regionY + 1;
+            emitAvailableRows();
+        }
+    }
+
+
+    /**
+     *  Returns true once all destination rows have been produced.
+     */
+    public boolean isComplete()
+    {
+        return nextDstRow == dstHeight;
+    }
+
+
+    /**
+     *  Returns the destination image, throwing if it isn't complete.
+     */
+    public BufferedImage getResult()
+    {
+        if (! isComplete())
+            throw new IllegalStateException("resampler has produced " + nextDstRow + " of " + dstHeight + " rows");
+        return dst;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private void initialize(BufferedImage strip)
+    {
+        dst = rasterPool.acquire(dstWidth, dstHeight, strip.getType());
+        channels = strip.getRaster().getNumBands();
+        srcRow = new float[region.width * channels];
+        dstRow = new float[dstWidth * channels];
+
+        int maxCount = 1;
+        for (int ii = 0 ; ii < dstHeight ; ii++)
+        {
+            maxCount = Math.max(maxCount, vertical.count(ii));
+        }
+
+        ring = new float[maxCount][dstWidth * channels];
+    }
+
+
+    /**
+     *  Runs the vertical pass for all destination rows whose source rows have been
+     *  received. Because filter windows advance monotonically, a row is never needed
+     *  after a destination row whose window starts past it has been produced.
+     */
+    private void emitAvailableRows()
+    {
+        float[] w = vertical.weights();
+        while ((nextDstRow < dstHeight)
+                && (vertical.start(nextDstRow) + vertical.count(nextDstRow) <= rowsReceived))
+        {
+            int start = vertical.start(nextDstRow);
+            int count = vertical.count(nextDstRow);
+            int offset = vertical.offset(nextDstRow);
+
+            Arrays.fill(dstRow, 0f);
+            for (int k = 0 ; k < count ; k++)
+            {
+                float wk = w[offset + k];
+                float[] src = ring[(start + k) % ring.length];
+                for (int ii = 0 ; ii < dstRow.length ; ii++)
+                    dstRow[ii] += src[ii] * wk;
+            }
+
+            KernelScalingEngine.packRow(dstRow, dst, nextDstRow);
+            nextDstRow++;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.kdgcommons.io.IOUtil;
+
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+import com.kdgregory.example.javalambda.shared.services.ContentService;
+
+
+/**
+ *  An in-memory stand-in for the content service. Stored images are keyed by photo
+ *  ID and size name, separated by a slash.
+ */
+class InMemoryContentService
+implements ContentService
+{
+    public Map<String,byte[]> uploads = new ConcurrentHashMap<>();
+    public Map<String,byte[]> images = new ConcurrentHashMap<>();
+    public AtomicInteger moves = new AtomicInteger();
+    public AtomicInteger connects = new AtomicInteger();
+
+    @Override
+    public void store(String photoId, String mimeType, Sizes size, byte[] content)
+    {
+        images.put(photoId + "/" + size.name(), content);
+    }
+
+    @Override
+    public void store(String photoId, String mimeType, Sizes size, InputStream content, long length)
+    {
+        try
+        {
+            byte[] buf = new byte[(int)length];
+            IOUtil.readFully(content, buf);
+            store(photoId, mimeType, size, buf);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public byte[] retrieve(String photoId, Sizes size)
+    {
+        return images.get(photoId + "/" + size.name());
+    }
+
+    @Override
+    public InputStream openStream(String photoId, Sizes size)
+    {
+        byte[] content = retrieve(photoId, size);
+        return (content == null) ? null : new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public byte[] retrieveRange(String photoId, Sizes size, long offset, int length)
+    {
+        byte[] content = retrieve(photoId, size);
+        if (content == null)
+            return null;
+        if (offset >= content.length)
+            return new byte[0];
+
+        int end = (int)Math.min(content.length, offset + length);
+        return Arrays.copyOfRange(content, (int)offset, end);
+    }
+
+    @Override
+    public String createUploadURL(String filename)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void moveUploadToImageBucket(String photoId)
+    {
+        byte[] content = uploads.remove(photoId);
+        if (content == null)
+            throw new IllegalStateException("no upload: " + photoId);
+
+        moves.incrementAndGet();
+        store(photoId, null, Sizes.ORIGINAL, content);
+    }
+
+    @Override
+    public InputStream openUploadStream(String photoId)
+    {
+        byte[] content = uploads.get(photoId);
+        return (content == null) ? null : new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public byte[] retrieveUploadRange(String photoId, long offset, int length)
+    {
+        byte[] content = uploads.get(photoId);
+        if (content == null)
+            return null;
+        if (offset >= content.length)
+            return new byte[0];
+
+        int end = (int)Math.min(content.length, offset + length);
+        return Arrays.copyOfRange(content, (int)offset, end);
+    }
+
+    @Override
+    public void deleteUpload(String photoId)
+    {
+        uploads.remove(photoId);
+    }
+
+    @Override
+    public void connect()
+    {
+        connects.incrementAndGet();
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.services.MetadataService;
+
+
+/**
+ *  An in-memory stand-in for the metadata service. Holds metadata as Dynamo items,
+ *  so that callers can't modify what's stored.
+ */
+class InMemoryMetadataService
+implements MetadataService
+{
+    public Map<String,Item> items = new ConcurrentHashMap<>();
+    public Map<String,String> contentIndex = new ConcurrentHashMap<>();
+    public AtomicInteger connects = new AtomicInteger();
+
+    @Override
+    public synchronized boolean store(PhotoMetadata metadata)
+    {
+        items.put(metadata.getId(), metadata.toDynamoItem());
+        return true;
+    }
+
+    @Override
+    public synchronized boolean storeLeased(PhotoMetadata metadata, String owner)
+    {
+        PhotoMetadata stored = retrieve(metadata.getId());
+        if ((stored == null) || ! owner.equals(stored.getLeaseOwner()))
+            return false;
+
+        return store(metadata);
+    }
+
+    @Override
+    public synchronized PhotoMetadata retrieve(String photoId)
+    {
+        Item item = items.get(photoId);
+        return (item == null) ? null : PhotoMetadata.fromDynamoItem(item);
+    }
+
+    @Override
+    public List<PhotoMetadata> retrieveByUser(String username)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     *  Assigns photos to segments by the hash of their ID, and returns them in order
+     *  of ID; the resume key is the ID of the last photo examined.
+     */
+    @Override
+    public synchronized ScanPage scan(int segment, int totalSegments, String startKey, int pageSize)
+    {
+        List<String> ids = new ArrayList<>(new TreeSet<>(items.keySet()).tailSet((startKey == null) ? "" : startKey, false));
+        ids.removeIf(id -> Math.floorMod(id.hashCode(), totalSegments) != segment);
+
+        List<PhotoMetadata> photos = new ArrayList<>();
+        for (String id : ids.subList(0, Math.min(pageSize, ids.size())))
+        {
+            photos.add(retrieve(id));
+        }
+
+        String nextKey = (ids.size() > pageSize) ? ids.get(pageSize - 1) : null;
+        return new ScanPage(photos, nextKey);
+    }
+
+    @Override
+    public void delete(String photoId)
+    {
+        items.remove(photoId);
+    }
+
+    @Override
+    public String retrieveByContentHash(String hash)
+    {
+        return contentIndex.get(hash);
+    }
+
+    @Override
+    public boolean storeContentHash(String hash, String photoId)
+    {
+        return contentIndex.putIfAbsent(hash, photoId) == null;
+    }
+
+    @Override
+    public synchronized PhotoMetadata acquireLease(PhotoMetadata metadata, String owner, long until)
+    {
+        PhotoMetadata stored = retrieve(metadata.getId());
+        if ((stored == null)
+                || ((stored.getLeaseUntil() != null)
+                    && (stored.getLeaseUntil().longValue() >= System.currentTimeMillis())
+                    && ! owner.equals(stored.getLeaseOwner())))
+        {
+            return null;
+        }
+
+        stored.setLease(owner, Long.valueOf(until));
+        store(stored);
+        return retrieve(metadata.getId());
+    }
+
+    @Override
+    public synchronized void releaseLease(PhotoMetadata metadata)
+    {
+        PhotoMetadata stored = retrieve(metadata.getId());
+        if ((stored != null) && (metadata.getLeaseOwner() != null)
+                && metadata.getLeaseOwner().equals(stored.getLeaseOwner()))
+        {
+            stored.clearLease();
+            store(stored);
+        }
+        metadata.clearLease();
+    }
+
+    @Override
+    public void connect()
+    {
+        connects.incrementAndGet();
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestBackfill
+{
+    private final static String UPLOAD_BUCKET = "test-uploads";
+
+    private File checkpointFile;
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static byte[] createJpeg(int width, int height)
+    throws Exception
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.GREEN);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     *  Creates metadata with the specified sizes, and stores it along with content
+     *  for those sizes.
+     */
+    private static PhotoMetadata store(InMemoryMetadataService metadataService, InMemoryContentService contentService,
+                                       String photoId, byte[] content, Sizes... sizes)
+    {
+        List<String> sizeNames = Arrays.stream(sizes).map(Sizes::name).collect(Collectors.toList());
+        PhotoMetadata metadata = new PhotoMetadata(photoId, "test", photoId + ".jpg", "image/jpeg", "", Long.valueOf(System.currentTimeMillis()), sizeNames);
+        metadataService.store(metadata);
+        for (Sizes size : sizes)
+        {
+            contentService.store(photoId, "image/jpeg", size, content);
+        }
+        return metadata;
+    }
+
+
+    private static int segmentOf(String photoId, int totalSegments)
+    {
+        // matches InMemoryMetadataService
+        return Math.floorMod(photoId.hashCode(), totalSegments);
+    }
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        checkpointFile = File.createTempFile("TestBackfill", ".properties");
+        checkpointFile.delete();
+    }
+
+
+    @After
+    public void tearDown() throws Exception
+    {
+        checkpointFile.delete();
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testBackfill() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        byte[] jpeg = createJpeg(1600, 1200);
+        List<String> photoIds = Arrays.asList("p0", "p1", "p2", "p3", "p4", "p5", "p6", "p7");
+        for (String photoId : photoIds)
+        {
+            store(metadataService, contentService, photoId, jpeg, Sizes.ORIGINAL, Sizes.THUMB);
+        }
+
+        store(metadataService, contentService, "complete", jpeg, Sizes.values());
+        store(metadataService, contentService, "pending", jpeg);
+
+        PhotoMetadata rejected = store(metadataService, contentService, "rejected", jpeg, Sizes.ORIGINAL);
+        rejected.setRejected("for testing");
+        metadataService.store(rejected);
+
+        PhotoMetadata shared = store(metadataService, contentService, "shared", jpeg, Sizes.ORIGINAL, Sizes.THUMB);
+        shared.setContentId("p0");
+        metadataService.store(shared);
+        contentService.images.remove("shared/" + Sizes.ORIGINAL.name());
+        contentService.images.remove("shared/" + Sizes.THUMB.name());
+
+        int storedObjects = contentService.images.size();
+
+        // the first run is "interrupted" after completing one segment
+
+        BackfillCheckpoint checkpoint = new BackfillCheckpoint(checkpointFile, 3);
+        checkpoint.update(0, null);
+
+        Backfill backfill = new Backfill(metadataService, resizer, checkpoint, 2, 0);
+        assertTrue("first run completed",               backfill.run());
+        assertEquals("first run failures",              0,                                  backfill.getFailed());
+
+        for (String photoId : photoIds)
+        {
+            PhotoMetadata metadata = metadataService.retrieve(photoId);
+            if (segmentOf(photoId, 3) == 0)
+            {
+                assertEquals(photoId + " sizes (skipped)",  EnumSet.of(Sizes.ORIGINAL, Sizes.THUMB), metadata.getSizes());
+            }
+            else
+            {
+                assertEquals(photoId + " sizes",            EnumSet.allOf(Sizes.class),         metadata.getSizes());
+                assertNotNull(photoId + " rendition stored",                                    contentService.images.get(photoId + "/" + metadata.getStoredSize(Sizes.W640H480).name()));
+                assertNull(photoId + " lease released",                                         metadata.getLeaseOwner());
+            }
+        }
+
+        assertTrue("all segments complete",             checkpoint.isComplete(0) && checkpoint.isComplete(1) && checkpoint.isComplete(2));
+
+        // a new run with a new checkpoint picks up the rest, and only the rest
+
+        checkpointFile.delete();
+        int previouslyStored = contentService.images.size();
+        backfill = new Backfill(metadataService, resizer, new BackfillCheckpoint(checkpointFile, 3), 2, 0);
+        assertTrue("second run completed",              backfill.run());
+        assertEquals("second run failures",             0,                                  backfill.getFailed());
+        assertEquals("second run scanned",              photoIds.size() + 4,                backfill.getScanned());
+
+        for (String photoId : photoIds)
+        {
+            assertEquals(photoId + " sizes after second run", EnumSet.allOf(Sizes.class),  metadataService.retrieve(photoId).getSizes());
+        }
+
+        PhotoMetadata p0 = metadataService.retrieve("p0");
+        PhotoMetadata sharedAfter = metadataService.retrieve("shared");
+        assertEquals("shared photo sizes",              p0.getSizes(),                      sharedAfter.getSizes());
+        assertEquals("shared photo aliases",            p0.getAliases(),                    sharedAfter.getAliases());
+        assertEquals("shared photo content ID",         "p0",                               sharedAfter.getContentId());
+        assertFalse("nothing stored for shared photo",  contentService.images.keySet().stream().anyMatch(key -> key.startsWith("shared/")));
+
+        assertEquals("rejected photo sizes",            EnumSet.of(Sizes.ORIGINAL),         metadataService.retrieve("rejected").getSizes());
+        assertEquals("pending photo sizes",             EnumSet.noneOf(Sizes.class),        metadataService.retrieve("pending").getSizes());
+
+        // each photo that was missing sizes gets two new renditions (unless aliased), exactly once
+        int newObjects = contentService.images.size() - storedObjects;
+        assertTrue("renditions stored by first run",    previouslyStored > storedObjects);
+        assertTrue("renditions stored, at most once",   newObjects <= photoIds.size() * 2);
+
+        // and once everything is complete, there's nothing to do
+
+        checkpointFile.delete();
+        int finalStored = contentService.images.size();
+        backfill = new Backfill(metadataService, resizer, new BackfillCheckpoint(checkpointFile, 3), 2, 0);
+        assertTrue("third run completed",               backfill.run());
+        assertEquals("third run processed",             0,                                  backfill.getProcessed());
+        assertEquals("nothing stored by third run",     finalStored,                        contentService.images.size());
+    }
+
+
+    @Test
+    public void testCheckpoint() throws Exception
+    {
+        BackfillCheckpoint checkpoint = new BackfillCheckpoint(checkpointFile, 4);
+        assertTrue("file created",                      checkpointFile.exists());
+        assertNull("initial resume key",                checkpoint.getResumeKey(1));
+        assertFalse("initially incomplete",             checkpoint.isComplete(1));
+
+        checkpoint.update(1, "abcd/user");
+        checkpoint.update(2, null);
+
+        BackfillCheckpoint reopened = new BackfillCheckpoint(checkpointFile, 4);
+        assertEquals("resume key after reopen",         "abcd/user",                        reopened.getResumeKey(1));
+        assertFalse("in-progress segment",              reopened.isComplete(1));
+        assertTrue("complete segment",                  reopened.isComplete(2));
+        assertNull("no resume key for complete segment",                                    reopened.getResumeKey(2));
+
+        try
+        {
+            new BackfillCheckpoint(checkpointFile, 8);
+            fail("opened checkpoint with different number of segments");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+}
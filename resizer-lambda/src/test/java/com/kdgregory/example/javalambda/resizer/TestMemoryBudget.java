@@ -0,0 +1,108 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.resizer.MemoryBudget.Decision;
+import com.kdgregory.example.javalambda.resizer.decode.DecodePlanner;
+import com.kdgregory.example.javalambda.resizer.decode.RenditionGeometry;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestMemoryBudget
+{
+    private DecodePlanner normalPlanner = new DecodePlanner(2);
+    private DecodePlanner lowMemoryPlanner = new DecodePlanner(1);
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static List<RenditionGeometry> geometries(int width, int height, Sizes... sizes)
+    {
+        List<RenditionGeometry> result = new ArrayList<>();
+        for (Sizes size : sizes)
+        {
+            result.add(RenditionGeometry.compute(width, height, size));
+        }
+        return result;
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testProjection() throws Exception
+    {
+        List<RenditionGeometry> geometries = geometries(2000, 1000, Sizes.W640H480);
+
+        // 640x320 rendition; normal planner can't subsample, low-memory planner subsamples by 3
+        assertEquals("normal",      (2000 * 1000 + 640 * 320) * 4L,
+                                    MemoryBudget.projectedBytes(geometries, normalPlanner, true));
+        assertEquals("low-memory",  (667 * 334 + 640 * 320) * 4L,
+                                    MemoryBudget.projectedBytes(geometries, lowMemoryPlanner, false));
+        assertEquals("nothing to render", 0L,
+                                    MemoryBudget.projectedBytes(Collections.emptyList(), normalPlanner, true));
+    }
+
+
+    @Test
+    public void testConcurrentRenditions() throws Exception
+    {
+        List<RenditionGeometry> geometries = geometries(6000, 4000, Sizes.W1024H768, Sizes.W640H480);
+
+        long concurrent = MemoryBudget.projectedBytes(geometries, normalPlanner, true);
+        long sequential = MemoryBudget.projectedBytes(geometries, normalPlanner, false);
+        assertEquals("difference is smaller rendition", 640 * 427 * 4L, concurrent - sequential);
+    }
+
+
+    @Test
+    public void testEstimateIncludesEncodedContent() throws Exception
+    {
+        List<RenditionGeometry> geometries = geometries(2000, 1000, Sizes.W640H480);
+        MemoryBudget budget = new MemoryBudget(0, normalPlanner, lowMemoryPlanner, 1024);
+
+        // the original is counted twice (buffered and copied), the rendition once
+        long encoded = 2000 * 1000 * 2L + 640 * 320;
+        assertEquals("normal",      MemoryBudget.projectedBytes(geometries, normalPlanner, true) + encoded,
+                                    budget.estimate(Decision.PROCESS, geometries));
+        assertEquals("low-memory",  MemoryBudget.projectedBytes(geometries, lowMemoryPlanner, false) + encoded,
+                                    budget.estimate(Decision.LOW_MEMORY, geometries));
+        assertEquals("tiled",       1024 + 640 * 320 * 4L + 640 * 320,
+                                    budget.estimate(Decision.TILED, geometries));
+    }
+
+
+    @Test
+    public void testDecision() throws Exception
+    {
+        List<RenditionGeometry> geometries = geometries(8000, 6000, Sizes.values());
+        geometries.removeIf(geometry -> geometry.isIdentity(8000, 6000));
+
+        MemoryBudget estimator = new MemoryBudget(0, normalPlanner, lowMemoryPlanner, 0);
+        long normal = estimator.estimate(Decision.PROCESS, geometries);
+        long lowMemory = estimator.estimate(Decision.LOW_MEMORY, geometries);
+        assertTrue("low-memory projection is smaller", lowMemory < normal);
+
+        assertEquals("fits",                Decision.PROCESS,
+                     new MemoryBudget(normal, normalPlanner, lowMemoryPlanner, 0).check(geometries, 0));
+        assertEquals("pooled images count", Decision.LOW_MEMORY,
+                     new MemoryBudget(normal, normalPlanner, lowMemoryPlanner, 0).check(geometries, 1));
+        assertEquals("fits in low-memory",  Decision.LOW_MEMORY,
+                     new MemoryBudget(lowMemory, normalPlanner, lowMemoryPlanner, 0).check(geometries, 0));
+        assertEquals("fits in strips",      Decision.TILED,
+                     new MemoryBudget(lowMemory - 1, normalPlanner, lowMemoryPlanner, 1024).check(geometries, 0));
+        assertEquals("doesn't fit",         Decision.REJECT,
+                     new MemoryBudget(lowMemory - 1, normalPlanner, lowMemoryPlanner, lowMemory).check(geometries, 0));
+        assertEquals("nothing to render",   Decision.PROCESS,
+                     new MemoryBudget(0, normalPlanner, lowMemoryPlanner, 0).check(Arrays.asList(), 0));
+    }
+}
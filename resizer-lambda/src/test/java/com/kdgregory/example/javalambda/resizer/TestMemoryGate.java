@@ -0,0 +1,61 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestMemoryGate
+{
+    @Test
+    public void testAcquireAndRelease() throws Exception
+    {
+        MemoryGate gate = new MemoryGate(1024 * 1024);
+
+        int r1 = gate.acquire(100 * 1024);
+        int r2 = gate.acquire(1);
+        assertEquals("available after reservations", (1024 - 101) * 1024L, gate.getAvailableBytes());
+
+        gate.release(r1);
+        gate.release(r2);
+        assertEquals("available after release", 1024 * 1024L, gate.getAvailableBytes());
+
+        int r3 = gate.acquire(10L * 1024 * 1024);
+        assertEquals("oversized reservation is clamped", 0L, gate.getAvailableBytes());
+        gate.release(r3);
+        assertEquals("available after oversized release", 1024 * 1024L, gate.getAvailableBytes());
+    }
+
+
+    @Test
+    public void testBlocksUntilAvailable() throws Exception
+    {
+        MemoryGate gate = new MemoryGate(1024 * 1024);
+        int first = gate.acquire(768 * 1024);
+
+        AtomicInteger second = new AtomicInteger(-1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try
+            {
+                second.set(gate.acquire(512 * 1024));
+                done.countDown();
+            }
+            catch (InterruptedException ignored)
+            {
+                // test will fail
+            }
+        });
+        thread.start();
+
+        assertFalse("second reservation waits", done.await(200, TimeUnit.MILLISECONDS));
+
+        gate.release(first);
+        assertTrue("second reservation granted after release", done.await(1, TimeUnit.SECONDS));
+        assertEquals("second reservation", 512, second.get());
+    }
+}
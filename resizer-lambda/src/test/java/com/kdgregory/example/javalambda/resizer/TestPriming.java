@@ -0,0 +1,55 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestPriming
+{
+    private final static String UPLOAD_BUCKET = "test-uploads";
+
+    @Test
+    public void testPrime() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        resizer.prime(2);
+        assertEquals("metadata service connections",    1,      metadataService.connects.get());
+        assertEquals("content service connections",     1,      contentService.connects.get());
+        assertEquals("nothing stored in metadata",      0,      metadataService.items.size());
+        assertEquals("nothing stored in content",       0,      contentService.images.size());
+        assertEquals("nothing uploaded",                0,      contentService.uploads.size());
+    }
+
+
+    @Test
+    public void testPrimingDisabled() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        assertEquals("elapsed time",                    0L,     resizer.prime(0));
+        assertEquals("metadata service connections",    0,      metadataService.connects.get());
+        assertEquals("content service connections",     0,      contentService.connects.get());
+    }
+
+
+    @Test
+    public void testSnapshotHooks() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        SnapshotHooks hooks = new SnapshotHooks(resizer);
+        hooks.beforeCheckpoint(null);
+        hooks.afterRestore(null);
+
+        assertEquals("metadata service reconnected",    1,      metadataService.connects.get());
+        assertEquals("content service reconnected",     1,      contentService.connects.get());
+    }
+}
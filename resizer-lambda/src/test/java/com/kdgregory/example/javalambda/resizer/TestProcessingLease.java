@@ -0,0 +1,75 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestProcessingLease
+{
+    private static PhotoMetadata createMetadata(InMemoryMetadataService metadataService, String photoId)
+    {
+        PhotoMetadata metadata = new PhotoMetadata(photoId, "test", photoId + ".jpg", "image/jpeg", "",
+                                                   Long.valueOf(System.currentTimeMillis()), new ArrayList<>());
+        metadataService.store(metadata);
+        return metadata;
+    }
+
+
+    @Test
+    public void testStoreFinal() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        PhotoMetadata metadata = createMetadata(metadataService, "example");
+
+        try (ProcessingLease lease = ProcessingLease.acquire(metadataService, metadata, 60000))
+        {
+            assertNotNull("acquired lease",                                     lease);
+            assertNull("second owner blocked",                                  ProcessingLease.acquire(metadataService, metadata, 60000));
+
+            lease.getMetadata().getSizes().add(Sizes.ORIGINAL);
+            assertTrue("intermediate store",                                    lease.store());
+            assertNotNull("lease retained after intermediate store",            metadataService.retrieve("example").getLeaseOwner());
+
+            assertTrue("final store",                                           lease.storeFinal());
+        }
+
+        PhotoMetadata stored = metadataService.retrieve("example");
+        assertNull("lease released",                                            stored.getLeaseOwner());
+        assertTrue("stored updated sizes",                                      stored.getSizes().contains(Sizes.ORIGINAL));
+    }
+
+
+    @Test
+    public void testLostLease() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        PhotoMetadata metadata = createMetadata(metadataService, "example");
+
+        // the first lease has already expired, so can be taken over
+        try (ProcessingLease first = ProcessingLease.acquire(metadataService, metadata, -1))
+        {
+            assertNotNull("acquired first lease",                               first);
+            try (ProcessingLease second = ProcessingLease.acquire(metadataService, metadata, 60000))
+            {
+                assertNotNull("second owner took over expired lease",           second);
+
+                first.getMetadata().getSizes().add(Sizes.ORIGINAL);
+                assertFalse("intermediate store by first owner fails",          first.store());
+                assertFalse("final store by first owner fails",                 first.storeFinal());
+                assertNotNull("first owner's lease retained in its metadata",   first.getMetadata().getLeaseOwner());
+
+                PhotoMetadata stored = metadataService.retrieve("example");
+                assertEquals("stored lease",                second.getMetadata().getLeaseOwner(),   stored.getLeaseOwner());
+                assertFalse("first owner's changes not stored",                 stored.getSizes().contains(Sizes.ORIGINAL));
+            }
+        }
+
+        assertNull("closing releases only the current owner's lease",           metadataService.retrieve("example").getLeaseOwner());
+    }
+}
@@ -0,0 +1,43 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestRateLimiter
+{
+    @Test
+    public void testLimitedRate() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(100);
+
+        long start = System.nanoTime();
+        for (int ii = 0 ; ii < 11 ; ii++)
+        {
+            limiter.acquire();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // first permit is immediate, the rest are 10ms apart
+        assertTrue("elapsed time (was " + elapsed + ")", elapsed >= 95);
+    }
+
+
+    @Test
+    public void testUnlimitedRate() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(0);
+
+        long start = System.nanoTime();
+        for (int ii = 0 ; ii < 10000 ; ii++)
+        {
+            limiter.acquire();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("elapsed time (was " + elapsed + ")", elapsed < 1000);
+    }
+}
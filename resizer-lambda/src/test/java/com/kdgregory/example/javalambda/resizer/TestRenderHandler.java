@@ -0,0 +1,216 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata.Fields;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestRenderHandler
+{
+    private final static String UPLOAD_BUCKET = "test-uploads";
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static Context lambdaContext()
+    {
+        return (Context)Proxy.newProxyInstance(
+                    TestRenderHandler.class.getClassLoader(),
+                    new Class<?>[] { Context.class },
+                    (proxy, method, args) -> method.getName().equals("getAwsRequestId") ? "test-request"
+                                           : method.getName().equals("getRemainingTimeInMillis") ? Integer.valueOf(30000)
+                                           : null);
+    }
+
+
+    private static byte[] createJpeg(int width, int height)
+    throws Exception
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     *  Stores metadata for a photo that has been processed with only the original and
+     *  thumbnail sizes.
+     */
+    private static PhotoMetadata storeProcessed(InMemoryMetadataService metadataService, InMemoryContentService contentService,
+                                                String photoId, byte[] content)
+    {
+        PhotoMetadata metadata = new PhotoMetadata(photoId, "test", photoId + ".jpg", "image/jpeg", "", Long.valueOf(System.currentTimeMillis()),
+                                                   Arrays.asList(Sizes.ORIGINAL.name(), Sizes.THUMB.name()));
+        metadataService.store(metadata);
+        contentService.store(photoId, "image/jpeg", Sizes.ORIGINAL, content);
+        contentService.store(photoId, "image/jpeg", Sizes.THUMB, content);
+        return metadata;
+    }
+
+
+    private static Map<String,Object> request(String photoId, Sizes size)
+    {
+        Map<String,Object> request = new HashMap<>();
+        request.put(Fields.ID, photoId);
+        request.put("size", size.name());
+        return request;
+    }
+
+
+    private static Set<String> sizeNames(Map<String,Object> clientMap, String field)
+    {
+        List<?> sizes = (List<?>)clientMap.get(field);
+        return sizes.stream().map(m -> (String)((Map<?,?>)m).get("name")).collect(Collectors.toSet());
+    }
+
+
+    private static Set<String> names(Sizes... sizes)
+    {
+        return Arrays.stream(sizes).map(Sizes::name).collect(Collectors.toSet());
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testRenderSingleSize() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        storeProcessed(metadataService, contentService, "example", createJpeg(1600, 1200));
+
+        Map<String,Object> response = resizer.renderHandler(request("example", Sizes.W640H480), lambdaContext());
+        assertEquals("sizes in response",               names(Sizes.ORIGINAL, Sizes.THUMB, Sizes.W640H480),     sizeNames(response, Fields.SIZES));
+        assertEquals("missing sizes in response",       names(Sizes.W1024H768),                                 sizeNames(response, Fields.MISSING));
+
+        PhotoMetadata metadata = metadataService.retrieve("example");
+        assertEquals("stored sizes",                    EnumSet.of(Sizes.ORIGINAL, Sizes.THUMB, Sizes.W640H480), metadata.getSizes());
+        assertNotNull("rendition stored",                                                                       contentService.images.get("example/" + Sizes.W640H480.name()));
+        assertNull("other size not rendered",                                                                   contentService.images.get("example/" + Sizes.W1024H768.name()));
+        assertNull("lease released",                                                                            metadata.getLeaseOwner());
+
+        // a second request for the same size does nothing
+
+        int storedObjects = contentService.images.size();
+        response = resizer.renderHandler(request("example", Sizes.W640H480), lambdaContext());
+        assertEquals("sizes in repeat response",        names(Sizes.ORIGINAL, Sizes.THUMB, Sizes.W640H480),     sizeNames(response, Fields.SIZES));
+        assertEquals("nothing stored for repeat",       storedObjects,                                          contentService.images.size());
+    }
+
+
+    @Test
+    public void testRenderSharedContent() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        storeProcessed(metadataService, contentService, "first", createJpeg(1600, 1200));
+
+        PhotoMetadata copy = new PhotoMetadata("copy", "test", "copy.jpg", "image/jpeg", "", Long.valueOf(System.currentTimeMillis()),
+                                               Arrays.asList(Sizes.ORIGINAL.name(), Sizes.THUMB.name()));
+        copy.setContentId("first");
+        metadataService.store(copy);
+
+        Map<String,Object> response = resizer.renderHandler(request("copy", Sizes.W1024H768), lambdaContext());
+        assertEquals("response content ID",             "first",                                                response.get(Fields.CONTENT_ID));
+        assertTrue("size in response",                                                                          sizeNames(response, Fields.SIZES).contains(Sizes.W1024H768.name()));
+
+        assertTrue("size recorded for content owner",                                                           metadataService.retrieve("first").getSizes().contains(Sizes.W1024H768));
+        assertNotNull("rendition stored for content owner",                                                     contentService.images.get("first/" + Sizes.W1024H768.name()));
+        assertFalse("nothing stored for copy",                                                                  contentService.images.keySet().stream().anyMatch(key -> key.startsWith("copy/")));
+    }
+
+
+    @Test
+    public void testRenderWhileLeased() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        PhotoMetadata metadata = storeProcessed(metadataService, contentService, "example", createJpeg(1600, 1200));
+        assertNotNull("other invocation took lease",    metadataService.acquireLease(metadata, "other", System.currentTimeMillis() + 60000));
+
+        // rather than waiting for the other invocation, returns so that the client can retry
+        Map<String,Object> response = resizer.renderHandler(request("example", Sizes.W640H480), lambdaContext());
+        assertEquals("sizes in response",               names(Sizes.ORIGINAL, Sizes.THUMB),                     sizeNames(response, Fields.SIZES));
+        assertTrue("size reported as missing",                                                                  sizeNames(response, Fields.MISSING).contains(Sizes.W640H480.name()));
+        assertNull("rendition not stored",                                                                      contentService.images.get("example/" + Sizes.W640H480.name()));
+        assertEquals("lease retained by other owner",   "other",                                                metadataService.retrieve("example").getLeaseOwner());
+
+        // once the other invocation is done, the request succeeds
+        metadataService.releaseLease(metadataService.retrieve("example"));
+        response = resizer.renderHandler(request("example", Sizes.W640H480), lambdaContext());
+        assertTrue("size in response after release",                                                            sizeNames(response, Fields.SIZES).contains(Sizes.W640H480.name()));
+    }
+
+
+    @Test
+    public void testRenderFailures() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        metadataService.store(new PhotoMetadata("pending", "test", "pending.jpg", "image/jpeg", "", Long.valueOf(System.currentTimeMillis()),
+                                                Collections.emptyList()));
+
+        for (String photoId : Arrays.asList("unknown", "pending"))
+        {
+            try
+            {
+                resizer.renderHandler(request(photoId, Sizes.W640H480), lambdaContext());
+                fail("rendered " + photoId);
+            }
+            catch (ResizerException ex)
+            {
+                assertTrue("exception identifies photo (was: " + ex.getMessage() + ")", ex.getMessage().contains(photoId));
+            }
+        }
+
+        try
+        {
+            resizer.renderHandler(Collections.singletonMap(Fields.ID, "pending"), lambdaContext());
+            fail("accepted request without size");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // success
+        }
+
+        assertEquals("nothing stored",                  0,                                                      contentService.images.size());
+    }
+}
@@ -0,0 +1,247 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+import com.kdgregory.example.javalambda.resizer.scaling.ProgressiveScalingEngine;
+import com.kdgregory.example.javalambda.resizer.scaling.ScalingEngine;
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+/**
+ *  Tests the production of renditions from a decoded original: sharing of the
+ *  decoded source, cascading, and rendering on multiple threads.
+ */
+public class TestRendering
+{
+    private final static String UPLOAD_BUCKET = "test-uploads";
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    /**
+     *  Records a call to a {@link RecordingEngine}.
+     */
+    private static class Scaled
+    {
+        public final Sizes size;
+        public final boolean cascade;
+        public final DataBuffer srcBuffer;
+        public final int srcWidth;
+        public final int srcHeight;
+        public final DataBuffer dstBuffer;
+        public final String thread;
+
+        public Scaled(Sizes size, boolean cascade, BufferedImage src, BufferedImage dst)
+        {
+            this.size = size;
+            this.cascade = cascade;
+            this.srcBuffer = src.getRaster().getDataBuffer();
+            this.srcWidth = src.getWidth();
+            this.srcHeight = src.getHeight();
+            this.dstBuffer = dst.getRaster().getDataBuffer();
+            this.thread = Thread.currentThread().getName();
+        }
+    }
+
+
+    /**
+     *  Delegates to a progressive engine, recording the source and result of each
+     *  call in order of completion.
+     */
+    private static class RecordingEngine
+    implements ScalingEngine
+    {
+        private ScalingEngine delegate = new ProgressiveScalingEngine(new RasterPool(0));
+        private Sizes size;
+        private boolean cascade;
+        private List<Scaled> calls;
+
+        public RecordingEngine(Sizes size, boolean cascade, List<Scaled> calls)
+        {
+            this.size = size;
+            this.cascade = cascade;
+            this.calls = calls;
+        }
+
+        @Override
+        public BufferedImage scale(BufferedImage src, int width, int height)
+        {
+            BufferedImage dst = delegate.scale(src, width, height);
+            calls.add(new Scaled(size, cascade, src, dst));
+            return dst;
+        }
+    }
+
+
+    private static byte[] createJpeg(int width, int height)
+    throws Exception
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        for (int x = 0 ; x < width ; x += 10)
+        {
+            g.setColor(new Color(x * 255 / width, (x * 7) % 256, 255 - x * 255 / width));
+            g.fillRect(x, 0, 10, height);
+        }
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", out);
+        return out.toByteArray();
+    }
+
+
+    /**
+     *  Stores metadata and content for a photo that has only its original.
+     */
+    private static void storeOriginal(InMemoryMetadataService metadataService, InMemoryContentService contentService,
+                                      String photoId, byte[] content)
+    {
+        PhotoMetadata metadata = new PhotoMetadata(photoId, "test", photoId + ".jpg", "image/jpeg", "", Long.valueOf(System.currentTimeMillis()),
+                                                   Arrays.asList(Sizes.ORIGINAL.name()));
+        metadataService.store(metadata);
+        contentService.store(photoId, "image/jpeg", Sizes.ORIGINAL, content);
+    }
+
+
+    /**
+     *  Configures recording engines for all rendered sizes, optionally cascading the
+     *  smaller sizes.
+     */
+    private static List<Scaled> configureRecording(Resizer resizer, boolean cascade)
+    {
+        List<Scaled> calls = Collections.synchronizedList(new ArrayList<>());
+        resizer.configureScaling(Sizes.W1024H768,   new RecordingEngine(Sizes.W1024H768, false, calls),
+                                                    null);
+        resizer.configureScaling(Sizes.W640H480,    new RecordingEngine(Sizes.W640H480, false, calls),
+                                                    cascade ? new RecordingEngine(Sizes.W640H480, true, calls) : null);
+        resizer.configureScaling(Sizes.THUMB,       new RecordingEngine(Sizes.THUMB, false, calls),
+                                                    cascade ? new RecordingEngine(Sizes.THUMB, true, calls) : null);
+        return calls;
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testSharedSource() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+        List<Scaled> calls = configureRecording(resizer, false);
+
+        storeOriginal(metadataService, contentService, "example", createJpeg(1600, 1200));
+        assertTrue("processed",                                             resizer.backfill("example"));
+
+        assertEquals("number of scaling calls",     3,                      calls.size());
+        for (Scaled call : calls)
+        {
+            assertFalse(call.size + " used primary engine",                 call.cascade);
+            assertSame(call.size + " scaled from decoded original",         calls.get(0).srcBuffer, call.srcBuffer);
+        }
+
+        assertEquals("stored sizes",                EnumSet.allOf(Sizes.class), metadataService.retrieve("example").getSizes());
+    }
+
+
+    @Test
+    public void testCascade() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+        List<Scaled> calls = configureRecording(resizer, true);
+
+        storeOriginal(metadataService, contentService, "example", createJpeg(1600, 1200));
+        assertTrue("processed",                                             resizer.backfill("example"));
+
+        // each step waits for the previous one, even when rendering in parallel
+        assertEquals("number of scaling calls",     3,                      calls.size());
+        assertEquals("first size",                  Sizes.W1024H768,        calls.get(0).size);
+        assertEquals("second size",                 Sizes.W640H480,         calls.get(1).size);
+        assertEquals("third size",                  Sizes.THUMB,            calls.get(2).size);
+
+        assertFalse("first size used primary engine",                       calls.get(0).cascade);
+        assertEquals("first size source width",     1600,                   calls.get(0).srcWidth);
+        assertEquals("first size source height",    1200,                   calls.get(0).srcHeight);
+
+        assertTrue("second size used cascade engine",                       calls.get(1).cascade);
+        assertSame("second size source",            calls.get(0).dstBuffer, calls.get(1).srcBuffer);
+        assertEquals("second size source width",    1024,                   calls.get(1).srcWidth);
+        assertEquals("second size source height",   768,                    calls.get(1).srcHeight);
+
+        // the thumbnail is cropped to a square from the center of the previous rendition
+        assertTrue("third size used cascade engine",                        calls.get(2).cascade);
+        assertSame("third size source",             calls.get(1).dstBuffer, calls.get(2).srcBuffer);
+        assertEquals("third size source width",     480,                    calls.get(2).srcWidth);
+        assertEquals("third size source height",    480,                    calls.get(2).srcHeight);
+
+        assertEquals("stored sizes",                EnumSet.allOf(Sizes.class), metadataService.retrieve("example").getSizes());
+    }
+
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception
+    {
+        byte[] jpeg = createJpeg(1600, 1200);
+        for (boolean cascade : new boolean[] { false, true })
+        {
+            Map<Sizes,byte[]> sequential = new EnumMap<>(Sizes.class);
+            Map<Sizes,byte[]> parallel = new EnumMap<>(Sizes.class);
+            for (int threads : new int[] { 1, 4 })
+            {
+                String message = (cascade ? "cascaded, " : "") + threads + " thread(s)";
+                InMemoryMetadataService metadataService = new InMemoryMetadataService();
+                InMemoryContentService contentService = new InMemoryContentService();
+                Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+                resizer.configureRenderThreads(threads);
+                List<Scaled> calls = configureRecording(resizer, cascade);
+
+                storeOriginal(metadataService, contentService, "example", jpeg);
+                assertTrue(message + ": processed",                         resizer.backfill("example"));
+                assertEquals(message + ": stored sizes",    EnumSet.allOf(Sizes.class), metadataService.retrieve("example").getSizes());
+
+                for (Scaled call : calls)
+                {
+                    assertEquals(message + ": " + call.size + " rendered on pool",
+                                 threads > 1, call.thread.equals("resizer-render"));
+                }
+
+                Map<Sizes,byte[]> renditions = (threads > 1) ? parallel : sequential;
+                for (Sizes size : Sizes.values())
+                {
+                    renditions.put(size, contentService.images.get("example/" + size.name()));
+                }
+            }
+
+            for (Sizes size : Sizes.values())
+            {
+                String message = (cascade ? "cascaded " : "") + size;
+                assertNotNull(message + ": rendered sequentially",          sequential.get(size));
+                assertArrayEquals(message + ": parallel matches sequential", sequential.get(size), parallel.get(size));
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestRenditionPlanner
+{
+    private RenditionPlanner planner = new RenditionPlanner();
+
+
+    @Test
+    public void testLargeOriginal() throws Exception
+    {
+        Map<Sizes,Sizes> aliases = planner.aliases(6000, 4000, EnumSet.of(Sizes.THUMB, Sizes.W640H480, Sizes.W1024H768));
+        assertEquals("no aliases", Collections.emptyMap(), aliases);
+    }
+
+
+    @Test
+    public void testSmallOriginal() throws Exception
+    {
+        Map<Sizes,Sizes> aliases = planner.aliases(800, 600, EnumSet.of(Sizes.THUMB, Sizes.W640H480, Sizes.W1024H768));
+        assertEquals("number of aliases",   1,              aliases.size());
+        assertEquals("1024 aliased",        Sizes.ORIGINAL, aliases.get(Sizes.W1024H768));
+    }
+
+
+    @Test
+    public void testTinyOriginal() throws Exception
+    {
+        Map<Sizes,Sizes> aliases = planner.aliases(180, 180, Arrays.asList(Sizes.values()));
+        assertEquals("number of aliases",   3,              aliases.size());
+        assertEquals("thumb aliased",       Sizes.ORIGINAL, aliases.get(Sizes.THUMB));
+        assertEquals("640 aliased",         Sizes.ORIGINAL, aliases.get(Sizes.W640H480));
+        assertEquals("1024 aliased",        Sizes.ORIGINAL, aliases.get(Sizes.W1024H768));
+    }
+
+
+    @Test
+    public void testPanorama() throws Exception
+    {
+        // every size is smaller than the original in at least one dimension
+        Map<Sizes,Sizes> aliases = planner.aliases(500, 4000, Arrays.asList(Sizes.values()));
+        assertEquals("no aliases", Collections.emptyMap(), aliases);
+    }
+
+
+    @Test
+    public void testCropWithoutScaling() throws Exception
+    {
+        // the thumbnail covers the entire original, without cropping or scaling
+        Map<Sizes,Sizes> aliases = planner.aliases(150, 100, EnumSet.of(Sizes.THUMB));
+        assertEquals("thumb aliased", Sizes.ORIGINAL, aliases.get(Sizes.THUMB));
+
+        // but here it has to be cropped, so isn't the same as the original
+        aliases = planner.aliases(150, 250, EnumSet.of(Sizes.THUMB));
+        assertEquals("thumb not aliased", Collections.emptyMap(), aliases);
+    }
+
+
+    @Test
+    public void testOnlyPendingSizes() throws Exception
+    {
+        Map<Sizes,Sizes> aliases = planner.aliases(100, 100, EnumSet.of(Sizes.THUMB));
+        assertEquals("only pending size aliased", Collections.singletonMap(Sizes.THUMB, Sizes.ORIGINAL), aliases);
+    }
+
+
+    @Test
+    public void testStoredSizes() throws Exception
+    {
+        // with the current sizes, only the original can have the same geometry as a
+        // rendition; this verifies that it's still preferred, and stored sizes don't
+        // otherwise affect the result
+        Map<Sizes,Sizes> aliases = planner.aliases(600, 400, EnumSet.of(Sizes.W640H480), EnumSet.of(Sizes.ORIGINAL, Sizes.THUMB));
+        assertEquals("aliased to original",         Collections.singletonMap(Sizes.W640H480, Sizes.ORIGINAL), aliases);
+
+        aliases = planner.aliases(6000, 4000, EnumSet.of(Sizes.W640H480), EnumSet.of(Sizes.ORIGINAL, Sizes.THUMB, Sizes.W1024H768));
+        assertEquals("no match among stored sizes", Collections.emptyMap(), aliases);
+    }
+}
@@ -0,0 +1,413 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestSqsHandler
+{
+    private final static String UPLOAD_BUCKET = "test-uploads";
+
+//----------------------------------------------------------------------------
+//  In-memory stand-ins for the queue and the Lambda context (see also
+//  InMemoryMetadataService and InMemoryContentService)
+//----------------------------------------------------------------------------
+
+    /**
+     *  Mimics the parts of SQS used by a Lambda event source mapping: received
+     *  messages stay in the queue until they're deleted, and the mapping deletes
+     *  all messages in a batch except those reported as failures.
+     */
+    private static class InMemoryQueue
+    {
+        private Map<String,String> messages = new LinkedHashMap<>();
+
+        public String send(String body)
+        {
+            String messageId = UUID.randomUUID().toString();
+            messages.put(messageId, body);
+            return messageId;
+        }
+
+        public SQSEvent receive()
+        {
+            List<SQSMessage> records = new ArrayList<>();
+            for (Map.Entry<String,String> entry : messages.entrySet())
+            {
+                SQSMessage message = new SQSMessage();
+                message.setMessageId(entry.getKey());
+                message.setBody(entry.getValue());
+                records.add(message);
+            }
+
+            SQSEvent event = new SQSEvent();
+            event.setRecords(records);
+            return event;
+        }
+
+        public void complete(SQSEvent event, SqsBatchResponse response)
+        {
+            Set<String> failed = response.getBatchItemFailures().stream()
+                                 .map(SqsBatchResponse.BatchItemFailure::getItemIdentifier)
+                                 .collect(Collectors.toSet());
+            for (SQSMessage message : event.getRecords())
+            {
+                if (! failed.contains(message.getMessageId()))
+                {
+                    messages.remove(message.getMessageId());
+                }
+            }
+        }
+
+        public Set<String> messageIds()
+        {
+            return messages.keySet();
+        }
+    }
+
+
+    private static Context lambdaContext()
+    {
+        return (Context)Proxy.newProxyInstance(
+                    TestSqsHandler.class.getClassLoader(),
+                    new Class<?>[] { Context.class },
+                    (proxy, method, args) -> method.getName().equals("getAwsRequestId") ? "test-request"
+                                           : method.getName().equals("getRemainingTimeInMillis") ? Integer.valueOf(30000)
+                                           : null);
+    }
+
+    /**
+     *  Tracks the number of concurrent retrievals, which happen once per key at the
+     *  start of processing, and holds each until released.
+     */
+    private static class BlockingMetadataService
+    extends InMemoryMetadataService
+    {
+        public Map<String,AtomicInteger> retrieves = new ConcurrentHashMap<>();
+        public AtomicInteger inFlight = new AtomicInteger();
+        public AtomicInteger maxInFlight = new AtomicInteger();
+        public CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public PhotoMetadata retrieve(String photoId)
+        {
+            retrieves.computeIfAbsent(photoId, k -> new AtomicInteger()).incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try
+            {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                inFlight.decrementAndGet();
+            }
+            return super.retrieve(photoId);
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static byte[] createJpeg(int width, int height)
+    throws Exception
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.YELLOW);
+        g.fillOval(width / 4, height / 4, width / 2, height / 2);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", out);
+        return out.toByteArray();
+    }
+
+
+    private static String notification(String bucket, String... keys)
+    {
+        StringBuilder sb = new StringBuilder("{\"Records\":[");
+        for (int ii = 0 ; ii < keys.length ; ii++)
+        {
+            if (ii > 0) sb.append(",");
+            sb.append("{\"eventSource\":\"aws:s3\",\"eventName\":\"ObjectCreated:Put\",")
+              .append("\"s3\":{\"bucket\":{\"name\":\"").append(bucket).append("\"},")
+              .append("\"object\":{\"key\":\"").append(keys[ii]).append("\"}}}");
+        }
+        return sb.append("]}").toString();
+    }
+
+
+    private static PhotoMetadata metadata(String photoId)
+    {
+        return new PhotoMetadata(photoId, "test", photoId + ".jpg", "image/jpeg", "", Long.valueOf(System.currentTimeMillis()), Collections.emptyList());
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testPartialBatchFailure() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        InMemoryQueue queue = new InMemoryQueue();
+
+        byte[] jpeg = createJpeg(1600, 1200);
+        for (String photoId : Arrays.asList("good1", "good2", "missing"))
+        {
+            metadataService.store(metadata(photoId));
+        }
+        contentService.uploads.put("good1", jpeg);
+        contentService.uploads.put("good2", jpeg);
+
+        queue.send(notification(UPLOAD_BUCKET, "good1"));
+        queue.send(notification(UPLOAD_BUCKET, "good2", "good1"));
+        String failedId = queue.send(notification(UPLOAD_BUCKET, "missing"));
+        queue.send(notification("some-other-bucket", "good2"));
+        queue.send("{\"Service\":\"Amazon S3\",\"Event\":\"s3:TestEvent\"}");
+        queue.send("this isn't JSON");
+
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+        SQSEvent event = queue.receive();
+        SqsBatchResponse response = resizer.sqsHandler(event, lambdaContext());
+        queue.complete(event, response);
+
+        List<String> failures = response.getBatchItemFailures().stream()
+                                .map(SqsBatchResponse.BatchItemFailure::getItemIdentifier)
+                                .collect(Collectors.toList());
+        assertEquals("reported failures",       Arrays.asList(failedId),            failures);
+        assertEquals("remaining in queue",      Collections.singleton(failedId),    queue.messageIds());
+
+        for (String photoId : Arrays.asList("good1", "good2"))
+        {
+            PhotoMetadata metadata = metadataService.retrieve(photoId);
+            assertEquals(photoId + " sizes",    EnumSet.allOf(Sizes.class),         metadata.getSizes());
+            assertNotNull(photoId + " thumbnail stored",                            contentService.images.get(photoId + "/" + metadata.getStoredSize(Sizes.THUMB).name()));
+            assertArrayEquals(photoId + " original stored", jpeg,                   contentService.images.get(photoId + "/" + Sizes.ORIGINAL.name()));
+        }
+
+        // uploads are ingested rather than moved, and deleted asynchronously
+        assertEquals("uploads moved",           0,                                  contentService.moves.get());
+        for (int ii = 0 ; (ii < 50) && contentService.uploads.containsKey("good2") ; ii++)
+        {
+            Thread.sleep(20);
+        }
+        assertFalse("upload deleted",                                               contentService.uploads.containsKey("good1") || contentService.uploads.containsKey("good2"));
+
+        assertEquals("missing photo sizes",     Collections.emptySet(),             metadataService.retrieve("missing").getSizes());
+
+        // a redelivered message succeeds once the problem has been fixed
+
+        contentService.uploads.put("missing", jpeg);
+        event = queue.receive();
+        response = resizer.sqsHandler(event, lambdaContext());
+        queue.complete(event, response);
+
+        assertEquals("failures on redelivery",  0,                                  response.getBatchItemFailures().size());
+        assertEquals("remaining after redelivery", Collections.emptySet(),          queue.messageIds());
+        assertEquals("redelivered photo sizes", EnumSet.allOf(Sizes.class),         metadataService.retrieve("missing").getSizes());
+    }
+
+
+    @Test
+    public void testConcurrencyLimit() throws Exception
+    {
+        BlockingMetadataService metadataService = new BlockingMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        InMemoryQueue queue = new InMemoryQueue();
+
+        // photos without metadata are simply logged, so each key is retrieved once
+        List<String> photoIds = new ArrayList<>();
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            photoIds.add("photo-" + ii);
+            queue.send(notification(UPLOAD_BUCKET, "photo-" + ii, "photo-" + ((ii + 1) % 10)));
+        }
+
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+        SQSEvent event = queue.receive();
+        CompletableFuture<SqsBatchResponse> future = CompletableFuture.supplyAsync(() -> resizer.sqsHandler(event, lambdaContext()));
+
+        // the default limit is 4 records at a time
+        for (int ii = 0 ; (ii < 250) && (metadataService.inFlight.get() < 4) ; ii++)
+        {
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+        assertEquals("in-flight before release",        4,      metadataService.inFlight.get());
+        assertFalse("handler waiting",                          future.isDone());
+
+        metadataService.release.countDown();
+        SqsBatchResponse response = future.get(5, TimeUnit.SECONDS);
+
+        assertEquals("failures",                        0,      response.getBatchItemFailures().size());
+        assertEquals("maximum in-flight",               4,      metadataService.maxInFlight.get());
+        assertEquals("keys processed",                  new HashSet<>(photoIds), metadataService.retrieves.keySet());
+        for (String photoId : photoIds)
+        {
+            assertEquals(photoId + " retrieved once",   1,      metadataService.retrieves.get(photoId).get());
+        }
+    }
+
+
+    @Test
+    public void testEmptyUpload() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        InMemoryQueue queue = new InMemoryQueue();
+
+        metadataService.store(metadata("empty"));
+        contentService.uploads.put("empty", new byte[0]);
+        queue.send(notification(UPLOAD_BUCKET, "empty"));
+
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+        SQSEvent event = queue.receive();
+        SqsBatchResponse response = resizer.sqsHandler(event, lambdaContext());
+
+        // an empty upload can't succeed on retry, so it's rejected rather than failed
+        assertEquals("failures",                0,                                  response.getBatchItemFailures().size());
+        assertNotNull("rejected",                                                   metadataService.retrieve("empty").getRejected());
+    }
+
+
+    @Test
+    public void testDuplicateContent() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        InMemoryQueue queue = new InMemoryQueue();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        byte[] jpeg = createJpeg(1600, 1200);
+        metadataService.store(metadata("first"));
+        metadataService.store(metadata("second"));
+        contentService.uploads.put("first", jpeg);
+        contentService.uploads.put("second", jpeg);
+
+        // the photos are processed in separate batches, so that the first is complete
+        // (and indexed) before the second is processed
+
+        queue.send(notification(UPLOAD_BUCKET, "first"));
+        SQSEvent event = queue.receive();
+        queue.complete(event, resizer.sqsHandler(event, lambdaContext()));
+        assertEquals("content index after first photo",  Collections.singleton("first"),   new HashSet<>(metadataService.contentIndex.values()));
+
+        int storedObjects = contentService.images.size();
+
+        queue.send(notification(UPLOAD_BUCKET, "second"));
+        event = queue.receive();
+        SqsBatchResponse response = resizer.sqsHandler(event, lambdaContext());
+        queue.complete(event, response);
+        assertEquals("failures",                        0,                                  response.getBatchItemFailures().size());
+
+        PhotoMetadata first = metadataService.retrieve("first");
+        PhotoMetadata second = metadataService.retrieve("second");
+        assertEquals("first photo content ID",          "first",                            first.getContentId());
+        assertEquals("second photo content ID",         "first",                            second.getContentId());
+        assertEquals("second photo sizes",              first.getSizes(),                   second.getSizes());
+        assertEquals("second photo aliases",            first.getAliases(),                 second.getAliases());
+        assertEquals("no objects stored for duplicate", storedObjects,                      contentService.images.size());
+        assertEquals("content index unchanged",         1,                                  metadataService.contentIndex.size());
+
+        for (int ii = 0 ; (ii < 50) && contentService.uploads.containsKey("second") ; ii++)
+        {
+            Thread.sleep(20);
+        }
+        assertFalse("duplicate upload deleted",                                             contentService.uploads.containsKey("second"));
+    }
+
+
+    @Test
+    public void testProcessingLease() throws Exception
+    {
+        InMemoryMetadataService metadataService = new InMemoryMetadataService();
+        InMemoryContentService contentService = new InMemoryContentService();
+        InMemoryQueue queue = new InMemoryQueue();
+        Resizer resizer = new Resizer(UPLOAD_BUCKET, metadataService, contentService);
+
+        byte[] jpeg = createJpeg(1600, 1200);
+        PhotoMetadata metadata = metadata("leased");
+        metadata.setLease("another-invocation", Long.valueOf(System.currentTimeMillis() + 60000));
+        metadataService.store(metadata);
+        contentService.uploads.put("leased", jpeg);
+
+        // an active lease held by someone else means that we skip the photo, without failing
+
+        queue.send(notification(UPLOAD_BUCKET, "leased"));
+        SQSEvent event = queue.receive();
+        SqsBatchResponse response = resizer.sqsHandler(event, lambdaContext());
+        queue.complete(event, response);
+
+        assertEquals("failures while leased",           0,                              response.getBatchItemFailures().size());
+        assertEquals("sizes while leased",              Collections.emptySet(),         metadataService.retrieve("leased").getSizes());
+        assertEquals("lease owner unchanged",           "another-invocation",           metadataService.retrieve("leased").getLeaseOwner());
+        assertEquals("nothing stored while leased",     0,                              contentService.images.size());
+
+        // once the lease expires, we can take over
+
+        metadata.setLease("another-invocation", Long.valueOf(System.currentTimeMillis() - 1));
+        metadataService.store(metadata);
+
+        queue.send(notification(UPLOAD_BUCKET, "leased"));
+        event = queue.receive();
+        response = resizer.sqsHandler(event, lambdaContext());
+        queue.complete(event, response);
+
+        PhotoMetadata processed = metadataService.retrieve("leased");
+        assertEquals("failures after expiration",       0,                              response.getBatchItemFailures().size());
+        assertEquals("sizes after expiration",          EnumSet.allOf(Sizes.class),     processed.getSizes());
+        assertNull("lease released",                                                    processed.getLeaseOwner());
+
+        // and a repeated notification has nothing to do
+
+        int storedObjects = contentService.images.size();
+        queue.send(notification(UPLOAD_BUCKET, "leased"));
+        event = queue.receive();
+        response = resizer.sqsHandler(event, lambdaContext());
+        queue.complete(event, response);
+
+        assertEquals("failures for repeat",             0,                              response.getBatchItemFailures().size());
+        assertEquals("nothing stored for repeat",       storedObjects,                  contentService.images.size());
+    }
+}
@@ -0,0 +1,262 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import net.sf.kdgcommons.io.IOUtil;
+
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+import com.kdgregory.example.javalambda.shared.services.ContentService;
+
+import com.kdgregory.example.javalambda.resizer.pool.ByteChunkPool;
+import com.kdgregory.example.javalambda.resizer.pool.ChunkedOutputStream;
+
+
+public class TestUploadStage
+{
+    /**
+     *  Records uploaded content; uploads wait on a latch before completing, and may
+     *  be configured to fail. Tracks the number of uploads in progress, and releases
+     *  a permit on <code>started</code> as each begins.
+     */
+    private static class MockContentService
+    implements ContentService
+    {
+        public Map<Sizes,byte[]> stored = new ConcurrentHashMap<>();
+        public CountDownLatch release = new CountDownLatch(0);
+        public boolean fail;
+        public Set<String> deleted = ConcurrentHashMap.newKeySet();
+        public Semaphore started = new Semaphore(0);
+        public AtomicInteger inFlight = new AtomicInteger();
+        public AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public void store(String photoId, String mimeType, Sizes size, byte[] content)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void store(String photoId, String mimeType, Sizes size, InputStream content, long length)
+        {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            started.release();
+            try
+            {
+                release.await();
+                if (fail)
+                    throw new IOException("simulated failure");
+
+                byte[] buf = new byte[(int)length];
+                IOUtil.readFully(content, buf);
+                stored.put(size, buf);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+            catch (InterruptedException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+            finally
+            {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public byte[] retrieve(String photoId, Sizes size)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InputStream openStream(String photoId, Sizes size)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] retrieveRange(String photoId, Sizes size, long offset, int length)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String createUploadURL(String filename)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void moveUploadToImageBucket(String photoId)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InputStream openUploadStream(String photoId)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] retrieveUploadRange(String photoId, long offset, int length)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteUpload(String photoId)
+        {
+            deleted.add(photoId);
+        }
+
+        @Override
+        public void connect()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    private static ChunkedOutputStream content(ByteChunkPool pool, int length)
+    throws IOException
+    {
+        ChunkedOutputStream out = new ChunkedOutputStream(pool);
+        out.write(new byte[length], 0, length);
+        return out;
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testAsyncUpload() throws Exception
+    {
+        MockContentService contentService = new MockContentService();
+        contentService.release = new CountDownLatch(1);
+        ByteChunkPool pool = new ByteChunkPool(1024, 10);
+        StageTimings timings = new StageTimings();
+
+        UploadStage stage = new UploadStage(contentService, 1);
+        assertTrue("stage is async", stage.isAsync());
+
+        // one thread means two uploads may be outstanding, but only one is in progress
+        CompletableFuture<Void> f1 = stage.submit("test", "image/jpeg", Sizes.W1024H768, content(pool, 3000), timings);
+        CompletableFuture<Void> f2 = stage.submit("test", "image/jpeg", Sizes.W640H480, content(pool, 2000), timings);
+        assertTrue("first upload started",              contentService.started.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals("uploads in progress",     1,      contentService.inFlight.get());
+        assertFalse("first upload still running",       f1.isDone());
+        assertFalse("second upload still queued",       f2.isDone());
+
+        // a third submit must wait for capacity
+        AtomicReference<CompletableFuture<Void>> f3 = new AtomicReference<>();
+        Thread submitter = new Thread(() -> {
+            try
+            {
+                f3.set(stage.submit("test", "image/jpeg", Sizes.THUMB, content(pool, 1000), timings));
+            }
+            catch (Exception ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        });
+        submitter.start();
+        for (int ii = 0 ; (ii < 250) && (submitter.getState() != Thread.State.WAITING) ; ii++)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals("third submit blocked",    Thread.State.WAITING,   submitter.getState());
+        assertNull("third submit not accepted",                         f3.get());
+
+        // the first upload and third submit are known to be waiting, so both of their
+        // recorded times must be at least this long
+        Thread.sleep(20);
+
+        contentService.release.countDown();
+        submitter.join(5000);
+        assertNotNull("third submit accepted",                          f3.get());
+        f3.get().get(5, TimeUnit.SECONDS);
+        f1.get(5, TimeUnit.SECONDS);
+        f2.get(5, TimeUnit.SECONDS);
+
+        assertEquals("maximum uploads in progress", 1,  contentService.maxInFlight.get());
+        assertTrue("remaining uploads started",         contentService.started.tryAcquire(2, 5, TimeUnit.SECONDS));
+        assertEquals("first upload",        3000,       contentService.stored.get(Sizes.W1024H768).length);
+        assertEquals("second upload",       2000,       contentService.stored.get(Sizes.W640H480).length);
+        assertEquals("third upload",        1000,       contentService.stored.get(Sizes.THUMB).length);
+        assertEquals("chunks returned",     6,          pool.getAvailableChunks());
+        assertTrue("upload time recorded",              timings.getMillis(StageTimings.Stage.UPLOAD) >= 20);
+        assertTrue("queue time recorded",               timings.getMillis(StageTimings.Stage.QUEUE) >= 20);
+    }
+
+
+    @Test
+    public void testSynchronousUpload() throws Exception
+    {
+        MockContentService contentService = new MockContentService();
+        ByteChunkPool pool = new ByteChunkPool(1024, 10);
+
+        UploadStage stage = new UploadStage(contentService, 0);
+        assertFalse("stage is synchronous", stage.isAsync());
+
+        CompletableFuture<Void> future = stage.submit("test", "image/jpeg", Sizes.THUMB, content(pool, 1500), new StageTimings());
+        assertTrue("completed on return",           future.isDone());
+        assertEquals("uploaded",            1500,   contentService.stored.get(Sizes.THUMB).length);
+        assertEquals("chunks returned",     2,      pool.getAvailableChunks());
+    }
+
+
+    @Test
+    public void testFailedUpload() throws Exception
+    {
+        MockContentService contentService = new MockContentService();
+        contentService.fail = true;
+        ByteChunkPool pool = new ByteChunkPool(1024, 10);
+
+        UploadStage stage = new UploadStage(contentService, 2);
+        CompletableFuture<Void> future = stage.submit("test", "image/jpeg", Sizes.THUMB, content(pool, 1500), new StageTimings());
+        try
+        {
+            future.join();
+            fail("upload should have failed");
+        }
+        catch (CompletionException ex)
+        {
+            assertTrue("cause is IOException",      ex.getCause() instanceof UncheckedIOException);
+        }
+
+        assertNull("nothing stored",                        contentService.stored.get(Sizes.THUMB));
+        assertEquals("chunks returned",     2,              pool.getAvailableChunks());
+    }
+
+
+    @Test
+    public void testDeleteUpload() throws Exception
+    {
+        MockContentService contentService = new MockContentService();
+        UploadStage stage = new UploadStage(contentService, 2);
+
+        stage.deleteUpload("test").get(5, TimeUnit.SECONDS);
+        assertEquals("deleted", Collections.singleton("test"), contentService.deleted);
+    }
+}
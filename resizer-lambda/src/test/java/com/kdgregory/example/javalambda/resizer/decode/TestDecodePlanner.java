@@ -0,0 +1,81 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestDecodePlanner
+{
+    private static List<RenditionGeometry> geometries(int srcWidth, int srcHeight, Sizes... sizes)
+    {
+        List<RenditionGeometry> result = new ArrayList<>();
+        for (Sizes size : sizes)
+        {
+            result.add(RenditionGeometry.compute(srcWidth, srcHeight, size));
+        }
+        return result;
+    }
+
+
+    @Test
+    public void testSubsampling() throws Exception
+    {
+        DecodePlanner planner = new DecodePlanner(2);
+
+        assertEquals("thumbnail only",              11, planner.subsampling(geometries(6000, 4000, Sizes.THUMB)));
+        assertEquals("thumbnail and 640",            4, planner.subsampling(geometries(6000, 4000, Sizes.THUMB, Sizes.W640H480)));
+        assertEquals("all rendered sizes",           2, planner.subsampling(geometries(6000, 4000, Sizes.THUMB, Sizes.W640H480, Sizes.W1024H768)));
+        assertEquals("small original",               1, planner.subsampling(geometries(1500, 1000, Sizes.W1024H768)));
+        assertEquals("original only",                1, planner.subsampling(geometries(6000, 4000, Sizes.ORIGINAL)));
+        assertEquals("no sizes",                     1, planner.subsampling(Collections.emptyList()));
+        assertEquals("limited by height",            3, planner.subsampling(geometries(1000, 3000, Sizes.W640H480)));
+
+        assertEquals("no oversampling",             22, new DecodePlanner(1).subsampling(geometries(6000, 4000, Sizes.THUMB)));
+    }
+
+
+    @Test
+    public void testRegion() throws Exception
+    {
+        DecodePlanner planner = new DecodePlanner(2);
+
+        assertEquals("thumbnail only",      new Rectangle(1000, 0, 4000, 4000), planner.region(geometries(6000, 4000, Sizes.THUMB)));
+        assertEquals("thumbnail and 640",   new Rectangle(0, 0, 6000, 4000),    planner.region(geometries(6000, 4000, Sizes.THUMB, Sizes.W640H480)));
+        assertNull("no sizes",                                                  planner.region(Collections.emptyList()));
+    }
+
+
+    @Test
+    public void testSubsampledRead() throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(800, 600, BufferedImage.TYPE_3BYTE_BGR), "jpeg", bos);
+
+        try (ImageSource source = new ImageSource(bos.toByteArray()))
+        {
+            assertEquals("format",          "JPEG", source.getFormatName().toUpperCase());
+            assertEquals("header width",    800,    source.getWidth());
+            assertEquals("header height",   600,    source.getHeight());
+
+            BufferedImage img = source.read(4);
+            assertEquals("decoded width",   200,    img.getWidth());
+            assertEquals("decoded height",  150,    img.getHeight());
+
+            BufferedImage cropped = source.read(new Rectangle(100, 0, 600, 600), 2, null);
+            assertEquals("cropped width",   300,    cropped.getWidth());
+            assertEquals("cropped height",  300,    cropped.getHeight());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestExifThumbnail
+{
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static byte[] createJpeg(int width, int height, Color color)
+    throws Exception
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpeg", bos);
+        return bos.toByteArray();
+    }
+
+
+    /**
+     *  Constructs a minimal EXIF segment (with an empty IFD0) holding the passed
+     *  thumbnail, and inserts it after the JFIF segment of the passed image.
+     */
+    private static byte[] insertExifThumbnail(byte[] jpeg, byte[] thumbnail, ByteOrder byteOrder)
+    {
+        int tiffSize = 8 + 6 + 30 + thumbnail.length;
+        ByteBuffer tiff = ByteBuffer.allocate(tiffSize).order(byteOrder);
+        tiff.put((byte)((byteOrder == ByteOrder.LITTLE_ENDIAN) ? 'I' : 'M'));
+        tiff.put((byte)((byteOrder == ByteOrder.LITTLE_ENDIAN) ? 'I' : 'M'));
+        tiff.putShort((short)42);
+        tiff.putInt(8);                     // IFD0 offset
+        tiff.putShort((short)0);            // IFD0: no entries
+        tiff.putInt(14);                    // IFD1 offset
+        tiff.putShort((short)2);            // IFD1: two entries
+        tiff.putShort((short)0x0201).putShort((short)4).putInt(1).putInt(44);
+        tiff.putShort((short)0x0202).putShort((short)4).putInt(1).putInt(thumbnail.length);
+        tiff.putInt(0);                     // no more IFDs
+        tiff.put(thumbnail);
+
+        int app1Length = 2 + 6 + tiffSize;
+        ByteBuffer app1 = ByteBuffer.allocate(2 + app1Length);
+        app1.put((byte)0xFF).put((byte)0xE1).putShort((short)app1Length);
+        app1.put(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+        app1.put(tiff.array());
+
+        // SOI is followed by the JFIF APP0 segment; we insert after that
+        int insertAt = 4 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+
+        ByteBuffer result = ByteBuffer.allocate(jpeg.length + app1.capacity());
+        result.put(jpeg, 0, insertAt);
+        result.put(app1.array());
+        result.put(jpeg, insertAt, jpeg.length - insertAt);
+        return result.array();
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testExtract() throws Exception
+    {
+        byte[] thumbnail = createJpeg(200, 150, Color.RED);
+
+        for (ByteOrder byteOrder : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN })
+        {
+            byte[] content = insertExifThumbnail(createJpeg(800, 600, Color.BLUE), thumbnail, byteOrder);
+            byte[] extracted = ExifThumbnail.extract(new MemoryCacheImageInputStream(new ByteArrayInputStream(content)));
+            assertArrayEquals("extracted thumbnail, " + byteOrder, thumbnail, extracted);
+        }
+    }
+
+
+    @Test
+    public void testExtractWithoutExif() throws Exception
+    {
+        byte[] content = createJpeg(800, 600, Color.BLUE);
+        assertNull("no EXIF", ExifThumbnail.extract(new MemoryCacheImageInputStream(new ByteArrayInputStream(content))));
+
+        byte[] notJpeg = "this is not an image".getBytes("UTF-8");
+        assertNull("not a JPEG", ExifThumbnail.extract(new MemoryCacheImageInputStream(new ByteArrayInputStream(notJpeg))));
+    }
+
+
+    @Test
+    public void testImageSourceUsesThumbnail() throws Exception
+    {
+        byte[] content = insertExifThumbnail(createJpeg(800, 600, Color.BLUE), createJpeg(200, 150, Color.RED), ByteOrder.BIG_ENDIAN);
+
+        try (ImageSource source = new ImageSource(content))
+        {
+            BufferedImage thumbnail = source.readThumbnail(180);
+            assertNotNull("found thumbnail", thumbnail);
+            assertEquals("thumbnail width",     200,    thumbnail.getWidth());
+            assertEquals("thumbnail height",    150,    thumbnail.getHeight());
+
+            assertNull("thumbnail too small",   source.readThumbnail(250));
+
+            // verify that we haven't disturbed the reader
+            BufferedImage img = source.read(1);
+            assertEquals("image width",         800,    img.getWidth());
+            assertEquals("image height",        600,    img.getHeight());
+        }
+    }
+
+
+    @Test
+    public void testImageSourceIgnoresLetterboxedThumbnail() throws Exception
+    {
+        byte[] content = insertExifThumbnail(createJpeg(900, 600, Color.BLUE), createJpeg(200, 150, Color.RED), ByteOrder.BIG_ENDIAN);
+
+        try (ImageSource source = new ImageSource(content))
+        {
+            assertNull("thumbnail with different aspect ratio", source.readThumbnail(180));
+        }
+    }
+}
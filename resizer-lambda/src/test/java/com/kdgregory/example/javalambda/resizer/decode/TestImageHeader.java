@@ -0,0 +1,106 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestImageHeader
+{
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static byte[] createImage(String format, int width, int height)
+    throws Exception
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(img, format, bos);
+        return bos.toByteArray();
+    }
+
+
+    /**
+     *  Inserts an APP1 segment of the given size after the SOI marker, to simulate
+     *  an EXIF segment.
+     */
+    private static byte[] insertSegment(byte[] jpeg, int size)
+    {
+        byte[] result = new byte[jpeg.length + size + 4];
+        result[0] = (byte)0xFF;
+        result[1] = (byte)0xD8;
+        result[2] = (byte)0xFF;
+        result[3] = (byte)0xE1;
+        result[4] = (byte)((size + 2) >> 8);
+        result[5] = (byte)((size + 2) & 0xFF);
+        System.arraycopy(jpeg, 2, result, size + 6, jpeg.length - 2);
+        return result;
+    }
+
+
+    private static void assertHeader(String message, String format, int width, int height, ImageHeader header)
+    {
+        assertNotNull(message + ": parsed", header);
+        assertEquals(message + ": format", format, header.getFormat());
+        assertEquals(message + ": width",  width,  header.getWidth());
+        assertEquals(message + ": height", height, header.getHeight());
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testFormats() throws Exception
+    {
+        assertHeader("JPEG", ImageHeader.JPEG, 640, 480, ImageHeader.parse(createImage("jpeg", 640, 480)));
+        assertHeader("PNG",  ImageHeader.PNG,  320, 200, ImageHeader.parse(createImage("png", 320, 200)));
+        assertHeader("GIF",  ImageHeader.GIF,  100, 50,  ImageHeader.parse(createImage("gif", 100, 50)));
+        assertHeader("BMP",  ImageHeader.BMP,  30,  20,  ImageHeader.parse(createImage("bmp", 30, 20)));
+    }
+
+
+    @Test
+    public void testJpegWithLargeSegment() throws Exception
+    {
+        byte[] jpeg = insertSegment(createImage("jpeg", 1200, 800), 20000);
+
+        assertHeader("full content", ImageHeader.JPEG, 1200, 800, ImageHeader.parse(jpeg));
+        assertHeader("just enough",  ImageHeader.JPEG, 1200, 800, ImageHeader.parse(Arrays.copyOf(jpeg, 21000)));
+
+        try
+        {
+            ImageHeader.parse(Arrays.copyOf(jpeg, 16384));
+            fail("parsed truncated header");
+        }
+        catch (EOFException ex)
+        {
+            // success
+        }
+    }
+
+
+    @Test
+    public void testNotAnImage() throws Exception
+    {
+        assertNull("text", ImageHeader.parse("this is not an image, just some text".getBytes()));
+
+        try
+        {
+            ImageHeader.parse("GIF".getBytes());
+            fail("parsed short content");
+        }
+        catch (EOFException ex)
+        {
+            // success
+        }
+    }
+}
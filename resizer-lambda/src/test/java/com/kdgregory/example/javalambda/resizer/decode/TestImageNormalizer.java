@@ -0,0 +1,149 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+public class TestImageNormalizer
+{
+    private ImageNormalizer normalizer = new ImageNormalizer(new RasterPool(0));
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    /**
+     *  Writes a raster as a JPEG; the JDK's writer treats a four-band raster as
+     *  CMYK, and doesn't add an Adobe segment (so values are not inverted).
+     */
+    private static byte[] createCmykJpeg(Raster raster)
+    throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bos))
+        {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(raster, null, null), null);
+        }
+        finally
+        {
+            writer.dispose();
+        }
+        return bos.toByteArray();
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testStandardTypesUnchanged() throws Exception
+    {
+        BufferedImage rgb = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        BufferedImage gray = new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_GRAY);
+
+        assertSame("INT_RGB",   rgb,  normalizer.normalize(rgb));
+        assertSame("BYTE_GRAY", gray, normalizer.normalize(gray));
+
+        BufferedImage sub = rgb.getSubimage(2, 2, 5, 5);
+        BufferedImage converted = normalizer.normalize(sub);
+        assertNotSame("subimage converted", sub, converted);
+        assertTrue("converted image is normalized", ImageNormalizer.isNormalized(converted));
+    }
+
+
+    @Test
+    public void testAlpha() throws Exception
+    {
+        BufferedImage img = new BufferedImage(10, 10, BufferedImage.TYPE_4BYTE_ABGR);
+        img.setRGB(3, 4, 0x80123456);
+
+        BufferedImage converted = normalizer.normalize(img);
+        assertEquals("type",  BufferedImage.TYPE_INT_ARGB, converted.getType());
+        assertEquals("pixel", 0x80123456, converted.getRGB(3, 4));
+        assertEquals("transparent pixel", 0, converted.getRGB(0, 0) >>> 24);
+    }
+
+
+    @Test
+    public void testSixteenBitGray() throws Exception
+    {
+        BufferedImage img = new BufferedImage(10, 10, BufferedImage.TYPE_USHORT_GRAY);
+        img.getRaster().setSample(1, 1, 0, 65535);
+        img.getRaster().setSample(2, 2, 0, 32896);
+
+        BufferedImage converted = normalizer.normalize(img);
+        assertEquals("type",       BufferedImage.TYPE_BYTE_GRAY, converted.getType());
+        assertEquals("black",      0,   converted.getRaster().getSample(0, 0, 0));
+        assertEquals("white",      255, converted.getRaster().getSample(1, 1, 0));
+        assertEquals("mid-gray",   128, converted.getRaster().getSample(2, 2, 0));
+    }
+
+
+    @Test
+    public void testIndexed() throws Exception
+    {
+        BufferedImage img = new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_BINARY);
+        img.setRGB(5, 5, 0xFFFFFFFF);
+
+        BufferedImage converted = normalizer.normalize(img);
+        assertEquals("type",  BufferedImage.TYPE_INT_RGB, converted.getType());
+        assertEquals("white", 0xFFFFFF, converted.getRGB(5, 5) & 0xFFFFFF);
+        assertEquals("black", 0,        converted.getRGB(0, 0) & 0xFFFFFF);
+    }
+
+
+    @Test
+    public void testCmykConversion() throws Exception
+    {
+        WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 3, 1, 4, null);
+        raster.setPixel(0, 0, new int[] { 255, 0, 0, 0 });      // cyan
+        raster.setPixel(1, 0, new int[] { 0, 0, 0, 255 });      // black
+        raster.setPixel(2, 0, new int[] { 0, 0, 0, 0 });        // white
+
+        BufferedImage plain = CmykConverter.toRgb(raster, false, false, new BufferedImage(3, 1, BufferedImage.TYPE_INT_RGB));
+        assertEquals("cyan",  0x00FFFF, plain.getRGB(0, 0) & 0xFFFFFF);
+        assertEquals("black", 0x000000, plain.getRGB(1, 0) & 0xFFFFFF);
+        assertEquals("white", 0xFFFFFF, plain.getRGB(2, 0) & 0xFFFFFF);
+
+        // Adobe stores inverted values, so the same samples produce the opposite colors
+        BufferedImage adobe = CmykConverter.toRgb(raster, true, false, new BufferedImage(3, 1, BufferedImage.TYPE_INT_RGB));
+        assertEquals("inverted cyan",  0x000000, adobe.getRGB(0, 0) & 0xFFFFFF);
+        assertEquals("inverted white", 0x000000, adobe.getRGB(2, 0) & 0xFFFFFF);
+    }
+
+
+    @Test
+    public void testReadCmykJpeg() throws Exception
+    {
+        // a new raster is all zeros: no ink, so white
+        WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 32, 32, 4, null);
+
+        try (ImageSource source = new ImageSource(createCmykJpeg(raster)))
+        {
+            BufferedImage img = source.read(2, new RasterPool(0));
+            assertEquals("type",   BufferedImage.TYPE_INT_RGB, img.getType());
+            assertEquals("width",  16, img.getWidth());
+            assertEquals("height", 16, img.getHeight());
+
+            int rgb = img.getRGB(8, 8);
+            assertTrue("pixel is white: " + Integer.toHexString(rgb),
+                       ((rgb >> 16) & 0xFF) > 240 && ((rgb >> 8) & 0xFF) > 240 && (rgb & 0xFF) > 240);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.decode;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+
+
+public class TestRenditionGeometry
+{
+    private static void assertGeometry(String message, RenditionGeometry geometry, Rectangle region, int width, int height)
+    {
+        assertEquals(message + ": region",  region, geometry.getRegion());
+        assertEquals(message + ": width",   width,  geometry.getWidth());
+        assertEquals(message + ": height",  height, geometry.getHeight());
+    }
+
+
+    @Test
+    public void testFit() throws Exception
+    {
+        assertGeometry("landscape",
+                       RenditionGeometry.compute(6000, 4000, Sizes.W1024H768),
+                       new Rectangle(0, 0, 6000, 4000), 1024, 683);
+        assertGeometry("portrait",
+                       RenditionGeometry.compute(4000, 6000, Sizes.W1024H768),
+                       new Rectangle(0, 0, 4000, 6000), 512, 768);
+        assertGeometry("smaller than box",
+                       RenditionGeometry.compute(800, 600, Sizes.W1024H768),
+                       new Rectangle(0, 0, 800, 600), 800, 600);
+
+        assertTrue("smaller than box is identity", RenditionGeometry.compute(800, 600, Sizes.W1024H768).isIdentity(800, 600));
+    }
+
+
+    @Test
+    public void testCover() throws Exception
+    {
+        assertGeometry("landscape",
+                       RenditionGeometry.compute(6000, 4000, Sizes.THUMB),
+                       new Rectangle(1000, 0, 4000, 4000), 180, 180);
+        assertGeometry("panorama",
+                       RenditionGeometry.compute(500, 4000, Sizes.THUMB),
+                       new Rectangle(0, 1750, 500, 500), 180, 180);
+        assertGeometry("narrower than box",
+                       RenditionGeometry.compute(100, 400, Sizes.THUMB),
+                       new Rectangle(0, 110, 100, 180), 100, 180);
+        assertGeometry("smaller than box",
+                       RenditionGeometry.compute(100, 50, Sizes.THUMB),
+                       new Rectangle(0, 0, 100, 50), 100, 50);
+    }
+
+
+    @Test
+    public void testEquality() throws Exception
+    {
+        RenditionGeometry g1 = RenditionGeometry.compute(6000, 4000, Sizes.THUMB);
+        RenditionGeometry g2 = new RenditionGeometry(new Rectangle(1000, 0, 4000, 4000), 180, 180);
+        RenditionGeometry g3 = RenditionGeometry.compute(6000, 4000, Sizes.W640H480);
+
+        assertEquals("equal",           g1, g2);
+        assertEquals("hashcode",        g1.hashCode(), g2.hashCode());
+        assertNotEquals("not equal",    g1, g3);
+    }
+}
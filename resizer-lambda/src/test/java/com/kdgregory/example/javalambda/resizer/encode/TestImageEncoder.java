@@ -0,0 +1,127 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.encode;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.resizer.pool.ByteChunkPool;
+
+
+public class TestImageEncoder
+{
+    private ImageEncoder encoder = new ImageEncoder(new ByteChunkPool(4096, 100));
+
+
+    /**
+     *  Creates an image with random pixels, which don't compress well.
+     */
+    private static BufferedImage createNoisyImage(int width, int height)
+    {
+        Random rnd = new Random(42);
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0 ; y < height ; y++)
+        {
+            for (int x = 0 ; x < width ; x++)
+            {
+                img.setRGB(x, y, rnd.nextInt(0x1000000));
+            }
+        }
+        return img;
+    }
+
+
+    private byte[] encode(BufferedImage img, String mimeType, EncodingParams params)
+    throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        encoder.encode(img, mimeType, params, bos);
+        return bos.toByteArray();
+    }
+
+
+    /**
+     *  Determines whether the content contains a JPEG marker. This is naive: it
+     *  doesn't parse the segments, so could be fooled by compressed data.
+     */
+    private static boolean containsMarker(byte[] content, int marker)
+    {
+        for (int ii = 0 ; ii < content.length - 1 ; ii++)
+        {
+            if (((content[ii] & 0xFF) == 0xFF) && ((content[ii + 1] & 0xFF) == marker))
+                return true;
+        }
+        return false;
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testBasicJpeg() throws Exception
+    {
+        byte[] content = encode(createNoisyImage(100, 80), "image/jpeg", new EncodingParams(0.75f, 0, false));
+
+        assertFalse("JFIF segment stripped",        containsMarker(content, 0xE0));
+        assertTrue("baseline frame",                containsMarker(content, 0xC0));
+
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(content));
+        assertEquals("decoded width",   100,    img.getWidth());
+        assertEquals("decoded height",  80,     img.getHeight());
+    }
+
+
+    @Test
+    public void testProgressiveJpeg() throws Exception
+    {
+        byte[] content = encode(createNoisyImage(100, 80), "image/jpeg", new EncodingParams(0.75f, 0, true));
+
+        assertTrue("progressive frame",             containsMarker(content, 0xC2));
+        assertNotNull("decodable",                  ImageIO.read(new ByteArrayInputStream(content)));
+    }
+
+
+    @Test
+    public void testTargetSize() throws Exception
+    {
+        BufferedImage src = createNoisyImage(200, 150);
+        byte[] unconstrained = encode(src, "image/jpeg", new EncodingParams(0.9f, 0, false));
+        byte[] minimum = encode(src, "image/jpeg", new EncodingParams(0.3f, 0, false));
+
+        int target = (unconstrained.length + minimum.length) / 2;
+        byte[] constrained = encode(src, "image/jpeg", new EncodingParams(0.9f, target, false));
+        assertTrue("constrained size (" + constrained.length + ") <= target (" + target + ")",
+                   constrained.length <= target);
+        assertTrue("constrained size (" + constrained.length + ") > minimum (" + minimum.length + ")",
+                   constrained.length > minimum.length);
+
+        byte[] unreachable = encode(src, "image/jpeg", new EncodingParams(0.9f, 100, false));
+        assertEquals("unreachable target uses minimum quality", minimum.length, unreachable.length);
+    }
+
+
+    @Test
+    public void testNonJpeg() throws Exception
+    {
+        // target size and progressive are ignored for formats that don't support them
+        byte[] content = encode(createNoisyImage(50, 40), "image/png", new EncodingParams(0.5f, 100, true));
+
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(content));
+        assertEquals("decoded width",   50,     img.getWidth());
+    }
+
+
+    @Test(expected=IIOException.class)
+    public void testUnsupportedMimeType() throws Exception
+    {
+        encode(createNoisyImage(10, 10), "image/x-unknown", new EncodingParams(0.75f, 0, false));
+    }
+}
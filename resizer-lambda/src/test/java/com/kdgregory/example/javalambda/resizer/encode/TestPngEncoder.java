@@ -0,0 +1,167 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.encode;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestPngEncoder
+{
+    private static BufferedImage createNoisyImage(int width, int height, int type)
+    {
+        Random rnd = new Random(42);
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int y = 0 ; y < height ; y++)
+        {
+            for (int x = 0 ; x < width ; x++)
+            {
+                img.setRGB(x, y, rnd.nextInt());
+            }
+        }
+        return img;
+    }
+
+
+    /**
+     *  Creates an image that looks like a simple graphic: solid blocks of color,
+     *  antialiased text, and a gradient (which gives it more than 256 colors).
+     */
+    private static BufferedImage createGraphic(int width, int height)
+    {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLUE);
+        g.fillRect(0, 0, width, height / 4);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.RED);
+        g.drawString("Hello, World", 10, height / 2);
+        g.dispose();
+        for (int y = height * 3 / 4 ; y < height ; y++)
+        {
+            for (int x = 0 ; x < width ; x++)
+            {
+                img.setRGB(x, y, new Color(x * 255 / width, y * 255 / height, 128).getRGB());
+            }
+        }
+        return img;
+    }
+
+
+    private static byte[] write(BufferedImage img, int level, PngFilter filter)
+    throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new PngEncoder(level, filter).write(img, bos);
+        return bos.toByteArray();
+    }
+
+
+    private static void assertSamePixels(String message, BufferedImage expected, BufferedImage actual)
+    {
+        assertEquals(message + ": width",  expected.getWidth(),  actual.getWidth());
+        assertEquals(message + ": height", expected.getHeight(), actual.getHeight());
+        for (int y = 0 ; y < expected.getHeight() ; y++)
+        {
+            for (int x = 0 ; x < expected.getWidth() ; x++)
+            {
+                assertEquals(message + ": pixel " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY };
+        for (int type : types)
+        {
+            BufferedImage src = createNoisyImage(37, 23, type);
+            for (PngFilter filter : PngFilter.values())
+            {
+                String message = "type " + type + ", filter " + filter;
+                byte[] content = write(src, 6, filter);
+                assertSamePixels(message, src, ImageIO.read(new ByteArrayInputStream(content)));
+            }
+        }
+    }
+
+
+    @Test
+    public void testExactPalette() throws Exception
+    {
+        BufferedImage src = new BufferedImage(30, 20, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = src.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 15, 10);
+        g.setColor(new Color(0, 255, 0, 128));
+        g.fillRect(15, 10, 15, 10);
+        g.dispose();
+
+        BufferedImage palette = PaletteQuantizer.quantize(src, 256);
+        assertNotNull("converted", palette);
+        assertEquals("palette size", 3, ((IndexColorModel)palette.getColorModel()).getMapSize());
+
+        // three colors means 2-bit samples, and there's a translucent entry
+        byte[] content = write(palette, 9, PngFilter.ADAPTIVE);
+        assertEquals("bit depth",   2,  content[24]);
+        assertEquals("color type",  3,  content[25]);
+        assertSamePixels("palette", src, ImageIO.read(new ByteArrayInputStream(content)));
+    }
+
+
+    @Test
+    public void testMedianCut() throws Exception
+    {
+        BufferedImage src = createGraphic(200, 100);
+        BufferedImage palette = PaletteQuantizer.quantize(src, 100000);
+        assertNotNull("converted", palette);
+        assertEquals("palette size", 256, ((IndexColorModel)palette.getColorModel()).getMapSize());
+
+        // the dominant colors should be preserved exactly
+        assertEquals("background", Color.WHITE.getRGB(),    palette.getRGB(199, 50));
+        assertEquals("banner",     Color.BLUE.getRGB(),     palette.getRGB(0, 0));
+
+        for (int y = 0 ; y < src.getHeight() ; y++)
+        {
+            for (int x = 0 ; x < src.getWidth() ; x++)
+            {
+                Color expected = new Color(src.getRGB(x, y));
+                Color actual = new Color(palette.getRGB(x, y));
+                int error = Math.abs(expected.getRed() - actual.getRed())
+                          + Math.abs(expected.getGreen() - actual.getGreen())
+                          + Math.abs(expected.getBlue() - actual.getBlue());
+                assertTrue("pixel " + x + "," + y + " error " + error, error < 32);
+            }
+        }
+
+        ByteArrayOutputStream stock = new ByteArrayOutputStream();
+        ImageIO.write(src, "png", stock);
+        byte[] optimized = write(palette, 9, PngFilter.ADAPTIVE);
+        assertTrue("optimized (" + optimized.length + ") smaller than stock writer (" + stock.size() + ")",
+                   optimized.length < stock.size());
+    }
+
+
+    @Test
+    public void testTooManyColors() throws Exception
+    {
+        assertNull("not converted", PaletteQuantizer.quantize(createNoisyImage(100, 100, BufferedImage.TYPE_INT_RGB), 4096));
+    }
+}
@@ -0,0 +1,241 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.pool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.resizer.decode.ImageSource;
+
+
+public class TestPools
+{
+    @Test
+    public void testRasterPoolReuse() throws Exception
+    {
+        RasterPool pool = new RasterPool(1024 * 1024);
+
+        BufferedImage img1 = pool.acquire(100, 50, BufferedImage.TYPE_INT_RGB);
+        pool.release(img1);
+        pool.release(img1);
+        assertEquals("footprint after release, with duplicate",    100 * 50 * 4,   pool.getCurrentBytes());
+
+        assertNotSame("different type is not reused",   img1, pool.acquire(100, 50, BufferedImage.TYPE_INT_ARGB));
+        assertNotSame("different size is not reused",   img1, pool.acquire(50, 100, BufferedImage.TYPE_INT_RGB));
+        assertSame("matching image is reused",          img1, pool.acquire(100, 50, BufferedImage.TYPE_INT_RGB));
+        assertEquals("footprint after reuse",           0,    pool.getCurrentBytes());
+    }
+
+
+    @Test
+    public void testRasterPoolCap() throws Exception
+    {
+        // each image is 40,000 bytes
+        RasterPool pool = new RasterPool(100000);
+
+        BufferedImage img1 = pool.acquire(100, 100, BufferedImage.TYPE_INT_RGB);
+        BufferedImage img2 = pool.acquire(100, 100, BufferedImage.TYPE_INT_RGB);
+        BufferedImage img3 = pool.acquire(100, 100, BufferedImage.TYPE_INT_RGB);
+        pool.release(img1);
+        pool.release(img2);
+        pool.release(img3);
+        assertEquals("footprint limited by cap",        80000, pool.getCurrentBytes());
+
+        pool.release(new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB));
+        assertEquals("image larger than cap ignored",   80000, pool.getCurrentBytes());
+
+        assertSame("most recent released first",        img3, pool.acquire(100, 100, BufferedImage.TYPE_INT_RGB));
+        assertSame("then next most recent",             img2, pool.acquire(100, 100, BufferedImage.TYPE_INT_RGB));
+        assertNotSame("oldest was discarded",           img1, pool.acquire(100, 100, BufferedImage.TYPE_INT_RGB));
+    }
+
+
+    @Test
+    public void testChunkedBuffer() throws Exception
+    {
+        ByteChunkPool pool = new ByteChunkPool(16, 2);
+        ChunkedBuffer buf = new ChunkedBuffer(pool);
+
+        byte[] data = new byte[40];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)ii;
+
+        buf.write(0, data, 0, 40);
+        buf.write(10, new byte[] { 99, 98 }, 0, 2);
+        assertEquals("length",                  40, buf.length());
+        assertEquals("overwritten byte",        99, buf.read(10));
+        assertEquals("byte in later chunk",     35, buf.read(35));
+        assertEquals("read past end",           -1, buf.read(40));
+
+        byte[] dst = new byte[20];
+        assertEquals("read spanning chunks",    8,  buf.read(32, dst, 0, 20));
+        assertEquals("first byte of span",      32, dst[0]);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        buf.writeTo(bos);
+        assertEquals("writeTo length",          40, bos.size());
+
+        buf.release();
+        assertEquals("chunks retained, up to limit",    2, pool.getAvailableChunks());
+        assertEquals("length after release",            0, buf.length());
+    }
+
+
+    @Test
+    public void testPooledImageInputStreamFlush() throws Exception
+    {
+        ByteChunkPool pool = new ByteChunkPool(16, 4);
+
+        byte[] data = new byte[40];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)ii;
+
+        try (PooledImageInputStream in = new PooledImageInputStream(new ByteArrayInputStream(data), pool))
+        {
+            in.readFully(new byte[35]);
+            in.flushBefore(20);
+            assertEquals("chunks released by first flush",  1,  pool.getAvailableChunks());
+
+            in.flushBefore(33);
+            assertEquals("chunks released by second flush", 2,  pool.getAvailableChunks());
+            assertEquals("read after flush",                35, in.read());
+
+            in.seek(33);
+            assertEquals("read after seek to flushed pos",  33, in.read());
+
+            try
+            {
+                in.seek(10);
+                fail("able to seek before flushed position");
+            }
+            catch (IndexOutOfBoundsException ex)
+            {
+                // success
+            }
+        }
+        assertEquals("remaining chunk released on close",   3,  pool.getAvailableChunks());
+    }
+
+
+    @Test
+    public void testChunkedOutputStream() throws Exception
+    {
+        ByteChunkPool pool = new ByteChunkPool(16, 4);
+        ChunkedOutputStream out = new ChunkedOutputStream(pool);
+
+        byte[] data = new byte[40];
+        for (int ii = 0 ; ii < data.length ; ii++)
+            data[ii] = (byte)ii;
+
+        out.write(data, 0, 30);
+        out.write(data, 30, 10);
+        out.write(99);
+        assertEquals("length",                  41, out.length());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.writeTo(bos);
+        byte[] written = bos.toByteArray();
+        assertEquals("writeTo length",          41, written.length);
+        assertEquals("byte in later chunk",     35, written[35]);
+        assertEquals("single-byte write",       99, written[40]);
+
+        byte[] read = new byte[50];
+        InputStream in = out.toInputStream();
+        assertEquals("first byte read",         0,  in.read());
+        assertEquals("bulk read",               40, in.read(read, 0, 50));
+        assertEquals("last byte read",          99, read[39]);
+        assertEquals("read at end",             -1, in.read());
+
+        out.close();
+        out.close();
+        assertEquals("chunks returned to pool", 3, pool.getAvailableChunks());
+
+        try
+        {
+            out.write(1);
+            fail("able to write after close");
+        }
+        catch (IOException ex)
+        {
+            // success
+        }
+    }
+
+
+    @Test
+    public void testImageRoundTrip() throws Exception
+    {
+        BufferedImage src = new BufferedImage(320, 240, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = src.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 320, 240);
+        g.dispose();
+
+        ByteChunkPool chunkPool = new ByteChunkPool(1024, 100);
+        RasterPool rasterPool = new RasterPool(10 * 1024 * 1024);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (PooledImageOutputStream ios = new PooledImageOutputStream(chunkPool))
+        {
+            writer.setOutput(ios);
+            writer.write(src);
+            ios.writeTo(bos);
+        }
+        writer.dispose();
+        assertTrue("chunks returned to pool", chunkPool.getAvailableChunks() > 0);
+
+        BufferedImage pooled = rasterPool.acquire(160, 120, BufferedImage.TYPE_3BYTE_BGR);
+        rasterPool.release(pooled);
+
+        try (ImageSource source = new ImageSource(new ByteArrayInputStream(bos.toByteArray()), chunkPool))
+        {
+            BufferedImage img = source.read(2, rasterPool);
+            assertSame("decoded into pooled image",     pooled, img);
+            assertTrue("decoded color is red (JPEG is lossy)",  ((img.getRGB(80, 60) >> 16) & 0xFF) > 240);
+        }
+    }
+
+
+    @Test
+    public void testDecodeFromChunkedOutputStream() throws Exception
+    {
+        BufferedImage src = new BufferedImage(320, 240, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = src.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(0, 0, 320, 240);
+        g.dispose();
+
+        ByteChunkPool chunkPool = new ByteChunkPool(1024, 100);
+        try (ChunkedOutputStream out = new ChunkedOutputStream(chunkPool))
+        {
+            ImageIO.write(src, "jpeg", out);
+            int chunksInUse = (int)((out.length() + 1023) / 1024);
+
+            // the content is decoded from the stream's own chunks, which it keeps
+            try (ImageSource source = new ImageSource(out))
+            {
+                BufferedImage img = source.read(1);
+                assertEquals("decoded width",                   320, img.getWidth());
+                assertTrue("decoded color is blue (JPEG is lossy)", (img.getRGB(160, 120) & 0xFF) > 240);
+            }
+
+            // a copy would have taken chunks from the pool and returned them on close
+            assertEquals("no chunks used or released by decode", 0, chunkPool.getAvailableChunks());
+            assertEquals("content readable after decode",       0xFF, out.toInputStream().read());
+
+            out.close();
+            assertEquals("chunks released by owner",            chunksInUse, chunkPool.getAvailableChunks());
+        }
+    }
+}
@@ -0,0 +1,183 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestKernelScalingEngine
+{
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static BufferedImage solidImage(int width, int height, int type, Color color)
+    {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Graphics2D g = img.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return img;
+    }
+
+
+    private static void assertSolid(String message, BufferedImage img, Color expected)
+    {
+        for (int y = 0 ; y < img.getHeight() ; y++)
+        {
+            for (int x = 0 ; x < img.getWidth() ; x++)
+            {
+                Color actual = new Color(img.getRGB(x, y), true);
+                assertEquals(message + ": red at " + x + "," + y,   expected.getRed(),   actual.getRed(),   1);
+                assertEquals(message + ": green at " + x + "," + y, expected.getGreen(), actual.getGreen(), 1);
+                assertEquals(message + ": blue at " + x + "," + y,  expected.getBlue(),  actual.getBlue(),  1);
+                assertEquals(message + ": alpha at " + x + "," + y, expected.getAlpha(), actual.getAlpha(), 1);
+            }
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testWeightsAreNormalized() throws Exception
+    {
+        for (ResampleFilter filter : ResampleFilter.values())
+        {
+            for (int[] sizes : new int[][] { {1000, 180}, {180, 1000}, {7, 3}, {100, 100} })
+            {
+                ResampleWeights weights = new ResampleWeights(filter, sizes[0], sizes[1]);
+                for (int ii = 0 ; ii < sizes[1] ; ii++)
+                {
+                    assertTrue(filter + " " + sizes[0] + "->" + sizes[1] + ": start in range at " + ii,
+                               weights.start(ii) >= 0);
+                    assertTrue(filter + " " + sizes[0] + "->" + sizes[1] + ": end in range at " + ii,
+                               weights.start(ii) + weights.count(ii) <= sizes[0]);
+
+                    double total = 0;
+                    for (int jj = 0 ; jj < weights.count(ii) ; jj++)
+                        total += weights.weights()[weights.offset(ii) + jj];
+                    assertEquals(filter + " " + sizes[0] + "->" + sizes[1] + ": sum of weights at " + ii,
+                                 1.0, total, 0.0001);
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testSolidColorIsPreserved() throws Exception
+    {
+        Color color = new Color(12, 34, 200, 128);
+        int[] types = new int[]
+        {
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR,
+        };
+
+        for (ResampleFilter filter : ResampleFilter.values())
+        {
+            KernelScalingEngine engine = new KernelScalingEngine(filter);
+            for (int type : types)
+            {
+                BufferedImage src = solidImage(317, 211, type, color);
+                BufferedImage dst = engine.scale(src, 50, 33);
+
+                assertEquals(filter + " type " + type + ": width",  50,   dst.getWidth());
+                assertEquals(filter + " type " + type + ": height", 33,   dst.getHeight());
+                assertEquals(filter + " type " + type + ": type",   type, dst.getType());
+
+                // for opaque types, the fill color will have been blended with the background
+                Color expected = new Color(src.getRGB(0, 0), true);
+                assertSolid(filter + " type " + type, dst, expected);
+            }
+        }
+    }
+
+
+    @Test
+    public void testTransparentBorder() throws Exception
+    {
+        // the border is transparent black; without premultiplication, it would darken the edges
+        Color color = new Color(200, 100, 50);
+        for (int type : new int[] { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR })
+        {
+            for (ResampleFilter filter : ResampleFilter.values())
+            {
+                BufferedImage src = new BufferedImage(100, 100, type);
+                Graphics2D g = src.createGraphics();
+                g.setColor(color);
+                g.fillRect(20, 20, 60, 60);
+                g.dispose();
+
+                BufferedImage dst = new KernelScalingEngine(filter).scale(src, 25, 25);
+                String message = filter + " type " + type;
+                assertEquals(message + ": type",                type,   dst.getType());
+                assertEquals(message + ": corner alpha",        0,      new Color(dst.getRGB(0, 0), true).getAlpha());
+                assertEquals(message + ": center alpha",        255,    new Color(dst.getRGB(12, 12), true).getAlpha());
+
+                for (int y = 0 ; y < dst.getHeight() ; y++)
+                {
+                    for (int x = 0 ; x < dst.getWidth() ; x++)
+                    {
+                        Color actual = new Color(dst.getRGB(x, y), true);
+                        if (actual.getAlpha() == 0)
+                            continue;
+                        assertEquals(message + ": red at " + x + "," + y,   color.getRed(),   actual.getRed(),   2);
+                        assertEquals(message + ": green at " + x + "," + y, color.getGreen(), actual.getGreen(), 2);
+                        assertEquals(message + ": blue at " + x + "," + y,  color.getBlue(),  actual.getBlue(),  2);
+                    }
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testGrayscale() throws Exception
+    {
+        BufferedImage src = new BufferedImage(400, 10, BufferedImage.TYPE_BYTE_GRAY);
+        for (int x = 0 ; x < src.getWidth() ; x++)
+        {
+            for (int y = 0 ; y < src.getHeight() ; y++)
+                src.getRaster().setSample(x, y, 0, x * 255 / 399);
+        }
+
+        BufferedImage dst = new KernelScalingEngine(ResampleFilter.MITCHELL).scale(src, 40, 1);
+
+        assertEquals("type", BufferedImage.TYPE_BYTE_GRAY, dst.getType());
+        for (int x = 1 ; x < dst.getWidth() ; x++)
+        {
+            assertTrue("gradient is preserved at " + x,
+                       dst.getRaster().getSample(x, 0, 0) >= dst.getRaster().getSample(x - 1, 0, 0));
+        }
+    }
+
+
+    @Test
+    public void testUnsupportedTypeIsConverted() throws Exception
+    {
+        BufferedImage src = solidImage(64, 64, BufferedImage.TYPE_USHORT_565_RGB, Color.RED);
+        BufferedImage dst = new KernelScalingEngine(ResampleFilter.LANCZOS3).scale(src, 16, 16);
+
+        assertEquals("type", BufferedImage.TYPE_INT_RGB, dst.getType());
+        assertSolid("converted", dst, Color.RED);
+    }
+
+
+    @Test
+    public void testUpscale() throws Exception
+    {
+        BufferedImage src = solidImage(10, 10, BufferedImage.TYPE_INT_RGB, Color.GREEN);
+        BufferedImage dst = new KernelScalingEngine(ResampleFilter.BOX).scale(src, 25, 25);
+        assertSolid("upscaled", dst, Color.GREEN);
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+public class TestProgressiveScalingEngine
+{
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static BufferedImage solidImage(int width, int height, int type, Color color)
+    {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Graphics2D g = img.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return img;
+    }
+
+
+    private static void assertSolid(String message, BufferedImage img, Color expected)
+    {
+        for (int y = 0 ; y < img.getHeight() ; y++)
+        {
+            for (int x = 0 ; x < img.getWidth() ; x++)
+            {
+                Color actual = new Color(img.getRGB(x, y), true);
+                assertEquals(message + ": red at " + x + "," + y,   expected.getRed(),   actual.getRed(),   1);
+                assertEquals(message + ": green at " + x + "," + y, expected.getGreen(), actual.getGreen(), 1);
+                assertEquals(message + ": blue at " + x + "," + y,  expected.getBlue(),  actual.getBlue(),  1);
+                assertEquals(message + ": alpha at " + x + "," + y, expected.getAlpha(), actual.getAlpha(), 1);
+            }
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testSolidColorIsPreserved() throws Exception
+    {
+        Color color = new Color(12, 34, 200);
+        int[] types = new int[]
+        {
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR,
+        };
+
+        // several halving steps plus a final pass, only halving steps, and only a final pass
+        int[][] targets = new int[][] { {180, 135}, {400, 300}, {1024, 768} };
+
+        ProgressiveScalingEngine engine = new ProgressiveScalingEngine(new RasterPool(64 * 1024 * 1024));
+        for (int type : types)
+        {
+            BufferedImage src = solidImage(1600, 1200, type, color);
+            for (int[] target : targets)
+            {
+                String message = "type " + type + " to " + target[0] + "x" + target[1];
+                BufferedImage dst = engine.scale(src, target[0], target[1]);
+
+                assertEquals(message + ": width",   target[0],  dst.getWidth());
+                assertEquals(message + ": height",  target[1],  dst.getHeight());
+                assertEquals(message + ": type",    type,       dst.getType());
+                assertSolid(message, dst, color);
+            }
+            assertSolid("type " + type + ": source unchanged", src, color);
+        }
+    }
+
+
+    @Test
+    public void testGradient() throws Exception
+    {
+        BufferedImage src = new BufferedImage(1600, 16, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0 ; x < src.getWidth() ; x++)
+        {
+            int value = x * 255 / 1599;
+            for (int y = 0 ; y < src.getHeight() ; y++)
+                src.setRGB(x, y, new Color(value, value, value).getRGB());
+        }
+
+        BufferedImage dst = new ProgressiveScalingEngine(new RasterPool(0)).scale(src, 150, 1);
+
+        for (int x = 1 ; x < dst.getWidth() ; x++)
+        {
+            assertTrue("gradient is preserved at " + x,
+                       (dst.getRGB(x, 0) & 0xFF) >= (dst.getRGB(x - 1, 0) & 0xFF));
+        }
+        assertTrue("left edge is dark",     (dst.getRGB(0, 0) & 0xFF) < 8);
+        assertTrue("right edge is light",   (dst.getRGB(149, 0) & 0xFF) > 247);
+    }
+
+
+    @Test
+    public void testIntermediatesAreReleased() throws Exception
+    {
+        RasterPool pool = new RasterPool(64 * 1024 * 1024);
+        BufferedImage src = solidImage(1600, 1200, BufferedImage.TYPE_INT_RGB, Color.RED);
+
+        // halves to 800x600, 400x300, and 200x150, then a final pass to 180x135
+        BufferedImage dst = new ProgressiveScalingEngine(pool).scale(src, 180, 135);
+
+        assertEquals("pooled bytes",    (800 * 600 + 400 * 300 + 200 * 150) * 4L,   pool.getCurrentBytes());
+        assertNotSame("result is not the source",   src,                            dst);
+
+        // the intermediates are reused by the next scale, so only the result leaves the pool
+        pool.release(dst);
+        long pooledBytes = pool.getCurrentBytes();
+        new ProgressiveScalingEngine(pool).scale(src, 180, 135);
+        assertEquals("pooled bytes after reuse",    pooledBytes - 180 * 135 * 4L,   pool.getCurrentBytes());
+        assertNotSame("source was not pooled",      src,                            pool.acquire(1600, 1200, BufferedImage.TYPE_INT_RGB));
+    }
+
+
+    @Test
+    public void testSameSizeIsCopied() throws Exception
+    {
+        RasterPool pool = new RasterPool(64 * 1024 * 1024);
+        BufferedImage src = solidImage(640, 480, BufferedImage.TYPE_INT_RGB, Color.BLUE);
+        BufferedImage pooled = pool.acquire(640, 480, BufferedImage.TYPE_INT_RGB);
+        pool.release(pooled);
+
+        // the caller releases the source and the result separately, so they can't be the same image
+        BufferedImage dst = new ProgressiveScalingEngine(pool).scale(src, 640, 480);
+
+        assertNotSame("result is not the source",                       src,    dst);
+        assertSame("result taken from pool",                            pooled, dst);
+        assertEquals("width",                                           640,    dst.getWidth());
+        assertEquals("height",                                          480,    dst.getHeight());
+        assertSolid("copied", dst, Color.BLUE);
+    }
+}
@@ -0,0 +1,125 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.resizer.scaling;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.resizer.pool.RasterPool;
+
+
+public class TestStripResampler
+{
+    private RasterPool rasterPool = new RasterPool(0);
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    private static BufferedImage randomImage(int width, int height, int type)
+    {
+        Random rnd = new Random(width * 31 + height);
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int y = 0 ; y < height ; y++)
+        {
+            for (int x = 0 ; x < width ; x++)
+            {
+                img.setRGB(x, y, rnd.nextInt());
+            }
+        }
+        return img;
+    }
+
+
+    /**
+     *  Feeds the image to the resampler in strips of the given height.
+     */
+    private static void feed(StripResampler resampler, BufferedImage img, int stripHeight)
+    {
+        for (int y = 0 ; y < img.getHeight() ; y += stripHeight)
+        {
+            int height = Math.min(stripHeight, img.getHeight() - y);
+            BufferedImage strip = new BufferedImage(img.getWidth(), height, img.getType());
+            strip.getRaster().setRect(img.getRaster().createChild(0, y, img.getWidth(), height, 0, 0, null));
+            resampler.accept(strip, y);
+        }
+    }
+
+
+    private static void assertSameImage(String message, BufferedImage expected, BufferedImage actual)
+    {
+        assertEquals(message + ": type",   expected.getType(),   actual.getType());
+        assertEquals(message + ": width",  expected.getWidth(),  actual.getWidth());
+        assertEquals(message + ": height", expected.getHeight(), actual.getHeight());
+        for (int y = 0 ; y < expected.getHeight() ; y++)
+        {
+            for (int x = 0 ; x < expected.getWidth() ; x++)
+            {
+                assertEquals(message + ": pixel at " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testMatchesKernelEngine() throws Exception
+    {
+        for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+                                    BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY })
+        {
+            BufferedImage src = randomImage(300, 200, type);
+            BufferedImage expected = new KernelScalingEngine(ResampleFilter.LANCZOS3).scale(src, 75, 50);
+
+            for (int stripHeight : new int[] { 1, 7, 64, 200 })
+            {
+                StripResampler resampler = new StripResampler(ResampleFilter.LANCZOS3, new Rectangle(0, 0, 300, 200), 75, 50, rasterPool);
+                feed(resampler, src, stripHeight);
+                assertTrue("complete", resampler.isComplete());
+                assertSameImage("type " + type + ", strip height " + stripHeight, expected, resampler.getResult());
+            }
+        }
+    }
+
+
+    @Test
+    public void testRegion() throws Exception
+    {
+        BufferedImage src = randomImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        Rectangle region = new Rectangle(50, 20, 150, 150);
+        BufferedImage expected = new KernelScalingEngine(ResampleFilter.MITCHELL)
+                                 .scale(src.getSubimage(region.x, region.y, region.width, region.height), 60, 60);
+
+        StripResampler resampler = new StripResampler(ResampleFilter.MITCHELL, region, 60, 60, rasterPool);
+        feed(resampler, src, 32);
+        assertSameImage("region", expected, resampler.getResult());
+    }
+
+
+    @Test
+    public void testIncomplete() throws Exception
+    {
+        BufferedImage src = randomImage(100, 100, BufferedImage.TYPE_INT_RGB);
+        StripResampler resampler = new StripResampler(ResampleFilter.BOX, new Rectangle(0, 0, 100, 100), 10, 10, rasterPool);
+
+        BufferedImage strip = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+        strip.getRaster().setRect(src.getRaster());
+        resampler.accept(strip, 0);
+
+        assertFalse("not complete after half of source", resampler.isComplete());
+        try
+        {
+            resampler.getResult();
+            fail("returned incomplete result");
+        }
+        catch (IllegalStateException ex)
+        {
+            // success
+        }
+    }
+}
@@ -142,6 +142,8 @@ public class Dispatcher
                 return invokeIf(request, HttpMethod.GET,  authorized(r -> photoService.listPhotos(r)));
             case RequestActions.REQUEST_UPLOAD :
                 return invokeIf(request, HttpMethod.POST, authorized(r -> photoService.prepareUpload(r)));
+            case RequestActions.RENDER :
+                return invokeIf(request, HttpMethod.POST, authorized(r -> photoService.render(r)));
             default:
                 logger.warn("unknown action, ignoring: {}", request.getAction());
                 return new Response(404);
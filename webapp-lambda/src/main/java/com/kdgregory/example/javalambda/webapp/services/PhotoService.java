@@ -1,16 +1,25 @@
 // Copyright (c) Keith D Gregory, all rights reserved
 package com.kdgregory.example.javalambda.webapp.services;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.services.lambda.AWSLambda;
+import com.amazonaws.services.lambda.AWSLambdaClientBuilder;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.model.InvokeResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import com.kdgregory.example.javalambda.shared.config.Environment;
 import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
 import com.kdgregory.example.javalambda.shared.data.PhotoMetadata.Fields;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
 import com.kdgregory.example.javalambda.shared.services.ContentService;
 import com.kdgregory.example.javalambda.shared.services.MetadataService;
 import com.kdgregory.example.javalambda.shared.services.impl.ContentServiceImpl;
@@ -23,13 +32,22 @@ import com.kdgregory.example.javalambda.webapp.util.ResponseCodes;
 
 /**
  *  Manages the photo database, including upload, list, and download.
+ *  <p>
+ *  Sizes that the Resizer doesn't render on upload are rendered when the client
+ *  requests them. Since the WebApp doesn't include the image-processing code, it
+ *  synchronously invokes the Resizer's render function, identified by the
+ *  <code>RENDER_FUNCTION</code> environment variable.
  */
 public class PhotoService
 {
     private Logger logger = LoggerFactory.getLogger(getClass());
 
+    private ObjectMapper mapper = new ObjectMapper();
+
     private MetadataService metadataService;
     private ContentService contentService;
+    private String renderFunction;
+    private AWSLambda lambdaClient;
 
 
     public PhotoService()
@@ -39,6 +57,21 @@ public class PhotoService
         contentService = new ContentServiceImpl(
                             Environment.getOrThrow(Environment.S3_UPLOAD_BUCKET),
                             Environment.getOrThrow(Environment.S3_IMAGE_BUCKET));
+        renderFunction = Environment.getOrThrow(Environment.RENDER_FUNCTION);
+        lambdaClient = AWSLambdaClientBuilder.defaultClient();
+    }
+
+
+    /**
+     *  Constructs an instance with explicit services. This is intended for testing.
+     */
+    public PhotoService(MetadataService metadataService, ContentService contentService,
+                        String renderFunction, AWSLambda lambdaClient)
+    {
+        this.metadataService = metadataService;
+        this.contentService = contentService;
+        this.renderFunction = renderFunction;
+        this.lambdaClient = lambdaClient;
     }
 
 
@@ -88,4 +121,115 @@ public class PhotoService
         return new Response(ResponseCodes.SUCCESS,
                             contentService.createUploadURL(metadata.getId()));
     }
+
+
+    /**
+     *  Renders a size of one of the user's photos, if it hasn't already been rendered,
+     *  and returns the photo's updated metadata. The client must then retrieve the
+     *  image itself. If the photo is still being processed by another invocation, the
+     *  Resizer returns without rendering, and the response code tells the client to
+     *  retry.
+     */
+    public Response render(Request request)
+    {
+        String userId = request.getUser();
+        String photoId = (String)request.getBody().get(Fields.ID);
+        String sizeName = (String)request.getBody().get("size");
+        logger.info("render: user {}, photo {}, size {}", userId, photoId, sizeName);
+
+        if ((photoId == null) || (sizeName == null))
+        {
+            logger.warn("render: missing photo ID or size; provided keys: {}", request.getBody().keySet());
+            return new Response(ResponseCodes.INVALID_REQUEST);
+        }
+
+        Sizes size;
+        try
+        {
+            size = Sizes.valueOf(sizeName);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            logger.warn("render: unknown size: {}", sizeName);
+            return new Response(ResponseCodes.INVALID_REQUEST);
+        }
+
+        PhotoMetadata metadata = metadataService.retrieve(photoId);
+        if ((metadata == null) || ! metadata.getUser().equals(userId))
+        {
+            logger.warn("render: photo {} does not belong to user {}", photoId, userId);
+            return new Response(ResponseCodes.INVALID_OPERATION);
+        }
+
+        if (metadata.getSizes().contains(size))
+        {
+            return new Response(ResponseCodes.SUCCESS, metadata.toClientMap());
+        }
+
+        Map<String,Object> result = invokeRender(photoId, size);
+        if (! hasSize(result, size))
+        {
+            logger.info("render: photo {} is still being processed", photoId);
+            return new Response(ResponseCodes.NOT_READY, result);
+        }
+
+        return new Response(ResponseCodes.SUCCESS, result);
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Invokes the Resizer's render function, returning its response (the photo's
+     *  updated metadata, as a client map).
+     */
+    private Map<String,Object> invokeRender(String photoId, Sizes size)
+    {
+        Map<String,Object> payload = new HashMap<>();
+        payload.put(Fields.ID, photoId);
+        payload.put("size", size.name());
+
+        try
+        {
+            InvokeResult result = lambdaClient.invoke(new InvokeRequest()
+                                                      .withFunctionName(renderFunction)
+                                                      .withPayload(mapper.writeValueAsString(payload)));
+            String response = StandardCharsets.UTF_8.decode(result.getPayload()).toString();
+            if (result.getFunctionError() != null)
+            {
+                logger.error("render function failed for photo {}, size {}: {}", photoId, size, response);
+                throw new UnhandledServiceException();
+            }
+            return mapper.readValue(response, HashMap.class);
+        }
+        catch (UnhandledServiceException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            logger.error("unable to invoke render function for photo {}, size {}", photoId, size, ex);
+            throw new UnhandledServiceException();
+        }
+    }
+
+
+    /**
+     *  Determines whether the photo's client data (as returned by the render function)
+     *  includes the specified size.
+     */
+    private static boolean hasSize(Map<String,Object> clientMap, Sizes size)
+    {
+        Object sizes = clientMap.get(Fields.SIZES);
+        if (! (sizes instanceof List))
+            return false;
+
+        for (Object sizeMap : (List<?>)sizes)
+        {
+            if ((sizeMap instanceof Map) && size.name().equals(((Map<?,?>)sizeMap).get("name")))
+                return true;
+        }
+        return false;
+    }
 }
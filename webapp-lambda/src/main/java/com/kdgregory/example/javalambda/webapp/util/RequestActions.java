@@ -11,4 +11,5 @@ public class RequestActions
 
     public final static String  LIST            = "list";
     public final static String  REQUEST_UPLOAD  = "requestUpload";
+    public final static String  RENDER          = "render";
 }
\ No newline at end of file
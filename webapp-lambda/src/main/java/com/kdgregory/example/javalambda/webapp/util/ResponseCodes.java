@@ -11,7 +11,8 @@ public enum ResponseCodes
     SUCCESS                 (""),
     INTERNAL_ERROR          ("An internal error occurred; this has been logged"),
     INVALID_OPERATION       ("Unsupported operation"),
-    INVALID_REQUEST         ("The request is missing needed fields");
+    INVALID_REQUEST         ("The request is missing needed fields"),
+    NOT_READY               ("The photo is still being processed; try again shortly");
 
 
     private String description;
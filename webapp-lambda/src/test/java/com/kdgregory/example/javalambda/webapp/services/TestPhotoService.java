@@ -0,0 +1,107 @@
+// Copyright (c) Keith D Gregory, all rights reserved
+package com.kdgregory.example.javalambda.webapp.services;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.example.javalambda.shared.data.PhotoMetadata;
+import com.kdgregory.example.javalambda.shared.data.Sizes;
+import com.kdgregory.example.javalambda.shared.services.MetadataService;
+
+import com.kdgregory.example.javalambda.webapp.util.Request;
+import com.kdgregory.example.javalambda.webapp.util.Response;
+import com.kdgregory.example.javalambda.webapp.util.ResponseCodes;
+
+
+public class TestPhotoService
+{
+    private final static String USER_ID = "test";
+    private final static String PHOTO_ID = "example";
+
+//----------------------------------------------------------------------------
+//  Helpers
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns a metadata service that knows about a single photo, which has only
+     *  the specified sizes, and records the names of the methods called on it.
+     */
+    private static MetadataService metadataService(List<String> calls, Sizes... sizes)
+    {
+        List<String> sizeNames = new ArrayList<>();
+        for (Sizes size : sizes)
+        {
+            sizeNames.add(size.name());
+        }
+
+        PhotoMetadata metadata = new PhotoMetadata(PHOTO_ID, USER_ID, PHOTO_ID + ".jpg", "image/jpeg", "",
+                                                   Long.valueOf(System.currentTimeMillis()), sizeNames);
+        return (MetadataService)Proxy.newProxyInstance(
+                    TestPhotoService.class.getClassLoader(),
+                    new Class<?>[] { MetadataService.class },
+                    (proxy, method, args) ->
+                    {
+                        calls.add(method.getName());
+                        return (method.getName().equals("retrieve") && PHOTO_ID.equals(args[0])) ? metadata : null;
+                    });
+    }
+
+
+    private static Request renderRequest(String photoId, String sizeName)
+    {
+        Map<String,Object> body = new HashMap<>();
+        body.put(PhotoMetadata.Fields.ID, photoId);
+        body.put("size", sizeName);
+
+        Request request = new Request("POST", "render", "", body);
+        request.setUser(USER_ID);
+        return request;
+    }
+
+
+    private static Object responseCode(Response response)
+    {
+        return response.getBody().get(Response.Fields.RESPONSE_CODE);
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testRenderInvalidRequest() throws Exception
+    {
+        List<String> calls = new ArrayList<>();
+        PhotoService service = new PhotoService(metadataService(calls, Sizes.ORIGINAL), null, "render", null);
+
+        Response missing = service.render(renderRequest(PHOTO_ID, null));
+        assertEquals("missing size: status",        200,                                    missing.getStatusCode());
+        assertEquals("missing size: response code", ResponseCodes.INVALID_REQUEST.name(),   responseCode(missing));
+
+        Response unknown = service.render(renderRequest(PHOTO_ID, "W9999H9999"));
+        assertEquals("unknown size: status",        200,                                    unknown.getStatusCode());
+        assertEquals("unknown size: response code", ResponseCodes.INVALID_REQUEST.name(),   responseCode(unknown));
+
+        assertEquals("metadata not retrieved",      0,                                      calls.size());
+    }
+
+
+    @Test
+    public void testRenderExistingSize() throws Exception
+    {
+        // the Lambda client is null, so this would fail if it tried to invoke the Resizer
+        List<String> calls = new ArrayList<>();
+        PhotoService service = new PhotoService(metadataService(calls, Sizes.ORIGINAL, Sizes.THUMB), null, "render", null);
+
+        Response response = service.render(renderRequest(PHOTO_ID, Sizes.THUMB.name()));
+        assertEquals("response code",               ResponseCodes.SUCCESS.name(),           responseCode(response));
+        assertEquals("metadata retrieved",          Arrays.asList("retrieve"),              calls);
+    }
+}
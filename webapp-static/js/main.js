@@ -1,8 +1,8 @@
 angular.module('lPhoto').
 component("main", {
     templateUrl: "https://" + window.STATIC_HOST + "/templates/main.html",
-    controller: ['$scope', '$http', '$location',
-        function MainController($scope, $http, $location, $sceDelegateProvider) {
+    controller: ['$scope', '$http', '$location', '$timeout',
+        function MainController($scope, $http, $location, $timeout, $sceDelegateProvider) {
             console.log("MainController called");
 
             var self = this;
@@ -22,10 +22,48 @@ component("main", {
                 }
             }
 
+            // sizes that would be no larger than the original are stored as the original,
+            // and a photo that duplicates another is stored under that photo's ID
+            self.imageUrl = function(file, sizeName) {
+                var stored = (file.aliases && file.aliases[sizeName]) || sizeName;
+                return self.staticHost + "/images/" + (file.contentId || file.id) + "/" + stored;
+            }
+
             self.hasSizes = function(file) {
                 return !! (file && file.sizes && file.sizes.length > 0);
             }
 
+            self.hasMissingSizes = function(file) {
+                return !! (file && file.missingSizes && file.missingSizes.length > 0);
+            }
+
+            // sizes that weren't rendered on upload are rendered on request; the response
+            // is the updated photo, which replaces the one in the list; if the photo is
+            // still being processed, the request is retried after a short delay
+            self.render = function(file, sizeName) {
+                console.log("requesting render of " + file.id + " at " + sizeName);
+                $http.post('api/render', { id: file.id, size: sizeName })
+                .then(
+                    function(response) {
+                        if (response.data.responseCode === "SUCCESS") {
+                            var idx = self.fileList.indexOf(file);
+                            if (idx >= 0) {
+                                self.fileList[idx] = response.data.data;
+                            }
+                        }
+                        else if (response.data.responseCode === "NOT_READY") {
+                            console.log(file.id + " is still being processed; will retry");
+                            $timeout(function() { self.render(file, sizeName); }, 2000);
+                        }
+                        else {
+                            alert("got: " + response.data.responseCode);
+                        }
+                    },
+                    function(reason) {
+                        alert("render failed: " + reason);
+                    });
+            }
+
             self.refresh = function() {
                 console.log("refreshing file list");
                 $http.get('api/list')